@@ -16,8 +16,9 @@
 import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
 import com.indeed.imhotep.RemoteImhotepMultiSession;
-import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.serialization.Stringifier;
 import com.indeed.flamdex.query.Query;
@@ -39,14 +40,14 @@ import java.io.Closeable;
 import java.text.DecimalFormat;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import static com.indeed.imhotep.ez.Field.IntField;
 import static com.indeed.imhotep.ez.Field.StringField;
@@ -69,67 +70,209 @@ import static com.indeed.imhotep.ez.Stats.requireValid;
 public class EZImhotepSession implements Closeable {
     private static final Logger log = Logger.getLogger(EZImhotepSession.class);
     public static int GROUP_LIMIT = 1000000;    // 1 mil
+    // limits the size of the regroup request when a term filter is applied to all groups at once
+    private static final int MAX_BATCHED_FILTER_CONDITIONS = 1000000;
 
     private final ImhotepSession session;
     private final Deque<StatReference> statStack = new ArrayDeque<StatReference>();
+    // number of stack slots that have to be popped with each of the references in statStack
+    private final Deque<Integer> statStackSlotCounts = new ArrayDeque<Integer>();
+    // stats on the stack to the depth of their slot so that identical stats and sub-expressions can share it
+    private final Map<List<String>, Integer> stackSlots = Maps.newHashMap();
     private final Map<String, DynamicMetric> dynamicMetrics = Maps.newHashMap();
     private int stackDepth = 0;
     private int numGroups = 2;
     private boolean closed = false;
+    private volatile boolean cancelled = false;
+    // FTGS iterators not closed yet. closed along with the session when the query is cancelled
+    private final Set<FTGSIterator> openFtgsIterators = Sets.newConcurrentHashSet();
 
     public EZImhotepSession(ImhotepSession session) {
         this.session = session;
     }
 
     public StatReference pushStatGeneric(Stat stat) throws ImhotepOutOfMemoryException {
-        if(stat instanceof Stats.AggregateBinOpStat) {
-            return pushStatComposite((Stats.AggregateBinOpStat) stat);
-        } else {
-            return pushStat(stat);
-        }
+        return pushStats(Collections.singletonList(stat)).get(0);
     }
 
     public SingleStatReference pushStat(Stat stat) throws ImhotepOutOfMemoryException {
         if(stat instanceof Stats.AggregateBinOpStat) {
             throw new IllegalArgumentException("Aggregate operations have to be pushed with pushStatGeneric");
         }
-        final int initialDepth = stackDepth;
-        for (String statToPush : stat.pushes(this)) {
-            stackDepth = session.pushStat(statToPush);
+        return (SingleStatReference) pushStats(Collections.singletonList(stat)).get(0);
+    }
+
+    public CompositeStatReference pushStatComposite(Stats.AggregateBinOpStat stat) throws ImhotepOutOfMemoryException {
+        return (CompositeStatReference) pushStats(Collections.<Stat>singletonList(stat)).get(0);
+    }
+
+    /**
+     * Pushes the stats and returns a reference for each of them, every one of which has to be popped with popStat.
+     * A stat identical to one already on the stack shares its slot instead of being pushed again.
+     * Composite expressions that appear more than once in the stats are pushed once, cached and referenced from
+     * the stats that contain them so each of them is only evaluated once per document.
+     */
+    public List<StatReference> pushStats(List<Stat> stats) throws ImhotepOutOfMemoryException {
+        final Map<List<String>, Integer> expressionCounts = Maps.newLinkedHashMap();
+        for (Stat stat : stats) {
+            for (Stat slotStat : getSlotStats(stat)) {
+                countExpressions(slotStat, expressionCounts);
+            }
         }
-        if (initialDepth + 1 != stackDepth) {
-            throw new RuntimeException("Bug! Did not change stack depth by exactly 1.");
+        final List<List<String>> sharedExpressions = Lists.newArrayList();
+        for (Map.Entry<List<String>, Integer> entry : expressionCounts.entrySet()) {
+            if(entry.getValue() > 1 && !stackSlots.containsKey(entry.getKey())) {
+                sharedExpressions.add(entry.getKey());
+            }
         }
-        SingleStatReference statReference = new SingleStatReference(initialDepth, stat.toString(), this);
-        if(stat instanceof Stats.AggregateBinOpConstStat) { // hacks for handling division by a constant
-            final Stats.AggregateBinOpConstStat statAsConstAggregate = (Stats.AggregateBinOpConstStat) stat;
-            if(!"/".equals(statAsConstAggregate.getOp())) {
-                throw new IllegalArgumentException("Only aggregate division is currently supported");
+        // smaller expressions first so that the bigger ones can reference them
+        Collections.sort(sharedExpressions, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> o1, List<String> o2) {
+                return o1.size() - o2.size();
             }
-            statReference = new ConstantDivideSingleStatReference(statReference, statAsConstAggregate.getValue(), this);
+        });
+
+        // the slots of the shared expressions are popped together with the first of the stats
+        int entryStartDepth = stackDepth;
+        for (List<String> expression : sharedExpressions) {
+            final List<String> cachedExpression = Lists.newArrayList(expression);
+            cachedExpression.add("cached()");
+            pushSlot(expression, cachedExpression);
+        }
+
+        final List<StatReference> statReferences = Lists.newArrayListWithCapacity(stats.size());
+        for (Stat stat : stats) {
+            final StatReference statReference;
+            if(stat instanceof Stats.AggregateBinOpStat) {
+                final Stats.AggregateBinOpStat aggregateStat = (Stats.AggregateBinOpStat) stat;
+                final SingleStatReference stat1 = pushSlotStat(aggregateStat.statLeft, stat.toString());
+                final SingleStatReference stat2 = pushSlotStat(aggregateStat.statRight, stat.toString());
+                statReference = new CompositeStatReference(stat1, stat2);
+            } else if(stat instanceof Stats.AggregateBinOpConstStat) { // hacks for handling division by a constant
+                final Stats.AggregateBinOpConstStat statAsConstAggregate = (Stats.AggregateBinOpConstStat) stat;
+                if(!"/".equals(statAsConstAggregate.getOp())) {
+                    throw new IllegalArgumentException("Only aggregate division is currently supported");
+                }
+                final SingleStatReference stat1 = pushSlotStat(statAsConstAggregate.statLeft, stat.toString());
+                statReference = new ConstantDivideSingleStatReference(stat1, statAsConstAggregate.getValue(), this);
+            } else {
+                statReference = pushSlotStat(stat, stat.toString());
+            }
+            statStack.push(statReference);
+            statStackSlotCounts.push(stackDepth - entryStartDepth);
+            entryStartDepth = stackDepth;
+            statReferences.add(statReference);
         }
+        return statReferences;
+    }
 
-        statStack.push(statReference);
-        return statReference;
+    private static List<Stat> getSlotStats(Stat stat) {
+        if(stat instanceof Stats.AggregateBinOpStat) {
+            final Stats.AggregateBinOpStat aggregateStat = (Stats.AggregateBinOpStat) stat;
+            return Arrays.asList(aggregateStat.statLeft, aggregateStat.statRight);
+        } else if(stat instanceof Stats.AggregateBinOpConstStat) {
+            return Collections.singletonList(((Stats.AggregateBinOpConstStat) stat).statLeft);
+        }
+        return Collections.singletonList(stat);
     }
 
-    public CompositeStatReference pushStatComposite(Stats.AggregateBinOpStat stat) throws ImhotepOutOfMemoryException {
+    private void countExpressions(Stat stat, Map<List<String>, Integer> expressionCounts) {
+        final List<String> pushes = stat.pushes(this);
+        if(pushes.size() < 2 || hasStackReferences(pushes)) {
+            return; // only composite expressions are worth sharing
+        }
+        final Integer count = expressionCounts.get(pushes);
+        expressionCounts.put(pushes, count == null ? 1 : count + 1);
+        for (Stat child : stat.getChildren()) {
+            countExpressions(child, expressionCounts);
+        }
+    }
+
+    private SingleStatReference pushSlotStat(Stat stat, String stringRep) throws ImhotepOutOfMemoryException {
+        final List<String> pushes = stat.pushes(this);
+        final Integer depth = stackSlots.get(pushes);
+        if(depth != null) {
+            return new SingleStatReference(depth, stringRep, this);
+        }
+        return new SingleStatReference(pushSlot(pushes, pushes), stringRep, this);
+    }
+
+    /**
+     * Pushes the given stats taking exactly one slot on the stack and returns the depth of the slot.
+     * Parts of the stat that are composite expressions already on the stack are replaced with references to them.
+     * @param expression value of the slot used to match it with other stats
+     * @param pushes stats to push
+     */
+    private int pushSlot(List<String> expression, List<String> pushes) throws ImhotepOutOfMemoryException {
         final int initialDepth = stackDepth;
-        for (String statToPush : stat.pushes(this)) {
-            stackDepth = session.pushStat(statToPush);
+        if(hasStackReferences(pushes)) {
+            // references are relative to the depth the stat was built at so it can't be rewritten
+            for (String statToPush : pushes) {
+                stackDepth = session.pushStat(statToPush);
+            }
+        } else {
+            int i = 0;
+            while(i < pushes.size()) {
+                final List<String> sharedExpression = findLongestSlotExpression(pushes, i);
+                if(sharedExpression != null) {
+                    // a reference is relative to the top of the stack
+                    stackDepth = session.pushStat("ref " + (stackDepth - stackSlots.get(sharedExpression) - 1));
+                    i += sharedExpression.size();
+                } else {
+                    stackDepth = session.pushStat(pushes.get(i));
+                    i++;
+                }
+            }
+        }
+        if (initialDepth + 1 != stackDepth) {
+            throw new RuntimeException("Bug! Did not change stack depth by exactly 1.");
         }
-        if (initialDepth + 2 != stackDepth) {
-            throw new RuntimeException("Bug! Did not change stack depth by exactly 2.");
+        if(!hasStackReferences(expression) && !stackSlots.containsKey(expression)) {
+            stackSlots.put(expression, initialDepth);
         }
-        final SingleStatReference stat1 = new SingleStatReference(initialDepth, stat.toString(), this);
-        final SingleStatReference stat2 = new SingleStatReference(initialDepth + 1, stat.toString(), this);
-        final CompositeStatReference statReference = new CompositeStatReference(stat1, stat2);
-        statStack.push(statReference);
-        return statReference;
+        return initialDepth;
+    }
+
+    /**
+     * A well formed expression leaves exactly one value on the stack computed only from its own pushes
+     * so any occurrence of it can be replaced with a reference to a slot holding its value.
+     */
+    @Nullable
+    private List<String> findLongestSlotExpression(List<String> pushes, int start) {
+        List<String> longest = null;
+        for (List<String> expression : stackSlots.keySet()) {
+            final int end = start + expression.size();
+            if(expression.size() < 2 || end > pushes.size() || (longest != null && expression.size() <= longest.size())) {
+                continue;
+            }
+            if(pushes.subList(start, end).equals(expression)) {
+                longest = expression;
+            }
+        }
+        return longest;
+    }
+
+    private static boolean hasStackReferences(List<String> pushes) {
+        for (String push : pushes) {
+            if(push.startsWith("ref ")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public StatReference popStat() {
-        stackDepth = session.popStat();
+        final int slotCount = statStackSlotCounts.pop();
+        for (int i = 0; i < slotCount; i++) {
+            stackDepth = session.popStat();
+        }
+        final Iterator<Integer> slotDepths = stackSlots.values().iterator();
+        while(slotDepths.hasNext()) {
+            if(slotDepths.next() >= stackDepth) {
+                slotDepths.remove();
+            }
+        }
         final StatReference poppedStat = statStack.pop();
         poppedStat.invalidate();
         return poppedStat;
@@ -191,6 +334,7 @@ public class EZImhotepSession implements Closeable {
                 final String field = ftgsIterator.fieldName();
                 if (ftgsIterator.fieldIsIntType()) {
                     while (ftgsIterator.nextTerm()) {
+                        checkCancelled();
                         final long term = ftgsIterator.termIntVal();
 
                         while (ftgsIterator.nextGroup()) {
@@ -201,6 +345,7 @@ public class EZImhotepSession implements Closeable {
                     }
                 } else {
                     while (ftgsIterator.nextTerm()) {
+                        checkCancelled();
                         final String term = ftgsIterator.termStringVal();
                         while (ftgsIterator.nextGroup()) {
                             final int group = ftgsIterator.group();
@@ -211,15 +356,14 @@ public class EZImhotepSession implements Closeable {
                 }
             }
         } finally {
-            Closeables2.closeQuietly(ftgsIterator, log);
+            closeFtgsIterator(ftgsIterator);
         }
     }
 
     public <E> Iterator<E> ftgsGetSubsetIterator(Map<Field, List<?>> fieldsToTermsSubsets, final FTGSIteratingCallback<E> callback) {
         final FTGSIterator ftgsIterator = getFtgsSubsetIterator(fieldsToTermsSubsets);
 
-        // TODO: make sure ftgsIterator gets closed
-        return new FTGSCallbackIterator<E>(callback, ftgsIterator);
+        return new FTGSCallbackIterator<E>(this, callback, ftgsIterator);
     }
 
     private FTGSIterator getFtgsSubsetIterator(Map<Field, List<?>> fieldsToTermsSubsets) {
@@ -255,14 +399,13 @@ public class EZImhotepSession implements Closeable {
             }
         }
 
-        return session.getSubsetFTGSIterator(intFields, stringFields);
+        return openFtgsIterator(session.getSubsetFTGSIterator(intFields, stringFields));
     }
 
     public <E> Iterator<E> ftgsGetIterator(List<Field> fields, final FTGSIteratingCallback<E> callback) {
         final FTGSIterator ftgsIterator = getFtgsIterator(fields);
 
-        // TODO: make sure ftgsIterator gets closed
-        return new FTGSCallbackIterator<E>(callback, ftgsIterator);
+        return new FTGSCallbackIterator<E>(this, callback, ftgsIterator);
     }
 
     private FTGSIterator getFtgsIterator(List<Field> fields) {
@@ -276,87 +419,153 @@ public class EZImhotepSession implements Closeable {
             }
         }
 
-        return session.getFTGSIterator(
+        return openFtgsIterator(session.getFTGSIterator(
                 intFields.toArray(new String[intFields.size()]),
                 stringFields.toArray(new String[stringFields.size()])
-        );
+        ));
     }
 
-    public void filter(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+    private FTGSIterator openFtgsIterator(FTGSIterator ftgsIterator) {
+        openFtgsIterators.add(ftgsIterator);
+        if(cancelled) {
+            // cancelled while the iterator was being created
+            closeFtgsIterator(ftgsIterator);
+            checkCancelled();
         }
-        final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
-        final long[] longs = intTerms.toNativeArray();
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), longs, group, 0, group);
+        return ftgsIterator;
+    }
+
+    void closeFtgsIterator(FTGSIterator ftgsIterator) {
+        if(openFtgsIterators.remove(ftgsIterator)) {
+            Closeables2.closeQuietly(ftgsIterator, log);
         }
     }
 
-    public void filterNegation(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+    /**
+     * Stops the work of the query this session belongs to. Can be called from any thread.
+     * The open FTGS iterators and the Imhotep session are closed right away so that the daemons free their resources
+     * and the thread executing the query fails with a {@link CancellationException} on its next check or Imhotep call.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (FTGSIterator ftgsIterator : openFtgsIterators) {
+            closeFtgsIterator(ftgsIterator);
         }
-        final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
-        final long[] longs = intTerms.toNativeArray();
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), longs, group, group, 0);
+        close();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws a {@link CancellationException} if the session was cancelled.
+     */
+    public void checkCancelled() {
+        if(cancelled) {
+            throw new CancellationException("The query was cancelled");
         }
     }
 
+    public void filter(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
+        final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
+        filterTerms(field, intTerms.toNativeArray(), false);
+    }
+
+    public void filterNegation(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
+        final TLongArrayList intTerms = intFieldTerms(field, session, predicate);
+        filterTerms(field, intTerms.toNativeArray(), true);
+    }
+
     public void filter(IntField field, long[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), terms, group, 0, group);
-        }
+        filterTerms(field, terms, false);
     }
 
     public void filterNegation(IntField field, long[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
-        for (int group = 1; group < numGroups; group++) {
-            session.intOrRegroup(field.getFieldName(), terms, group, group, 0);
-        }
+        filterTerms(field, terms, true);
     }
 
     public void filter(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final List<String> stringTerms = stringFieldTerms(field, session, predicate);
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), group, 0, group);
-        }
+        filterTerms(field, stringTerms.toArray(new String[stringTerms.size()]), false);
     }
 
     public void filterNegation(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
         final List<String> stringTerms = stringFieldTerms(field, session, predicate);
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), stringTerms.toArray(new String[stringTerms.size()]), group, group, 0);
-        }
+        filterTerms(field, stringTerms.toArray(new String[stringTerms.size()]), true);
     }
 
     public void filter(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+        filterTerms(field, terms, false);
+    }
+
+    public void filterNegation(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
+        filterTerms(field, terms, true);
+    }
+
+    private void filterTerms(IntField field, long[] terms, boolean negation) throws ImhotepOutOfMemoryException {
+        if (numGroups > 2 && terms.length == 0) {
+            filterNoTerms(negation);
+            return;
         }
-        for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), terms, group, 0, group);
+        if (numGroups <= 2 || !canBatchFilter(terms.length)) {
+            for (int group = 1; group < numGroups; group++) {
+                session.intOrRegroup(field.getFieldName(), terms, group, negation ? group : 0, negation ? 0 : group);
+            }
+            return;
+        }
+        final RegroupCondition[] conditions = new RegroupCondition[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            conditions[i] = new RegroupCondition(field.getFieldName(), true, terms[i], null, false);
         }
+        filterAllGroups(conditions, negation);
     }
-    public void filterNegation(StringField field, String[] terms) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
+
+    private void filterTerms(StringField field, String[] terms, boolean negation) throws ImhotepOutOfMemoryException {
+        if (numGroups > 2 && terms.length == 0) {
+            filterNoTerms(negation);
+            return;
+        }
+        if (numGroups <= 2 || !canBatchFilter(terms.length)) {
+            for (int group = 1; group < numGroups; group++) {
+                session.stringOrRegroup(field.getFieldName(), terms, group, negation ? group : 0, negation ? 0 : group);
+            }
+            return;
+        }
+        final RegroupCondition[] conditions = new RegroupCondition[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            conditions[i] = new RegroupCondition(field.getFieldName(), false, 0, terms[i], false);
+        }
+        filterAllGroups(conditions, negation);
+    }
+
+    private boolean canBatchFilter(int termCount) {
+        return (long) termCount * (numGroups - 1) <= MAX_BATCHED_FILTER_CONDITIONS;
+    }
+
+    /**
+     * Filtering on an empty list of terms removes all documents and its negation doesn't remove any.
+     */
+    private void filterNoTerms(boolean negation) throws ImhotepOutOfMemoryException {
+        if (!negation) {
+            final SingleStatReference count = pushStat(counts());
+            filter(count, 0, 0);
+            popStat();
         }
+    }
+
+    /**
+     * Applies a term filter to all groups with a single regroup instead of one regroup per group.
+     * Documents matching any of the conditions stay in their group, or are removed from it for a negation.
+     */
+    private void filterAllGroups(RegroupCondition[] conditions, boolean negation) throws ImhotepOutOfMemoryException {
+        final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups - 1];
         for (int group = 1; group < numGroups; group++) {
-            session.stringOrRegroup(field.getFieldName(), terms, group, group, 0);
+            final int[] positiveGroups = new int[conditions.length];
+            Arrays.fill(positiveGroups, negation ? 0 : group);
+            rules[group - 1] = new GroupMultiRemapRule(group, negation ? group : 0, positiveGroups, conditions);
         }
+        numGroups = session.regroup(rules, false);
     }
 
     public void filter(SingleStatReference stat, long min, long max) throws ImhotepOutOfMemoryException {
@@ -372,7 +581,8 @@ public class EZImhotepSession implements Closeable {
 
     public void filter(Query query) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
-            System.err.println("WARNING: performing a query filter with more than one group. Consider filtering before regrouping.");
+            filterAllGroups(query, false);
+            return;
         }
         for (int group = 1; group < numGroups; group++) {
             session.regroup(new QueryRemapRule(group, query, 0, group));
@@ -381,22 +591,36 @@ public class EZImhotepSession implements Closeable {
 
     public void filterNegation(Query query) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
-            System.err.println("WARNING: performing a query filter with more than one group. Consider filtering before regrouping.");
+            filterAllGroups(query, true);
+            return;
         }
         for (int group = 1; group < numGroups; group++) {
             session.regroup(new QueryRemapRule(group, query, group, 0));
         }
     }
 
+    /**
+     * QueryRemapRule only applies to one group but the lucene metric is 1 for matching documents in every group
+     * so a metric filter on it covers all groups at once.
+     */
+    private void filterAllGroups(Query query, boolean negation) throws ImhotepOutOfMemoryException {
+        final SingleStatReference queryMatches = pushStat(lucene(query));
+        if (negation) {
+            filterNegation(queryMatches, 1, 1);
+        } else {
+            filter(queryMatches, 1, 1);
+        }
+        popStat();
+    }
+
     /**
      * @param field field to sample by
      * @param p ratio of terms to remove. In the range [0,1]
      * @param salt the salt to use for hashing. Providing a constant salt will lead to a reproducible result.
      */
     public void filterSample(Field field, double p, String salt) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
-        }
+        // terms are hashed on the daemons and there is no multi group version of randomRegroup
+        // so this still takes one call per group
         for (int group = 1; group < numGroups; group++) {
             session.randomRegroup(field.getFieldName(), field.isIntField(), salt, p, group, 0, group);
         }
@@ -407,9 +631,8 @@ public class EZImhotepSession implements Closeable {
      * @param regex regex to test with
      */
     public void filterRegex(Field field, String regex) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a filter with more than one group. Consider filtering before regrouping.");
-        }
+        // the regex is evaluated on the daemons and there is no multi group version of regexRegroup. looking up the
+        // matching terms here to filter all groups at once would take a pass over all the terms of the field
         for (int group = 1; group < numGroups; group++) {
             session.regexRegroup(field.getFieldName(), regex, group, 0, group);
         }
@@ -420,27 +643,26 @@ public class EZImhotepSession implements Closeable {
      * @param regex regex to test with
      */
     public void filterRegexNegation(Field field, String regex) throws ImhotepOutOfMemoryException {
-        if (numGroups > 2) {
-            System.err.println("WARNING: performing a filter with more than one group. Consider filtering before regrouping.");
-        }
         for (int group = 1; group < numGroups; group++) {
             session.regexRegroup(field.getFieldName(), regex, group, group, 0);
         }
     }
 
     public static Map<Integer, GroupKey> newGroupKeys() {
-        final Map<Integer, GroupKey> ret = Maps.newHashMap();
+        final Map<Integer, GroupKey> ret = new GroupKeyTable();
         ret.put(1, GroupKey.empty());
         return ret;
     }
 
     public @Nullable Map<Integer, GroupKey> explodeEachGroup(IntField field, long[] terms, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
         if(terms.length == 0) {
-            return Maps.newHashMap();
+            return new GroupKeyTable();
         }
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+        final Map<Integer, GroupKey> ret = groupKeys == null ? null : new GroupKeyTable((numGroups - 1) * terms.length);
+        // boxed once and shared by the keys of all the groups
+        final Object[] keyTerms = groupKeys == null ? null : Longs.asList(terms).toArray();
         int positiveGroup = 1;
         for (int group = 1; group < numGroups; group++) {
             final RegroupCondition[] conditions = new RegroupCondition[terms.length];
@@ -450,7 +672,7 @@ public class EZImhotepSession implements Closeable {
                 final int newGroup = positiveGroup++;
                 positiveGroups[i] = newGroup;
                 if (groupKeys != null) {
-                    ret.put(newGroup, groupKeys.get(group).add(term));
+                    ret.put(newGroup, groupKeys.get(group).add(keyTerms[i]));
                 }
                 conditions[i] = new RegroupCondition(field.getFieldName(), true, term, null, false);
             }
@@ -462,11 +684,11 @@ public class EZImhotepSession implements Closeable {
 
     public @Nullable Map<Integer, GroupKey> explodeEachGroup(StringField field, String[] terms, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
         if(terms.length == 0) {
-            return Maps.newHashMap();
+            return new GroupKeyTable();
         }
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+        final Map<Integer, GroupKey> ret = groupKeys == null ? null : new GroupKeyTable((numGroups - 1) * terms.length);
         int positiveGroup = 1;
         for (int group = 1; group < numGroups; group++) {
             final RegroupCondition[] conditions = new RegroupCondition[terms.length];
@@ -500,7 +722,7 @@ public class EZImhotepSession implements Closeable {
     }
 
     public @Nullable Map<Integer, GroupKey> splitAll(Field field, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+        final Map<Integer, GroupKey> ret = groupKeys == null ? null : new GroupKeyTable();
         if (field.isIntField()) {
             final IntField intField = (IntField) field;
             final TIntObjectHashMap<TLongArrayList> termListsMap = getIntGroupTerms(intField);
@@ -568,61 +790,39 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    private void checkGroupLimitForTerms(TIntObjectHashMap<Collection> groupToTerms) {
+    public @Nullable Map<Integer, GroupKey> splitAllTopK(Field field, @Nullable Map<Integer, GroupKey> groupKeys, int topK, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
+        final Map<Integer, GroupKey> ret = groupKeys == null ? null : new GroupKeyTable();
+        final TIntObjectHashMap<TopKHeap> termListsMap = getGroupTermsTopK(field, topK, stat, bottom);
         int newNumGroups = 0;
-        TIntObjectIterator<Collection> iterator = groupToTerms.iterator();
-        while(iterator.hasNext()) {
+        for (TIntObjectIterator<TopKHeap> iterator = termListsMap.iterator(); iterator.hasNext();) {
             iterator.advance();
-            Collection termsForGroup = iterator.value();
-            newNumGroups += termsForGroup.size();
+            newNumGroups += iterator.value().size();
         }
         checkGroupLimit(newNumGroups);
-    }
-
-    @SuppressWarnings("unchecked")
-    public @Nullable Map<Integer, GroupKey> splitAllTopK(Field field, @Nullable Map<Integer, GroupKey> groupKeys, int topK, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
-        if (field.isIntField()) {
-            final IntField intField = (IntField) field;
-            final TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> termListsMap = getIntGroupTermsTopK(intField, topK, stat, bottom);
-            checkGroupLimitForTerms((TIntObjectHashMap<Collection>)(Object) termListsMap);
-            final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
-            int ruleIndex = 0;
-            int positiveGroup = 1;
-            for (int group = 1; group < numGroups; group++) {
-                final PriorityQueue<Pair<Double, Long>> termList = termListsMap.get(group);
-                if (termList != null) {
-                    final long[] nativeArray = new long[termList.size()];
-                    int index = nativeArray.length-1;
-                    while (!termList.isEmpty()) {
-                        nativeArray[index--] = termList.remove().getSecond();
+        final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
+        int ruleIndex = 0;
+        int positiveGroup = 1;
+        for (int group = 1; group < numGroups; group++) {
+            final TopKHeap terms = termListsMap.get(group);
+            if (terms != null) {
+                final int[] slots = terms.drainBestFirst();
+                if (field.isIntField()) {
+                    final long[] nativeArray = new long[slots.length];
+                    for (int i = 0; i < slots.length; i++) {
+                        nativeArray[i] = terms.getIntTerm(slots[i]);
                     }
                     positiveGroup = getIntRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, nativeArray);
-                    ruleIndex++;
-                }
-            }
-            numGroups = session.regroup(rules, true);
-        } else {
-            final StringField stringField = (StringField) field;
-            final TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> termListsMap = getStringGroupTermsTopK(stringField, topK, stat, bottom);
-            checkGroupLimitForTerms((TIntObjectHashMap<Collection>)(Object)termListsMap);
-            final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
-            int ruleIndex = 0;
-            int positiveGroup = 1;
-            for (int group = 1; group < numGroups; group++) {
-                final PriorityQueue<Pair<Double, String>> terms = termListsMap.get(group);
-                if (terms != null) {
-                    final String[] termsArray = new String[terms.size()];
-                    int index = termsArray.length-1;
-                    while (!terms.isEmpty()) {
-                        termsArray[index--] = terms.remove().getSecond();
+                } else {
+                    final String[] termsArray = new String[slots.length];
+                    for (int i = 0; i < slots.length; i++) {
+                        termsArray[i] = terms.getStringTerm(slots[i]);
                     }
                     positiveGroup = getStringRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, Arrays.asList(termsArray));
-                    ruleIndex++;
                 }
+                ruleIndex++;
             }
-            numGroups = session.regroup(rules, true);
         }
+        numGroups = session.regroup(rules, true);
         return ret;
     }
 
@@ -689,21 +889,15 @@ public class EZImhotepSession implements Closeable {
     public Map<Integer, GroupKey> metricRegroup(SingleStatReference statRef, long min, long max, long intervalSize,
                                                 boolean noGutters, Stringifier<Long> stringifier,
                                                 @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = Maps.newHashMap();
-        final int gutterBuckets = noGutters ? 0 : 2;
-        final int numBuckets = (int)((max-min-1)/intervalSize + 1 + gutterBuckets);
+        final Map<Integer, GroupKey> ret = new GroupKeyTable();
+        // names of the buckets by bucket number, formatted once and shared by the keys of all the groups
+        final String[] bucketStrings = getMetricBucketNames(min, max, intervalSize, noGutters, stringifier);
+        final int numBuckets = bucketStrings.length - 1;
         for (int group = 1; group < numGroups; group++) {
-            int bucket = 1;
             int newGroupOffset = (group - 1) * numBuckets;
             final GroupKey<String> groupKey = groupKeys != null ? groupKeys.get(group) : GroupKey.empty();
-            for (long i = min; i < max; i += intervalSize, bucket++) {
-                final String bucketString = String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize));
-                ret.put(newGroupOffset + bucket, groupKey.add(bucketString));
-            }
-
-            if(!noGutters) {
-                ret.put(newGroupOffset + numBuckets - 1, groupKey.add(String.format("< %s", stringifier.toString(min))));
-                ret.put(newGroupOffset + numBuckets, groupKey.add(String.format(">= %s", stringifier.toString(max))));
+            for (int bucket = 1; bucket <= numBuckets; bucket++) {
+                ret.put(newGroupOffset + bucket, groupKey.add(bucketStrings[bucket]));
             }
         }
         final int newExpectedNumberOfGroups = (numGroups-1) * numBuckets;
@@ -715,30 +909,63 @@ public class EZImhotepSession implements Closeable {
         return ret;
     }
 
+    /**
+     * Returns the names of the buckets created by {@link #metricRegroup} indexed by bucket number starting at 1.
+     */
+    public static String[] getMetricBucketNames(long min, long max, long intervalSize, boolean noGutters, Stringifier<Long> stringifier) {
+        final int gutterBuckets = noGutters ? 0 : 2;
+        final int numBuckets = (int)((max-min-1)/intervalSize + 1 + gutterBuckets);
+        final String[] bucketStrings = new String[numBuckets + 1];
+        int bucket = 1;
+        for (long i = min; i < max; i += intervalSize, bucket++) {
+            bucketStrings[bucket] = String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize));
+        }
+        if(!noGutters) {
+            bucketStrings[numBuckets - 1] = String.format("< %s", stringifier.toString(min));
+            bucketStrings[numBuckets] = String.format(">= %s", stringifier.toString(max));
+        }
+        return bucketStrings;
+    }
+
     public Map<Integer, GroupKey> metricRegroup2D(SingleStatReference xStat, long xMin, long xMax, long xIntervalSize,
                                    SingleStatReference yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = Maps.newTreeMap();
+        final Map<Integer, GroupKey> ret = new GroupKeyTable();
         numGroups = session.metricRegroup2D(xStat.depth, xMin, xMax, xIntervalSize, yStat.depth, yMin, yMax, yIntervalSize);
+        final String[] bucketStrings = getMetricBucketNames2D(xMin, xMax, xIntervalSize, yMin, yMax, yIntervalSize);
+        final int numBuckets = bucketStrings.length - 1;
+        for (int group = 1; group < numGroups && group <= numBuckets; group++) {
+            if(bucketStrings[group] != null) {
+                ret.put(group, GroupKey.singleton(bucketStrings[group]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the names of the buckets created by {@link #metricRegroup2D} indexed by bucket number starting at 1.
+     */
+    public static String[] getMetricBucketNames2D(long xMin, long xMax, long xIntervalSize, long yMin, long yMax, long yIntervalSize) {
         final int xBuckets = (int)(((xMax - 1) - xMin) / xIntervalSize + 3);
         final int yBuckets = (int)(((yMax - 1) - yMin) / yIntervalSize + 3);
         final int numBuckets = xBuckets * yBuckets;
-        ret.put(1, GroupKey.singleton(String.format("< %d, < %d", xMin, yMin)));
-        ret.put(numBuckets, GroupKey.singleton(String.format(">= %d, >= %d", xMax, yMax)));
-        ret.put(xBuckets, GroupKey.singleton(String.format(">= %d, < %d", xMax, yMin)));
-        ret.put((yBuckets-1)*xBuckets+1, GroupKey.singleton(String.format("< %d, >= %d", xMin, yMax)));
+        final String[] bucketStrings = new String[numBuckets + 1];
+        bucketStrings[1] = String.format("< %d, < %d", xMin, yMin);
+        bucketStrings[numBuckets] = String.format(">= %d, >= %d", xMax, yMax);
+        bucketStrings[xBuckets] = String.format(">= %d, < %d", xMax, yMin);
+        bucketStrings[(yBuckets-1)*xBuckets+1] = String.format("< %d, >= %d", xMin, yMax);
         {
             int index = 2;
             for (long x = xMin; x < xMax; x+=xIntervalSize) {
-                ret.put(index, GroupKey.singleton(String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin)));
-                ret.put(index+(yBuckets-1)*xBuckets, GroupKey.singleton(String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax)));
+                bucketStrings[index] = String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin);
+                bucketStrings[index+(yBuckets-1)*xBuckets] = String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax);
                 index++;
             }
         }
         {
             int index = 1;
             for (long y = yMin; y < yMax; y+=yIntervalSize) {
-                ret.put(index*xBuckets+1, GroupKey.singleton(String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize)));
-                ret.put((index+1)*xBuckets, GroupKey.singleton(String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize)));
+                bucketStrings[index*xBuckets+1] = String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize);
+                bucketStrings[(index+1)*xBuckets] = String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize);
                 index++;
             }
         }
@@ -749,14 +976,11 @@ public class EZImhotepSession implements Closeable {
                 for (int yBucket = 1; yBucket < yBuckets-1; yBucket++) {
                     final long yStart = (yBucket-1)*yIntervalSize;
                     final long yEnd = yStart+yIntervalSize;
-                    ret.put(yBucket*xBuckets+xBucket, GroupKey.singleton(String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd)));
+                    bucketStrings[yBucket*xBuckets+xBucket] = String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd);
                 }
             }
         }
-        for (int group = numGroups; group <= numBuckets; group++) {
-            ret.remove(group);
-        }
-        return ret;
+        return bucketStrings;
     }
 
     public Map<String, Long> topTerms(StringField field, int k) {
@@ -815,9 +1039,7 @@ public class EZImhotepSession implements Closeable {
 
     private static final class GetGroupTermsCallbackTopK extends FTGSCallback {
 
-        final TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> intTermListsMap = new TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>>();
-        final TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> stringTermListsMap = new TIntObjectHashMap<PriorityQueue<Pair<Double, String>>>();
-        final Comparator<Pair> halfPairComparator;
+        final TIntObjectHashMap<TopKHeap> termListsMap = new TIntObjectHashMap<TopKHeap>();
         private final StatReference count;
         private final int k;
         private final boolean isBottom;
@@ -827,63 +1049,40 @@ public class EZImhotepSession implements Closeable {
             this.count = count;
             this.k = k;
             this.isBottom = isBottom;
-            final Comparator<Pair> baseComparator = new Pair.HalfPairComparator();
-            halfPairComparator = isBottom ? Collections.reverseOrder(baseComparator) : baseComparator;
         }
 
         public void intTermGroup(final String field, final long term, int group) {
-            PriorityQueue<Pair<Double, Long>> terms = intTermListsMap.get(group);
-            if (terms == null) {
-                terms = new PriorityQueue<Pair<Double, Long>>(10, halfPairComparator);
-                intTermListsMap.put(group, terms);
-            }
-            final Double count = getStat(this.count);
-            if (terms.size() < k) {
-                terms.add(Pair.of(count, term));
-            } else {
-                final Double headCount = terms.peek().getFirst();
-                if ((!isBottom && count > headCount) ||
-                        (isBottom && count < headCount)) {
-                    terms.remove();
-                    terms.add(Pair.of(count, term));
-                }
+            final TopKHeap terms = getTerms(group);
+            final int slot = terms.offer(getStat(this.count));
+            if (slot >= 0) {
+                terms.setIntTerm(slot, term);
             }
         }
 
         public void stringTermGroup(final String field, final String term, int group) {
-            PriorityQueue<Pair<Double, String>> terms = stringTermListsMap.get(group);
-            if (terms == null) {
-                terms = new PriorityQueue<Pair<Double, String>>(10, halfPairComparator);
-                stringTermListsMap.put(group, terms);
-            }
-            final Double count = getStat(this.count);
-            if (terms.size() < k) {
-                terms.add(Pair.of(count, term));
-            } else {
-                final Double headCount = terms.peek().getFirst();
-                if ((!isBottom && count > headCount) ||
-                        (isBottom && count < headCount)) {
-                    terms.remove();
-                    terms.add(Pair.of(count, term));
-                }
+            final TopKHeap terms = getTerms(group);
+            final int slot = terms.offer(getStat(this.count));
+            if (slot >= 0) {
+                terms.setStringTerm(slot, term);
             }
         }
-    }
 
-    private TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> getStringGroupTermsTopK(StringField field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
-        final StatReference statRef = pushStat(stat);
-        final GetGroupTermsCallbackTopK callback = new GetGroupTermsCallbackTopK(stackDepth, statRef, k, bottom);
-        ftgsIterate(Arrays.asList((Field)field), callback);
-        popStat();
-        return callback.stringTermListsMap;
+        private TopKHeap getTerms(int group) {
+            TopKHeap terms = termListsMap.get(group);
+            if (terms == null) {
+                terms = new TopKHeap(k, isBottom, 0);
+                termListsMap.put(group, terms);
+            }
+            return terms;
+        }
     }
 
-    private TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> getIntGroupTermsTopK(IntField field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
+    private TIntObjectHashMap<TopKHeap> getGroupTermsTopK(Field field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
         final StatReference statRef = pushStat(stat);
         final GetGroupTermsCallbackTopK callback = new GetGroupTermsCallbackTopK(stackDepth, statRef, k, bottom);
-        ftgsIterate(Arrays.asList((Field)field), callback);
+        ftgsIterate(Arrays.asList(field), callback);
         popStat();
-        return callback.intTermListsMap;
+        return callback.termListsMap;
     }
 
     public static void filter(StringField field, String[] terms, ImhotepSession session) throws ImhotepOutOfMemoryException {
@@ -988,7 +1187,7 @@ public class EZImhotepSession implements Closeable {
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
         if (!closed) {
             session.close();
             closed = true;
@@ -32,10 +32,15 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
     boolean fieldOver = true;
     boolean termOver = true;
 
+    private final EZImhotepSession session;
     private final EZImhotepSession.FTGSIteratingCallback<E> callback;
     private final FTGSIterator ftgsIterator;
 
-    public FTGSCallbackIterator(EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator) {
+    /**
+     * @param session the session the iterator was created by. Checked for cancellation and used to close the iterator
+     */
+    public FTGSCallbackIterator(EZImhotepSession session, EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator) {
+        this.session = session;
         this.callback = callback;
         this.ftgsIterator = ftgsIterator;
     }
@@ -51,6 +56,7 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
             }
             while (!termOver || ftgsIterator.nextTerm()) {
                 if(termOver) {
+                    session.checkCancelled();
                     if(isIntField) {
                         termInt = ftgsIterator.termIntVal();
                     } else {
@@ -71,6 +77,7 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
             }
             fieldOver = true;
         }
+        session.closeFtgsIterator(ftgsIterator);
         return endOfData();
     }
 }
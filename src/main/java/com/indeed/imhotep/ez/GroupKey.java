@@ -13,7 +13,8 @@
  */
  package com.indeed.imhotep.ez;
 
-import com.google.common.collect.AbstractIterator;
+import com.google.common.base.Objects;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import org.apache.log4j.Logger;
 
@@ -21,13 +22,18 @@ import javax.annotation.Nullable;
 import java.util.Iterator;
 
 /**
+ * Terms and buckets of the groupings that led to a group, from the first grouping to the last.
+ * Each key only holds its last element and points to the key of the group it was split from, so the keys created by
+ * a regroup share the keys of their parent groups instead of copying them.
  * @author jplaisance
  */
 public final class GroupKey<E> implements Iterable<E> {
     private static final Logger log = Logger.getLogger(GroupKey.class);
 
-    private final @Nullable List<E> front;
-    private final @Nullable List<E> back;
+    private final @Nullable GroupKey<E> parent;
+    private final @Nullable E last;
+    private final int size;
+    private final int hashCode;
 
     private static final GroupKey EMPTY = new GroupKey(null, null);
 
@@ -39,85 +45,66 @@ public final class GroupKey<E> implements Iterable<E> {
         return EMPTY.add(e);
     }
 
-    private GroupKey(final @Nullable List<E> front, final @Nullable List<E> back) {
-        this.front = front;
-        this.back = back;
+    private GroupKey(final @Nullable GroupKey<E> parent, final @Nullable E last) {
+        this.parent = parent;
+        this.last = last;
+        if (parent == null) {
+            size = 0;
+            hashCode = 1;
+        } else {
+            size = parent.size + 1;
+            hashCode = 31 * parent.hashCode + (last != null ? last.hashCode() : 0);
+        }
     }
 
+    @SuppressWarnings("unchecked")
     public Iterator<E> iterator() {
-        return new AbstractIterator<E>() {
-            GroupKey<E> current = GroupKey.this;
-
-            protected E computeNext() {
-                if (current.isEmpty()) return endOfData();
-                final E ret = current.head();
-                current = current.tail();
-                return ret;
-            }
-        };
+        return (Iterator<E>) Iterators.forArray(toArray());
     }
 
-    private static final class List<E> {
-        private final E head;
-
-        private final List<E> tail;
-
-        private List(final E head, final @Nullable List<E> tail) {
-            this.head = head;
-            this.tail = tail;
-        }
-
-        public boolean equals(final Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            final List list = (List) o;
-
-            if (head != null ? !head.equals(list.head) : list.head != null) return false;
-            if (tail != null ? !tail.equals(list.tail) : list.tail != null) return false;
-
-            return true;
-        }
-
-        public int hashCode() {
-            int result = head != null ? head.hashCode() : 0;
-            result = 31 * result + (tail != null ? tail.hashCode() : 0);
-            return result;
+    private Object[] toArray() {
+        final Object[] elements = new Object[size];
+        GroupKey<E> current = this;
+        for (int i = size - 1; i >= 0; i--) {
+            elements[i] = current.last;
+            current = current.parent;
         }
+        return elements;
     }
 
     public E head() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no head");
-            List<E> ptr = back;
-            while (ptr.tail != null) {
-                ptr = ptr.tail;
-            }
-            return ptr.head;
+        if (isEmpty()) throw new IllegalStateException("empty key has no head");
+        GroupKey<E> current = this;
+        while (current.size > 1) {
+            current = current.parent;
         }
-        return front.head;
+        return current.last;
     }
 
+    @SuppressWarnings("unchecked")
     public GroupKey<E> tail() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no tail");
-            List<E> reversed = null;
-            List<E> current = back;
-            while (current.tail != null) {
-                reversed = new List<E>(current.head, reversed);
-                current = current.tail;
-            }
-            return new GroupKey<E>(reversed, null);
+        if (isEmpty()) throw new IllegalStateException("empty key has no tail");
+        final Object[] elements = toArray();
+        GroupKey<E> tail = EMPTY;
+        for (int i = 1; i < elements.length; i++) {
+            tail = tail.add((E) elements[i]);
         }
-        return new GroupKey<E>(front.tail, back);
+        return tail;
     }
 
     public GroupKey<E> add(E e) {
-        return new GroupKey<E>(front, new List<E>(e, back));
+        return new GroupKey<E>(this, e);
     }
 
     public boolean isEmpty() {
-        return front == null && back == null;
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of elements in the key.
+     */
+    public int size() {
+        return size;
     }
 
     public String toString() {
@@ -128,17 +115,19 @@ public final class GroupKey<E> implements Iterable<E> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
-        final GroupKey groupKey = (GroupKey) o;
-
-        if (back != null ? !back.equals(groupKey.back) : groupKey.back != null) return false;
-        if (front != null ? !front.equals(groupKey.front) : groupKey.front != null) return false;
-
+        GroupKey current = this;
+        GroupKey other = (GroupKey) o;
+        if (size != other.size || hashCode != other.hashCode) return false;
+        // stops at the first parent key the two share
+        while (current != other) {
+            if (!Objects.equal(current.last, other.last)) return false;
+            current = current.parent;
+            other = other.parent;
+        }
         return true;
     }
 
     public int hashCode() {
-        int result = front != null ? front.hashCode() : 0;
-        result = 31 * result + (back != null ? back.hashCode() : 0);
-        return result;
+        return hashCode;
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Maps;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Keys of the groups of a session by group number.
+ * Group numbers are dense and start at 1 so the keys are kept in an array indexed by the group number instead of
+ * a hash map with an entry and a boxed number for every group. Iterates in the order of the group numbers.
+ */
+public final class GroupKeyTable extends AbstractMap<Integer, GroupKey> {
+    private GroupKey[] keys;
+    private int size = 0;
+
+    public GroupKeyTable() {
+        this(16);
+    }
+
+    public GroupKeyTable(int expectedGroups) {
+        keys = new GroupKey[expectedGroups + 1];
+    }
+
+    @Override
+    public GroupKey get(Object group) {
+        if (!(group instanceof Integer)) {
+            return null;
+        }
+        final int index = (Integer) group;
+        return index > 0 && index < keys.length ? keys[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object group) {
+        return get(group) != null;
+    }
+
+    @Override
+    public GroupKey put(Integer group, GroupKey key) {
+        Preconditions.checkArgument(group > 0, "Group numbers start at 1");
+        Preconditions.checkNotNull(key);
+        if (group >= keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(group + 1, keys.length * 2));
+        }
+        final GroupKey previous = keys[group];
+        keys[group] = key;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    @Override
+    public GroupKey remove(Object group) {
+        final GroupKey previous = get(group);
+        if (previous != null) {
+            keys[(Integer) group] = null;
+            size--;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<Integer, GroupKey>> entrySet() {
+        return new AbstractSet<Entry<Integer, GroupKey>>() {
+            @Override
+            public Iterator<Entry<Integer, GroupKey>> iterator() {
+                return new AbstractIterator<Entry<Integer, GroupKey>>() {
+                    private int group = 0;
+
+                    @Override
+                    protected Entry<Integer, GroupKey> computeNext() {
+                        while (++group < keys.length) {
+                            if (keys[group] != null) {
+                                return Maps.immutableEntry(group, keys[group]);
+                            }
+                        }
+                        return endOfData();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -20,7 +20,9 @@ import com.indeed.imhotep.marshal.ImhotepClientMarshaller;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import org.apache.commons.codec.binary.Base64;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -29,6 +31,13 @@ import java.util.List;
 public class Stats {
     public static abstract class Stat {
         protected abstract List<String> pushes(EZImhotepSession session);
+
+        /**
+         * Returns the stats that are pushed as part of this one so that shared sub-expressions can be found.
+         */
+        List<Stat> getChildren() {
+            return Collections.emptyList();
+        }
     }
 
     public static class IntFieldStat extends Stat {
@@ -74,12 +83,46 @@ public class Stats {
         }
     }
 
+    /**
+     * Returns true if the value of the stat for a group over a set of documents is the sum of its values over any
+     * partitioning of these documents, which is the case for everything computed on the Imhotep side.
+     * Client side aggregate operations like the division of two stats are not additive.
+     */
+    public static boolean isAdditive(Stat stat) {
+        return !(stat instanceof AggregateBinOpStat);
+    }
+
     static void requireValid(StatReference ref) {
         if (!ref.isValid()) {
             throw new IllegalArgumentException("Stat reference is no longer valid!");
         }
     }
 
+    /**
+     * Returns the stats pushed to the Imhotep session for the stat. Stats with the same pushes compute the same values.
+     * Returns null for aggregate stats, which are computed from more than one slot, and for stats that reference
+     * slots of the stack as their pushes depend on what else is on the stack.
+     */
+    @Nullable
+    public static List<String> getPushes(Stat stat) {
+        if(stat instanceof AggregateBinOpStat || stat instanceof AggregateBinOpConstStat || hasStackReferences(stat)) {
+            return null;
+        }
+        return stat.pushes(null);
+    }
+
+    private static boolean hasStackReferences(Stat stat) {
+        if(stat instanceof StatRefStat) {
+            return true;
+        }
+        for (Stat child : stat.getChildren()) {
+            if(hasStackReferences(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     static void requireValid(DynamicMetric metric) {
         if (!metric.valid) {
             throw new IllegalArgumentException("Dynamic metric "+metric+"is not valid anymore.");
@@ -113,6 +156,11 @@ public class Stats {
             return ret;
         }
 
+        @Override
+        List<Stat> getChildren() {
+            return stats;
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
@@ -215,6 +263,10 @@ public class Stats {
             return prev;
         }
         @Override
+        List<Stat> getChildren() {
+            return Collections.singletonList(stat);
+        }
+        @Override
         public String toString() {
             return "exp("+stat.toString()+", " + scaleFactor + ")";
         }
@@ -310,6 +362,10 @@ public class Stats {
             ret.add("cached()");
             return ret;
         }
+        @Override
+        List<Stat> getChildren() {
+            return Collections.singletonList(stat);
+        }
     }
 
     public static class AbsoluteValueStat extends Stat {
@@ -323,6 +379,10 @@ public class Stats {
             ret.add("abs()");
             return ret;
         }
+        @Override
+        List<Stat> getChildren() {
+            return Collections.singletonList(stat);
+        }
     }
 
     public static class FloatScaleStat extends Stat {
@@ -358,6 +418,10 @@ public class Stats {
             ret.add("mulshr " + shift);
             return ret;
         }
+        @Override
+        List<Stat> getChildren() {
+            return Arrays.asList(stat1, stat2);
+        }
     }
 
     public static class ShiftLeftDivide extends Stat {
@@ -377,5 +441,9 @@ public class Stats {
             ret.add("shldiv " + shift);
             return ret;
         }
+        @Override
+        List<Stat> getChildren() {
+            return Arrays.asList(stat1, stat2);
+        }
     }
 }
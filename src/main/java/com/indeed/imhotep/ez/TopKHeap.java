@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the k best scored terms of a group along with their stats in primitive arrays.
+ * Each kept term has a slot that holds its term and stats. Offering a term that beats the worst kept one reuses the
+ * slot of the worst one, so terms are collected without allocating anything per term once k terms are kept.
+ * NaN scores rank below all the others.
+ */
+public final class TopKHeap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int k;
+    private final boolean isBottom;
+    private final int statCount;
+    // scores and slots in heap order with the worst term at the root
+    private double[] scores;
+    private int[] slots;
+    private int size = 0;
+    // by slot
+    private long[] intTerms;
+    private String[] stringTerms;
+    private double[] stats;
+
+    /**
+     * @param isBottom whether the lowest scores are the best
+     * @param statCount number of stats kept for each term
+     */
+    public TopKHeap(int k, boolean isBottom, int statCount) {
+        this.k = k;
+        this.isBottom = isBottom;
+        this.statCount = statCount;
+        final int capacity = Math.min(k, INITIAL_CAPACITY);
+        scores = new double[capacity];
+        slots = new int[capacity];
+        stats = new double[capacity * statCount];
+    }
+
+    /**
+     * Offers a term with the score.
+     * Returns the slot that the term and its stats have to be set to or -1 if the term isn't among the top k.
+     */
+    public int offer(double score) {
+        if (size < k) {
+            if (size == scores.length) {
+                grow();
+            }
+            final int slot = size;
+            scores[size] = score;
+            slots[size] = slot;
+            siftUp(size);
+            size++;
+            return slot;
+        }
+        if (size == 0 || !isBetter(score, scores[0])) {
+            return -1;
+        }
+        // replaces the worst term
+        final int slot = slots[0];
+        scores[0] = score;
+        siftDown(0);
+        return slot;
+    }
+
+    public void setIntTerm(int slot, long term) {
+        if (intTerms == null) {
+            intTerms = new long[scores.length];
+        }
+        intTerms[slot] = term;
+    }
+
+    public void setStringTerm(int slot, String term) {
+        if (stringTerms == null) {
+            stringTerms = new String[scores.length];
+        }
+        stringTerms[slot] = term;
+    }
+
+    public void setStat(int slot, int statIndex, double value) {
+        stats[slot * statCount + statIndex] = value;
+    }
+
+    public long getIntTerm(int slot) {
+        return intTerms[slot];
+    }
+
+    public String getStringTerm(int slot) {
+        return stringTerms[slot];
+    }
+
+    /**
+     * Returns a copy of the stats of the term in the slot.
+     */
+    public double[] getStats(int slot) {
+        return Arrays.copyOfRange(stats, slot * statCount, (slot + 1) * statCount);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slots of the kept terms from the best to the worst and empties the heap.
+     */
+    public int[] drainBestFirst() {
+        final int[] ret = new int[size];
+        for (int i = ret.length - 1; i >= 0; i--) {
+            ret[i] = slots[0];
+            size--;
+            scores[0] = scores[size];
+            slots[0] = slots[size];
+            siftDown(0);
+        }
+        return ret;
+    }
+
+    private boolean isBetter(double a, double b) {
+        if (Double.isNaN(a)) {
+            return false;
+        }
+        if (Double.isNaN(b)) {
+            return true;
+        }
+        return isBottom ? a < b : a > b;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            final int parent = (position - 1) / 2;
+            if (!isBetter(scores[parent], scores[position])) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            final int left = 2 * position + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int worseChild = right < size && isBetter(scores[left], scores[right]) ? right : left;
+            if (!isBetter(scores[position], scores[worseChild])) {
+                return;
+            }
+            swap(position, worseChild);
+            position = worseChild;
+        }
+    }
+
+    private void swap(int a, int b) {
+        final double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        final int slot = slots[a];
+        slots[a] = slots[b];
+        slots[b] = slot;
+    }
+
+    private void grow() {
+        final int capacity = (int) Math.min(k, Math.max(1, scores.length * 2L));
+        scores = Arrays.copyOf(scores, capacity);
+        slots = Arrays.copyOf(slots, capacity);
+        stats = Arrays.copyOf(stats, capacity * statCount);
+        if (intTerms != null) {
+            intTerms = Arrays.copyOf(intTerms, capacity);
+        }
+        if (stringTerms != null) {
+            stringTerms = Arrays.copyOf(stringTerms, capacity);
+        }
+    }
+}
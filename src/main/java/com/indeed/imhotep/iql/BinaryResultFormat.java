@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.cache.CacheOutputStream;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary representation of query results used in the query cache. The output formats (TSV, CSV) are rendered from it
+ * so a single cached copy serves all of them.
+ * <p>
+ * The rows are stored in blocks of up to {@link #BLOCK_SIZE} rows that have the same number of group key elements
+ * and stats. Each block starts with a dictionary of the distinct group key elements in it followed by a column of
+ * dictionary ids for each group key level and a column of raw doubles for each stat.
+ * The blocks are followed by a footer with the offset and row count of each block and the total row count.
+ * The footer is also stored separately as the {@link Index} of the results so that readers can start at any row
+ * without decoding the blocks before it.
+ * <pre>
+ * file:   MAGIC VERSION block* 0 footer footerOffset:long MAGIC
+ * block:  rowCount:int keyLength:int statCount:int termCount:int term* (id:int * rowCount)* (double * rowCount)*
+ * footer: blockCount:int (offset:long rowCount:int)* totalRows:long
+ * </pre>
+ */
+public final class BinaryResultFormat {
+    private static final Logger log = Logger.getLogger(BinaryResultFormat.class);
+    private static final int MAGIC = 0x49514c52;    // "IQLR"
+    private static final byte VERSION = 1;
+    static final int BLOCK_SIZE = 4096;
+    private static final int IO_BUFFER_SIZE = 65536;
+    // MAGIC VERSION
+    private static final int HEADER_SIZE = 5;
+
+    public static final String FILE_SUFFIX = ".bin";
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+
+    private BinaryResultFormat() {
+    }
+
+    /**
+     * Writes all the rows and closes the output stream. Returns the index of the written rows.
+     */
+    public static Index write(Iterator<GroupStats> rows, OutputStream out) throws IOException {
+        final Writer writer = new Writer(out);
+        boolean success = false;
+        try {
+            while(rows.hasNext()) {
+                writer.add(rows.next());
+            }
+            writer.close();
+            success = true;
+        } finally {
+            if(!success) {
+                writer.abort();
+            }
+        }
+        return writer.getIndex();
+    }
+
+    /**
+     * Returns an iterator over the rows in the stream. The stream is closed when the iterator is exhausted or closed.
+     */
+    public static Reader read(InputStream in) throws IOException {
+        return new Reader(in);
+    }
+
+    /**
+     * Returns an iterator over the rows in the stream starting at firstRow.
+     * The blocks before the one that has firstRow are skipped without being decoded.
+     */
+    public static Reader read(InputStream in, Index index, long firstRow) throws IOException {
+        final Reader reader = new Reader(in);
+        try {
+            reader.seek(index, firstRow);
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Reads the index from the footer of a complete results file.
+     */
+    public static Index readIndex(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final long length = in.length();
+            // footerOffset:long MAGIC
+            if(length < HEADER_SIZE + 12) {
+                throw new IOException("Binary result file is truncated: " + file.getPath());
+            }
+            in.seek(length - 12);
+            final long footerOffset = in.readLong();
+            if(in.readInt() != MAGIC || footerOffset < HEADER_SIZE || footerOffset >= length) {
+                throw new IOException("Binary result file is truncated: " + file.getPath());
+            }
+            in.seek(footerOffset);
+            return Index.readFrom(in);
+        } finally {
+            Closeables2.closeQuietly(in, log);
+        }
+    }
+
+    /**
+     * Offset and first row of each block of a results stream.
+     * Stored in the same format as the footer of the stream:
+     * <pre>
+     * index: blockCount:int (offset:long rowCount:int)* totalRows:long
+     * </pre>
+     */
+    public static final class Index {
+        private final long[] blockOffsets;
+        private final long[] blockFirstRows;
+        private final long totalRows;
+
+        private Index(long[] blockOffsets, long[] blockFirstRows, long totalRows) {
+            this.blockOffsets = blockOffsets;
+            this.blockFirstRows = blockFirstRows;
+            this.totalRows = totalRows;
+        }
+
+        public long getTotalRows() {
+            return totalRows;
+        }
+
+        /**
+         * Returns the block that has the row. The row has to be less than the total row count.
+         */
+        private int findBlock(long row) {
+            int low = 0;
+            int high = blockFirstRows.length - 1;
+            while(low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if(blockFirstRows[mid] <= row) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Writes the index and closes the stream.
+         */
+        public void write(OutputStream out) throws IOException {
+            final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            boolean success = false;
+            try {
+                writeTo(dataOut);
+                dataOut.flush();
+                success = true;
+            } finally {
+                if(!success) {
+                    discard(out);
+                }
+            }
+            dataOut.close();
+        }
+
+        /**
+         * Reads an index written by {@link #write(OutputStream)} and closes the stream.
+         */
+        public static Index read(InputStream in) throws IOException {
+            final DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+            try {
+                return readFrom(dataIn);
+            } finally {
+                Closeables2.closeQuietly(dataIn, log);
+            }
+        }
+
+        private void writeTo(DataOutput out) throws IOException {
+            out.writeInt(blockOffsets.length);
+            for (int i = 0; i < blockOffsets.length; i++) {
+                out.writeLong(blockOffsets[i]);
+                final long blockEnd = i + 1 < blockOffsets.length ? blockFirstRows[i + 1] : totalRows;
+                out.writeInt((int) (blockEnd - blockFirstRows[i]));
+            }
+            out.writeLong(totalRows);
+        }
+
+        private static Index readFrom(DataInput in) throws IOException {
+            final int blockCount = in.readInt();
+            if(blockCount < 0) {
+                throw new IOException("Corrupted binary result index");
+            }
+            final long[] blockOffsets = new long[blockCount];
+            final long[] blockFirstRows = new long[blockCount];
+            long rows = 0;
+            for (int i = 0; i < blockCount; i++) {
+                blockOffsets[i] = in.readLong();
+                blockFirstRows[i] = rows;
+                rows += in.readInt();
+            }
+            final long totalRows = in.readLong();
+            if(totalRows != rows) {
+                throw new IOException("Corrupted binary result index");
+            }
+            return new Index(blockOffsets, blockFirstRows, totalRows);
+        }
+    }
+
+    /**
+     * Releases the stream of results that failed to be written. Query cache streams are discarded as closing them
+     * would commit the incomplete results to the cache.
+     */
+    private static void discard(OutputStream out) {
+        if(out instanceof CacheOutputStream) {
+            ((CacheOutputStream) out).discard();
+        } else {
+            Closeables2.closeQuietly(out, log);
+        }
+    }
+
+    public static final class Writer implements Closeable {
+        private final OutputStream rawOut;
+        private final CountingOutputStream countingOut;
+        private final DataOutputStream out;
+        private final List<GroupStats> block = Lists.newArrayListWithCapacity(BLOCK_SIZE);
+        private final List<Long> blockOffsets = Lists.newArrayList();
+        private final List<Integer> blockRowCounts = Lists.newArrayList();
+        private int blockKeyLength;
+        private int blockStatCount;
+        private long rowCount = 0;
+        private boolean closed = false;
+
+        public Writer(OutputStream out) throws IOException {
+            rawOut = out;
+            countingOut = new CountingOutputStream(new BufferedOutputStream(out, IO_BUFFER_SIZE));
+            this.out = new DataOutputStream(countingOut);
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+
+        public void add(GroupStats row) throws IOException {
+            if(row == null) {
+                return;
+            }
+            final int keyLength = getKeyLength(row.groupKey);
+            if(!block.isEmpty() && (keyLength != blockKeyLength || row.stats.length != blockStatCount)) {
+                flushBlock();
+            }
+            if(block.isEmpty()) {
+                blockKeyLength = keyLength;
+                blockStatCount = row.stats.length;
+            }
+            block.add(row);
+            rowCount++;
+            if(block.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Returns the index of the written rows. Only available after the writer was closed.
+         */
+        public Index getIndex() {
+            if(!closed) {
+                throw new IllegalStateException("The index is only available once all the rows are written");
+            }
+            final int blockCount = blockOffsets.size();
+            final long[] offsets = new long[blockCount];
+            final long[] firstRows = new long[blockCount];
+            long rows = 0;
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = blockOffsets.get(i);
+                firstRows[i] = rows;
+                rows += blockRowCounts.get(i);
+            }
+            return new Index(offsets, firstRows, rowCount);
+        }
+
+        private void flushBlock() throws IOException {
+            if(block.isEmpty()) {
+                return;
+            }
+            out.flush();
+            blockOffsets.add(countingOut.getCount());
+            blockRowCounts.add(block.size());
+
+            final int rows = block.size();
+            final int[][] ids = new int[blockKeyLength][rows];
+            final Map<Object, Integer> dictionary = Maps.newHashMap();
+            final List<Object> terms = Lists.newArrayList();
+            for (int row = 0; row < rows; row++) {
+                int level = 0;
+                for (Object element : (Iterable<?>) block.get(row).groupKey) {
+                    Integer id = dictionary.get(element);
+                    if(id == null) {
+                        id = terms.size();
+                        dictionary.put(element, id);
+                        terms.add(element);
+                    }
+                    ids[level++][row] = id;
+                }
+            }
+
+            out.writeInt(rows);
+            out.writeInt(blockKeyLength);
+            out.writeInt(blockStatCount);
+            out.writeInt(terms.size());
+            for (Object term : terms) {
+                GroupStatsSerializer.writeKeyElement(out, term);
+            }
+            for (int[] levelIds : ids) {
+                for (int id : levelIds) {
+                    out.writeInt(id);
+                }
+            }
+            for (int stat = 0; stat < blockStatCount; stat++) {
+                for (GroupStats row : block) {
+                    out.writeDouble(row.stats[stat]);
+                }
+            }
+            block.clear();
+        }
+
+        /**
+         * Releases the stream without writing the footer. Query cache streams are discarded so that the incomplete
+         * results are never cached and readers of other streams fail on the missing footer.
+         */
+        public void abort() {
+            closed = true;
+            discard(rawOut);
+        }
+
+        /**
+         * Writes the footer. Has to be called for the results to be readable.
+         */
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            boolean success = false;
+            try {
+                flushBlock();
+                out.writeInt(0);    // end of blocks
+                out.flush();
+                final long footerOffset = countingOut.getCount();
+                getIndex().writeTo(out);
+                out.writeLong(footerOffset);
+                out.writeInt(MAGIC);
+                out.flush();
+                success = true;
+            } finally {
+                if(!success) {
+                    discard(rawOut);
+                }
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the rows block by block. Only one block is kept in memory at a time.
+     */
+    public static final class Reader implements Iterator<GroupStats>, Closeable {
+        private final DataInputStream in;
+        private List<Object> terms;
+        private int[][] ids;
+        private double[][] stats;
+        private int blockRows = 0;
+        private int blockStatCount = 0;
+        private int position = 0;
+        private boolean done = false;
+        private long totalRows = -1;
+
+        private Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, IO_BUFFER_SIZE));
+            try {
+                if(this.in.readInt() != MAGIC) {
+                    throw new IOException("Not a binary result stream");
+                }
+                final byte version = this.in.readByte();
+                if(version != VERSION) {
+                    throw new IOException("Unsupported binary result version " + version);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to firstRow by skipping the blocks before it. Has to be called before any rows are read.
+         */
+        private void seek(Index index, long firstRow) throws IOException {
+            if(firstRow <= 0) {
+                return;
+            }
+            if(firstRow >= index.getTotalRows()) {
+                done = true;
+                totalRows = index.getTotalRows();
+                close();
+                return;
+            }
+            final int block = index.findBlock(firstRow);
+            ByteStreams.skipFully(in, index.blockOffsets[block] - HEADER_SIZE);
+            readBlock();
+            position = (int) (firstRow - index.blockFirstRows[block]);
+        }
+
+        /**
+         * Returns the total number of rows. Only available after all the rows were read.
+         */
+        public long getTotalRows() {
+            return totalRows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(position < blockRows) {
+                return true;
+            }
+            if(done) {
+                return false;
+            }
+            try {
+                readBlock();
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+            return position < blockRows;
+        }
+
+        @Override
+        public GroupStats next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            GroupKey groupKey = GroupKey.empty();
+            for (int[] levelIds : ids) {
+                groupKey = groupKey.add(terms.get(levelIds[position]));
+            }
+            final double[] rowStats = new double[blockStatCount];
+            for (int stat = 0; stat < blockStatCount; stat++) {
+                rowStats[stat] = stats[stat][position];
+            }
+            position++;
+            return new GroupStats(groupKey, rowStats);
+        }
+
+        private void readBlock() throws IOException {
+            final int rows = in.readInt();
+            if(rows == 0) {
+                readFooter();
+                done = true;
+                blockRows = 0;
+                position = 0;
+                close();
+                return;
+            }
+            final int keyLength = in.readInt();
+            blockStatCount = in.readInt();
+            final int termCount = in.readInt();
+            terms = Lists.newArrayListWithCapacity(termCount);
+            for (int i = 0; i < termCount; i++) {
+                terms.add(GroupStatsSerializer.readKeyElement(in));
+            }
+            ids = new int[keyLength][rows];
+            for (int level = 0; level < keyLength; level++) {
+                for (int row = 0; row < rows; row++) {
+                    ids[level][row] = in.readInt();
+                }
+            }
+            stats = new double[blockStatCount][rows];
+            for (int stat = 0; stat < blockStatCount; stat++) {
+                for (int row = 0; row < rows; row++) {
+                    stats[stat][row] = in.readDouble();
+                }
+            }
+            blockRows = rows;
+            position = 0;
+        }
+
+        private void readFooter() throws IOException {
+            totalRows = Index.readFrom(in).getTotalRows();
+            in.readLong();
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Binary result stream is truncated");
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            Closeables2.closeQuietly(in, log);
+        }
+    }
+
+    private static int getKeyLength(GroupKey groupKey) {
+        return groupKey.size();
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.ez.Stats;
+import com.indeed.imhotep.web.TopTermsCache;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the WHERE conditions of a query before execution.
+ * Conditions are applied one after another and all of them have to match so they can be freely merged and reordered.
+ * Redundant conditions on the same field or metric are merged and the remaining ones are ordered so that
+ * cheap conditions that remove a lot of documents run first and shrink the work left for the expensive ones
+ * (e.g. regex and Lucene query filters).
+ */
+public final class ConditionPlanner {
+    private static final Logger log = Logger.getLogger(ConditionPlanner.class);
+
+    // relative cost of applying each kind of condition
+    private static final double TERM_FILTER_COST = 1;
+    private static final double METRIC_FILTER_COST = 2;
+    private static final double SAMPLE_COST = 2;
+    private static final double QUERY_COST = 3;
+    private static final double TERM_SCAN_COST = 10;   // has to iterate over all the terms of the field
+
+    // fraction of the documents kept when nothing better is known
+    private static final double DEFAULT_SELECTIVITY = 0.5;
+    private static final double DEFAULT_TERM_SELECTIVITY = 0.05;
+    private static final double INT_TERM_SELECTIVITY = 0.01;
+    private static final double REGEX_SELECTIVITY = 0.2;
+    // assume a Zipf distribution of the terms where the most common term is in about 10% of the documents
+    private static final double TOP_TERM_SELECTIVITY = 0.1;
+    private static final double MIN_REMOVED_RATIO = 0.001;
+
+    private final TopTermsCache topTermsCache;
+    private final String dataset;
+
+    /**
+     * @param topTermsCache used to estimate how common the filtered terms are. Can be null
+     * @param dataset dataset the conditions are applied to
+     */
+    public ConditionPlanner(@Nullable TopTermsCache topTermsCache, String dataset) {
+        this.topTermsCache = topTermsCache;
+        this.dataset = dataset;
+    }
+
+    /**
+     * Merges and reorders the conditions in the passed in list.
+     */
+    public void plan(List<Condition> conditions) {
+        if(conditions.isEmpty()) {
+            return;
+        }
+        final List<Condition> merged = merge(conditions);
+        final Map<Condition, Double> ranks = Maps.newIdentityHashMap();
+        for (Condition condition : merged) {
+            ranks.put(condition, getRank(condition));
+        }
+        // the sort is stable so conditions with the same rank keep the order they were written in
+        Collections.sort(merged, new Comparator<Condition>() {
+            @Override
+            public int compare(Condition o1, Condition o2) {
+                return Double.compare(ranks.get(o1), ranks.get(o2));
+            }
+        });
+        if(log.isDebugEnabled() && merged.size() > 1) {
+            log.debug("Planned " + conditions.size() + " conditions into " + merged.size() + " with ranks " + ranks.values());
+        }
+        conditions.clear();
+        conditions.addAll(merged);
+    }
+
+    /**
+     * Applying conditions in increasing order of cost / ratio of removed documents minimizes the expected total cost
+     * when the cost of each condition is proportional to the number of documents that are left.
+     */
+    private double getRank(Condition condition) {
+        final double removedRatio = Math.max(1 - getSelectivity(condition), MIN_REMOVED_RATIO);
+        return getCost(condition) / removedRatio;
+    }
+
+    private static double getCost(Condition condition) {
+        if(condition instanceof StringInCondition || condition instanceof IntInCondition) {
+            return TERM_FILTER_COST;
+        } else if(condition instanceof MetricCondition) {
+            return METRIC_FILTER_COST;
+        } else if(condition instanceof SampleCondition) {
+            return SAMPLE_COST;
+        } else if(condition instanceof QueryCondition) {
+            return QUERY_COST;
+        }
+        // regex and predicate conditions and anything we don't know about
+        return TERM_SCAN_COST;
+    }
+
+    /**
+     * Estimates the fraction of the documents that match the condition.
+     */
+    double getSelectivity(Condition condition) {
+        if(condition instanceof StringInCondition) {
+            final StringInCondition inCondition = (StringInCondition) condition;
+            final double selectivity = getTermsSelectivity(inCondition.getStringField().getFieldName(), inCondition.getValues());
+            return inCondition.isNegation() ? 1 - selectivity : selectivity;
+        } else if(condition instanceof IntInCondition) {
+            final IntInCondition inCondition = (IntInCondition) condition;
+            final double selectivity = Math.min(1, inCondition.getValues().length * INT_TERM_SELECTIVITY);
+            return inCondition.isNegation() ? 1 - selectivity : selectivity;
+        } else if(condition instanceof RegexCondition) {
+            return ((RegexCondition) condition).isNegation() ? 1 - REGEX_SELECTIVITY : REGEX_SELECTIVITY;
+        } else if(condition instanceof SampleCondition) {
+            return 1 - ((SampleCondition) condition).getRemovedRatio();
+        }
+        return DEFAULT_SELECTIVITY;
+    }
+
+    private double getTermsSelectivity(String field, String[] terms) {
+        final List<String> topTerms = topTermsCache != null ?
+                topTermsCache.getTopTerms(dataset, field) : Collections.<String>emptyList();
+        if(topTerms.isEmpty()) {
+            return Math.min(1, terms.length * DEFAULT_TERM_SELECTIVITY);
+        }
+        final Map<String, Integer> termRanks = Maps.newHashMap();
+        for (int i = 0; i < topTerms.size(); i++) {
+            termRanks.put(topTerms.get(i), i);
+        }
+        double selectivity = 0;
+        for (String term : terms) {
+            final Integer rank = termRanks.get(term);
+            // terms that aren't in the top terms are at most as common as the last one
+            selectivity += TOP_TERM_SELECTIVITY / ((rank != null ? rank : topTerms.size()) + 1);
+        }
+        return Math.min(1, selectivity);
+    }
+
+    /**
+     * Merges negated IN conditions on the same field, overlapping ranges of the same metric and drops duplicates.
+     * Non negated IN conditions on the same field are not intersected as fields can have multiple terms per document.
+     */
+    private static List<Condition> merge(List<Condition> conditions) {
+        final List<Condition> merged = Lists.newArrayList();
+        final Map<String, Integer> negatedInIndexes = Maps.newHashMap();
+        final Map<List<Object>, Integer> metricIndexes = Maps.newHashMap();
+        final Set<List<Object>> inConditions = Sets.newHashSet();
+        for (Condition condition : conditions) {
+            if(condition instanceof StringInCondition) {
+                final StringInCondition inCondition = (StringInCondition) condition;
+                final String field = inCondition.getStringField().getFieldName();
+                final List<Object> key = Arrays.<Object>asList("str", field, inCondition.isNegation(),
+                        Sets.newHashSet(inCondition.getValues()));
+                if(!inConditions.add(key)) {
+                    continue;   // exact duplicate
+                }
+                if(inCondition.isNegation()) {
+                    final Integer index = negatedInIndexes.get("str:" + field);
+                    if(index != null) {
+                        merged.set(index, union((StringInCondition) merged.get(index), inCondition));
+                        continue;
+                    }
+                    negatedInIndexes.put("str:" + field, merged.size());
+                }
+            } else if(condition instanceof IntInCondition) {
+                final IntInCondition inCondition = (IntInCondition) condition;
+                final String field = inCondition.getIntField().getFieldName();
+                final List<Object> key = Arrays.<Object>asList("int", field, inCondition.isNegation(),
+                        Sets.newHashSet(Longs.asList(inCondition.getValues())));
+                if(!inConditions.add(key)) {
+                    continue;
+                }
+                if(inCondition.isNegation()) {
+                    final Integer index = negatedInIndexes.get("int:" + field);
+                    if(index != null) {
+                        merged.set(index, union((IntInCondition) merged.get(index), inCondition));
+                        continue;
+                    }
+                    negatedInIndexes.put("int:" + field, merged.size());
+                }
+            } else if(condition instanceof MetricCondition) {
+                final MetricCondition metricCondition = (MetricCondition) condition;
+                // stats are the same if they push the same. the ones that can't be compared are never merged
+                final List<String> pushes = Stats.getPushes(metricCondition.getStat());
+                if(pushes != null) {
+                    final List<Object> key = Arrays.<Object>asList(pushes, metricCondition.isNegation());
+                    final Integer index = metricIndexes.get(key);
+                    if(index != null) {
+                        final MetricCondition combined = combine((MetricCondition) merged.get(index), metricCondition);
+                        if(combined != null) {
+                            merged.set(index, combined);
+                            continue;
+                        }
+                    } else {
+                        metricIndexes.put(key, merged.size());
+                    }
+                }
+            }
+            merged.add(condition);
+        }
+        return merged;
+    }
+
+    private static StringInCondition union(StringInCondition a, StringInCondition b) {
+        final Set<String> values = Sets.newLinkedHashSet(Arrays.asList(a.getValues()));
+        values.addAll(Arrays.asList(b.getValues()));
+        return new StringInCondition(a.getStringField(), true, false, values.toArray(new String[values.size()]));
+    }
+
+    private static IntInCondition union(IntInCondition a, IntInCondition b) {
+        final Set<Long> values = Sets.newLinkedHashSet(Longs.asList(a.getValues()));
+        values.addAll(Longs.asList(b.getValues()));
+        return new IntInCondition(a.getIntField(), true, Longs.toArray(values));
+    }
+
+    /**
+     * Returns a single condition equivalent to applying both of the conditions on the same metric
+     * or null if they can't be expressed as one range.
+     */
+    @Nullable
+    private static MetricCondition combine(MetricCondition a, MetricCondition b) {
+        if(!a.isNegation()) {
+            // both have to match so the range is the intersection
+            final long min = Math.max(a.getMin(), b.getMin());
+            final long max = Math.min(a.getMax(), b.getMax());
+            return min <= max ? new MetricCondition(a.getStat(), min, max, false) : null;
+        }
+        // none of them can match so the excluded range is the union if it's contiguous
+        if(isSeparated(a.getMax(), b.getMin()) || isSeparated(b.getMax(), a.getMin())) {
+            return null;
+        }
+        return new MetricCondition(a.getStat(), Math.min(a.getMin(), b.getMin()), Math.max(a.getMax(), b.getMax()), true);
+    }
+
+    /**
+     * @return true if there are values between max of one range and min of the following one
+     */
+    private static boolean isSeparated(long max, long min) {
+        return max < min && max + 1 < min;
+    }
+}
@@ -13,43 +13,50 @@
  */
  package com.indeed.imhotep.iql;
 
+import com.google.common.collect.Maps;
 import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
 import com.indeed.imhotep.ez.GroupKey;
 import gnu.trove.TIntIntHashMap;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
+ * Counts the terms of each group for any number of fields in a single FTGS pass over all of them.
  * @author vladimir
  */
 
 public class DistinctFTGSCallback extends EZImhotepSession.FTGSCallback {
-    private final TIntIntHashMap groupToCounts;
+    private final Map<String, TIntIntHashMap> fieldToGroupCounts = Maps.newHashMap();
 
-    public DistinctFTGSCallback(int numStats, Map<Integer, GroupKey> groupKeys) {
+    public DistinctFTGSCallback(int numStats, Map<Integer, GroupKey> groupKeys, Collection<Field> fields) {
         super(numStats);
 
-        groupToCounts  = new TIntIntHashMap(groupKeys.size());
+        for(Field field : fields) {
+            fieldToGroupCounts.put(field.getFieldName(), new TIntIntHashMap(groupKeys.size()));
+        }
     }
 
     @Override
     protected void intTermGroup(String field, long term, int group) {
-        incrementGroupCounts(group);
+        incrementGroupCounts(field, group);
     }
 
-    private void incrementGroupCounts(int group) {
+    private void incrementGroupCounts(String field, int group) {
+        final TIntIntHashMap groupToCounts = fieldToGroupCounts.get(field);
         groupToCounts.put(group, groupToCounts.get(group) + 1);
     }
 
     @Override
     protected void stringTermGroup(String field, String term, int group) {
-        incrementGroupCounts(group);
+        incrementGroupCounts(field, group);
     }
 
     /**
-     * Returns map of group numbers to field term counts
+     * Returns map of group numbers to term counts of the field
      */
-    public TIntIntHashMap getResults() {
-        return groupToCounts;
+    public TIntIntHashMap getResults(Field field) {
+        return fieldToGroupCounts.get(field.getFieldName());
     }
 }
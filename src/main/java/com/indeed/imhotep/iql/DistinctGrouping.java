@@ -14,6 +14,7 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
@@ -27,6 +28,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author vladimir
@@ -100,14 +102,14 @@ public class DistinctGrouping extends Grouping {
     private TIntObjectHashMap<TIntIntHashMap> getDistinctData(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) {
         TIntObjectHashMap<TIntIntHashMap> distinctData = new TIntObjectHashMap<TIntIntHashMap>();
 
-        // get distinct data
+        // get distinct data of all the fields in a single pass
+        final Set<Field> uniqueFields = Sets.newLinkedHashSet(fields);
+        final DistinctFTGSCallback callback = new DistinctFTGSCallback(session.getStackDepth(), groupKeys, uniqueFields);
+        session.ftgsIterate(Lists.newArrayList(uniqueFields), callback);
+
         for(int i = 0; i < fields.size(); i++) {
-            final Field field = fields.get(i);
             final int projectionPosition = distinctProjectionPositions.get(i);
-
-            final DistinctFTGSCallback callback = new DistinctFTGSCallback(session.getStackDepth(), groupKeys);
-            session.ftgsIterate(Lists.newArrayList(field), callback);
-            final TIntIntHashMap distinctResults = callback.getResults();
+            final TIntIntHashMap distinctResults = callback.getResults(fields.get(i));
             for(int groupNum : groupKeys.keySet()) {
                 final int distinctResult = distinctResults.get(groupNum);
 
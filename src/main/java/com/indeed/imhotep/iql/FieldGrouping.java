@@ -130,13 +130,17 @@ public final class FieldGrouping extends Grouping {
             return Collections.<GroupStats>emptyList().iterator();  // so no point doing FTGS
         }
         if (topK > 0) {
-            //TODO have some way of not potentially pushing counts() twice
+            // every term is scanned: pruning to approximateTopTerms candidates needs a per group bound on the
+            // terms left out, and multi-valued fields make the filtered doc counts unusable as one
+            // reuses the slot of the sort stat if it's also selected
             final StatReference countStat = session.pushStatGeneric(sortStat);
             final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(session.getStackDepth(), topK, countStat, statRefs, groupKeys, isBottom);
             session.ftgsIterate(Arrays.asList(field), callback);
             return callback.getResults().iterator();
-        } else if(noExplode) {
-            final GroupingFTGSCallbackNoExplode callback = new GroupingFTGSCallbackNoExplode(session.getStackDepth(), statRefs, groupKeys);
+        } else if(noExplode || groupKeys.size() == 1) {
+            // a single group has all the terms so no 0 rows are added and the rows are streamed as FTGS returns them
+            final int rowLimit = noExplode ? Integer.MAX_VALUE : EZImhotepSession.GROUP_LIMIT;
+            final GroupingFTGSCallbackNoExplode callback = new GroupingFTGSCallbackNoExplode(session.getStackDepth(), statRefs, groupKeys, rowLimit);
             if(!isTermSubset()) {
                 return session.ftgsGetIterator(Arrays.asList(field), callback);
             } else {
@@ -153,7 +157,7 @@ public final class FieldGrouping extends Grouping {
                 fieldsToTermsSubsets.put(field, termSubset);
                 session.ftgsSubsetIterate(fieldsToTermsSubsets, callback);
             }
-            return callback.getResults().iterator();
+            return callback.getResults();
         }
     }
 
@@ -165,6 +169,10 @@ public final class FieldGrouping extends Grouping {
         return topK;
     }
 
+    public List<String> getTermSubset() {
+        return Collections.unmodifiableList(termSubset);
+    }
+
     public boolean isNoExplode() {
         return noExplode;
     }
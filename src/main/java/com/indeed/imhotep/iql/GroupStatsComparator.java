@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.indeed.imhotep.ez.GroupKey;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Orders result rows by a list of output columns: the group key elements followed by the stats.
+ * Int terms are compared as numbers and come before string terms, stats are compared as doubles with NaN last.
+ */
+public final class GroupStatsComparator implements Comparator<GroupStats> {
+    private final int[] columns;
+    private final boolean[] descending;
+    private final int keyColumns;
+
+    /**
+     * @param columns 0-based indexes of the columns to order by
+     * @param descending whether each of the columns is sorted in the descending order
+     * @param keyColumns number of group key columns that precede the stats
+     */
+    public GroupStatsComparator(int[] columns, boolean[] descending, int keyColumns) {
+        if(columns.length != descending.length) {
+            throw new IllegalArgumentException("Sort direction has to be provided for each column");
+        }
+        this.columns = columns;
+        this.descending = descending;
+        this.keyColumns = keyColumns;
+    }
+
+    @Override
+    public int compare(GroupStats o1, GroupStats o2) {
+        for (int i = 0; i < columns.length; i++) {
+            final int column = columns[i];
+            final int result;
+            if(column < keyColumns) {
+                final int keyResult = compareKeyElements(getKeyElement(o1.groupKey, column), getKeyElement(o2.groupKey, column));
+                result = descending[i] ? -keyResult : keyResult;
+            } else {
+                result = compareStats(getStat(o1, column - keyColumns), getStat(o2, column - keyColumns), descending[i]);
+            }
+            if(result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares stat values in the requested direction. NaNs are last in both directions.
+     */
+    static int compareStats(double a, double b, boolean descending) {
+        if(Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.isNaN(a) ? (Double.isNaN(b) ? 0 : 1) : -1;
+        }
+        final int result = Double.compare(a, b);
+        return descending ? -result : result;
+    }
+
+    /**
+     * Returns the index of the stat if the rows are ordered by a single stat column and -1 otherwise.
+     */
+    int getSingleStatIndex() {
+        return columns.length == 1 && columns[0] >= keyColumns ? columns[0] - keyColumns : -1;
+    }
+
+    boolean isDescending(int orderingIndex) {
+        return descending[orderingIndex];
+    }
+
+    private static Object getKeyElement(GroupKey groupKey, int index) {
+        final Iterator<?> iterator = groupKey.iterator();
+        for (int i = 0; i < index && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    static double getStat(GroupStats row, int index) {
+        return index < row.stats.length ? row.stats[index] : Double.NaN;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeyElements(Object o1, Object o2) {
+        if(o1 == null || o2 == null) {
+            return o1 == null ? (o2 == null ? 0 : -1) : 1;
+        }
+        final boolean isNumber1 = o1 instanceof Long;
+        final boolean isNumber2 = o2 instanceof Long;
+        if(isNumber1 != isNumber2) {
+            return isNumber1 ? -1 : 1;
+        }
+        if(isNumber1) {
+            return ((Long) o1).compareTo((Long) o2);
+        }
+        if(o1 instanceof Comparable && o1.getClass() == o2.getClass()) {
+            return ((Comparable) o1).compareTo(o2);
+        }
+        return String.valueOf(o1).compareTo(String.valueOf(o2));
+    }
+
+    @Override
+    public String toString() {
+        return "GroupStatsComparator{columns=" + Arrays.toString(columns) + ", descending=" + Arrays.toString(descending) + "}";
+    }
+}
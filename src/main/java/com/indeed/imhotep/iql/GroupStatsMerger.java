@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.GroupKey;
+
+import java.text.DecimalFormat;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the rows produced by executing the same query over disjoint sets of documents (e.g. time slices).
+ * Stats of rows with the same group key are summed so only additive stats should be merged.
+ * The merged rows are ordered the way Imhotep would have numbered the groups of the whole query:
+ * terms in their natural order and metric buckets in the order of their bucket numbers.
+ * All the merged rows are kept in memory so the number of distinct group keys is limited to {@link EZImhotepSession#GROUP_LIMIT}.
+ */
+final class GroupStatsMerger {
+    private final List<LevelOrder> levelOrders = Lists.newArrayList();
+    private final Map<GroupKey, MergedRow> rows = Maps.newHashMap();
+    private final int groupLimit;
+    private int addedRowCount = 0;
+
+    GroupStatsMerger(List<Grouping> groupings) {
+        this(groupings, EZImhotepSession.GROUP_LIMIT);
+    }
+
+    GroupStatsMerger(List<Grouping> groupings, int groupLimit) {
+        this.groupLimit = groupLimit;
+        for (int i = 0; i < groupings.size(); i++) {
+            final Grouping grouping = groupings.get(i);
+            final boolean isLast = i == groupings.size() - 1;
+            if(grouping instanceof FieldGrouping) {
+                final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+                if(!isLast && fieldGrouping.isTermSubset()) {
+                    // explodeEachGroup numbers the groups in the order the terms were requested in
+                    levelOrders.add(new RankOrder(fieldGrouping.getTermSubset()));
+                } else {
+                    // FTGS returns terms sorted
+                    levelOrders.add(new NaturalOrder());
+                }
+            } else if(grouping instanceof StatRangeGrouping) {
+                // slices may be missing buckets so they are ordered by bucket number rather than as they are seen
+                levelOrders.add(new RankOrder(((StatRangeGrouping) grouping).getBucketNames()));
+            } else if(grouping instanceof StatRangeGrouping2D) {
+                levelOrders.add(new RankOrder(((StatRangeGrouping2D) grouping).getBucketNames()));
+            } else {
+                throw new IllegalArgumentException("Results of " + grouping.getClass().getSimpleName() + " can't be merged");
+            }
+        }
+    }
+
+    void add(Iterator<GroupStats> groupStats) {
+        while(groupStats.hasNext()) {
+            final GroupStats row = groupStats.next();
+            if(row == null) {
+                continue;
+            }
+            final MergedRow existing = rows.get(row.groupKey);
+            if(existing != null) {
+                final double[] stats = existing.stats;
+                for (int i = 0; i < stats.length; i++) {
+                    stats[i] += row.stats[i];
+                }
+                continue;
+            }
+            if(addedRowCount >= groupLimit) {
+                throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                        new DecimalFormat("###,###").format(groupLimit) +
+                        ". Please simplify the query.");
+            }
+            final Object[] keyElements = Lists.newArrayList(row.groupKey).toArray();
+            for (int level = 0; level < keyElements.length && level < levelOrders.size(); level++) {
+                levelOrders.get(level).observe(keyElements[level]);
+            }
+            // stats arrays can be shared between rows by the callbacks so we never modify the original
+            rows.put(row.groupKey, new MergedRow(row.groupKey, keyElements, row.stats.clone(), addedRowCount++));
+        }
+    }
+
+    List<GroupStats> getResults() {
+        final List<MergedRow> sortedRows = getSortedRows();
+        final List<GroupStats> ret = Lists.newArrayListWithCapacity(sortedRows.size());
+        for (MergedRow row : sortedRows) {
+            ret.add(new GroupStats(row.groupKey, row.stats));
+        }
+        return ret;
+    }
+
+    private List<MergedRow> getSortedRows() {
+        final List<MergedRow> sortedRows = Lists.newArrayList(rows.values());
+        Collections.sort(sortedRows, new Comparator<MergedRow>() {
+            @Override
+            public int compare(MergedRow o1, MergedRow o2) {
+                final int levels = Math.min(o1.keyElements.length, o2.keyElements.length);
+                for (int level = 0; level < levels && level < levelOrders.size(); level++) {
+                    final int result = levelOrders.get(level).compare(o1.keyElements[level], o2.keyElements[level]);
+                    if(result != 0) {
+                        return result;
+                    }
+                }
+                if(o1.keyElements.length != o2.keyElements.length) {
+                    return o1.keyElements.length < o2.keyElements.length ? -1 : 1;
+                }
+                return o1.index < o2.index ? -1 : (o1.index == o2.index ? 0 : 1);
+            }
+        });
+        return sortedRows;
+    }
+
+    private static final class MergedRow {
+        final GroupKey groupKey;
+        final Object[] keyElements;
+        final double[] stats;
+        final int index;
+
+        private MergedRow(GroupKey groupKey, Object[] keyElements, double[] stats, int index) {
+            this.groupKey = groupKey;
+            this.keyElements = keyElements;
+            this.stats = stats;
+            this.index = index;
+        }
+    }
+
+    private static abstract class LevelOrder implements Comparator<Object> {
+        void observe(Object element) {}
+    }
+
+    private static final class NaturalOrder extends LevelOrder {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object o1, Object o2) {
+            if(o1.getClass() != o2.getClass()) {
+                // e.g. the empty string used for missing terms of int fields
+                return o1.getClass().getName().compareTo(o2.getClass().getName());
+            }
+            return ((Comparable) o1).compareTo(o2);
+        }
+    }
+
+    /**
+     * Orders by a predefined list of values followed by the other values in the order they were first seen in.
+     */
+    private static final class RankOrder extends LevelOrder {
+        private final Map<String, Integer> ranks = Maps.newHashMap();
+
+        private RankOrder(List<String> values) {
+            for (String value : values) {
+                observe(value);
+            }
+        }
+
+        @Override
+        void observe(Object element) {
+            final String value = String.valueOf(element);
+            if(!ranks.containsKey(value)) {
+                ranks.put(value, ranks.size());
+            }
+        }
+
+        @Override
+        public int compare(Object o1, Object o2) {
+            final int rank1 = ranks.get(String.valueOf(o1));
+            final int rank2 = ranks.get(String.valueOf(o2));
+            return rank1 < rank2 ? -1 : (rank1 == rank2 ? 0 : 1);
+        }
+    }
+}
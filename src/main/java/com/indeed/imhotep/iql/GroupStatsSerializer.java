@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.ez.GroupKey;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of result rows that keeps the types of the group key elements.
+ */
+public final class GroupStatsSerializer {
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_LONG = 1;
+
+    private GroupStatsSerializer() {
+    }
+
+    public static void write(DataOutput out, GroupStats row) throws IOException {
+        int keyLength = 0;
+        for (Object ignored : (Iterable<?>) row.groupKey) {
+            keyLength++;
+        }
+        out.writeInt(keyLength);
+        for (Object element : (Iterable<?>) row.groupKey) {
+            writeKeyElement(out, element);
+        }
+        writeDoubles(out, row.stats);
+    }
+
+    public static GroupStats read(DataInput in) throws IOException {
+        GroupKey groupKey = GroupKey.empty();
+        final int keyLength = in.readInt();
+        for (int i = 0; i < keyLength; i++) {
+            groupKey = groupKey.add(readKeyElement(in));
+        }
+        return new GroupStats(groupKey, readDoubles(in));
+    }
+
+    /**
+     * Writes a group key element. Longs keep their type and everything else is written as a string.
+     */
+    public static void writeKeyElement(DataOutput out, Object element) throws IOException {
+        if(element instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) element);
+        } else {
+            final byte[] bytes = String.valueOf(element).getBytes(Charsets.UTF_8);
+            out.writeByte(TYPE_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public static Object readKeyElement(DataInput in) throws IOException {
+        final byte type = in.readByte();
+        if(type == TYPE_LONG) {
+            return in.readLong();
+        }
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    public static double[] readDoubles(DataInput in) throws IOException {
+        final double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    public static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts result rows within a memory budget.
+ * Rows are buffered until the budget is used up, then each buffer is sorted and written to a temp file as a run
+ * on a background thread while the next buffer is being filled. The runs are then merged while iterating.
+ * The sort is stable.
+ * When only the first rows are needed they are kept in a bounded heap instead and nothing is written to disk.
+ */
+public class GroupStatsSorter implements Closeable {
+    private static final Logger log = Logger.getLogger(GroupStatsSorter.class);
+    private static final String TEMP_FILE_PREFIX = "iql_sort_";
+    private static final int MAX_MERGED_RUNS = 64;  // limits the number of files open at once
+    private static final int IO_BUFFER_SIZE = 65536;
+    // rough heap size of a row in a top N heap used to decide if the rows fit in memory
+    private static final int TOP_N_ROW_BYTES = 256;
+
+    private final long memoryBudgetBytes;
+    private final int threads;
+    private final ExecutorService executorService;
+
+    /**
+     * @param memoryBudgetBytes approximate heap size that rows of a single sort can take before they are written to disk
+     * @param threads number of threads sorting and writing runs shared by all the sorts.
+     *                Also the number of runs each sort can have pending at once
+     */
+    public GroupStatsSorter(long memoryBudgetBytes, int threads) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.threads = Math.max(1, threads);
+        executorService = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IQL-Sort"));
+    }
+
+    public SortedRows sort(Iterator<GroupStats> rows, Comparator<GroupStats> comparator) throws IOException {
+        return sort(rows, comparator, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most limit rows. Memory use is proportional to the limit when the limited rows fit in the budget.
+     */
+    public SortedRows sort(Iterator<GroupStats> rows, Comparator<GroupStats> comparator, int limit) throws IOException {
+        if(limit > 0 && limit <= memoryBudgetBytes / TOP_N_ROW_BYTES) {
+            return new SortedRows(GroupStatsTopN.getTopN(rows, limit, comparator).iterator(), limit);
+        }
+        // the buffer being filled and each of the runs being written take a share of the budget
+        final long runBudgetBytes = Math.max(1, memoryBudgetBytes / (threads + 1));
+        final Deque<Future<File>> pendingRuns = new ArrayDeque<Future<File>>();
+        final List<File> runs = Lists.newArrayList();
+        try {
+            List<GroupStats> buffer = Lists.newArrayList();
+            long bufferBytes = 0;
+            while(rows.hasNext()) {
+                final GroupStats row = rows.next();
+                if(row == null) {
+                    continue;
+                }
+                buffer.add(row);
+                bufferBytes += estimateSize(row);
+                if(bufferBytes >= runBudgetBytes) {
+                    if(pendingRuns.size() >= threads) {
+                        runs.add(getRun(pendingRuns.removeFirst()));
+                    }
+                    pendingRuns.addLast(executorService.submit(new RunWriter(buffer, comparator)));
+                    buffer = Lists.newArrayList();
+                    bufferBytes = 0;
+                }
+            }
+            if(pendingRuns.isEmpty()) {
+                // everything fit in memory
+                Collections.sort(buffer, comparator);
+                return new SortedRows(buffer.iterator(), limit);
+            }
+            if(!buffer.isEmpty()) {
+                pendingRuns.addLast(executorService.submit(new RunWriter(buffer, comparator)));
+            }
+            //noinspection UnusedAssignment
+            buffer = null;  // let it be GC'd
+            while(!pendingRuns.isEmpty()) {
+                runs.add(getRun(pendingRuns.removeFirst()));
+            }
+            log.debug("Sorting " + runs.size() + " runs on disk");
+
+            // merge the runs in order so that the sort stays stable
+            while(runs.size() > MAX_MERGED_RUNS) {
+                final List<File> mergedRuns = Lists.newArrayList();
+                for (int i = 0; i < runs.size(); i += MAX_MERGED_RUNS) {
+                    final List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGED_RUNS));
+                    final SortedRows merged = new SortedRows(Lists.newArrayList(group), comparator, Integer.MAX_VALUE);
+                    try {
+                        mergedRuns.add(writeRun(merged));
+                    } finally {
+                        merged.close();
+                    }
+                }
+                runs.clear();
+                runs.addAll(mergedRuns);
+            }
+            final SortedRows sortedRows = new SortedRows(Lists.newArrayList(runs), comparator, limit);
+            runs.clear();   // owned by sortedRows now
+            return sortedRows;
+        } finally {
+            for (Future<File> pendingRun : pendingRuns) {
+                try {
+                    deleteQuietly(getRun(pendingRun));
+                } catch (Exception ignored) { }
+            }
+            for (File run : runs) {
+                deleteQuietly(run);
+            }
+        }
+    }
+
+    private static File getRun(Future<File> pendingRun) throws IOException {
+        try {
+            return pendingRun.get();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Rough heap size of a row used to enforce the memory budget.
+     */
+    static long estimateSize(GroupStats row) {
+        long size = 64 + 8L * row.stats.length;
+        for (Object element : (Iterable<?>) row.groupKey) {
+            size += 32;
+            if(element instanceof String) {
+                size += 40 + 2 * ((String) element).length();
+            }
+        }
+        return size;
+    }
+
+    private static File writeRun(Iterator<GroupStats> sortedRows) throws IOException {
+        final File file = File.createTempFile(TEMP_FILE_PREFIX, ".tmp");
+        boolean success = false;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE));
+        try {
+            while(sortedRows.hasNext()) {
+                out.writeBoolean(true);
+                GroupStatsSerializer.write(out, sortedRows.next());
+            }
+            out.writeBoolean(false);
+            out.close();
+            success = true;
+            return file;
+        } finally {
+            if(!success) {
+                Closeables2.closeQuietly(out, log);
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if(file != null && !file.delete() && file.exists()) {
+            log.warn("Failed to delete " + file.getPath());
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    private static final class RunWriter implements Callable<File> {
+        private final List<GroupStats> rows;
+        private final Comparator<GroupStats> comparator;
+
+        private RunWriter(List<GroupStats> rows, Comparator<GroupStats> comparator) {
+            this.rows = rows;
+            this.comparator = comparator;
+        }
+
+        @Override
+        public File call() throws Exception {
+            Collections.sort(rows, comparator);
+            return writeRun(rows.iterator());
+        }
+    }
+
+    /**
+     * Iterates over the sorted rows. Has to be closed to delete the temp files if it's not iterated to the end.
+     */
+    public static final class SortedRows implements Iterator<GroupStats>, Closeable {
+        private final Iterator<GroupStats> inMemoryRows;
+        private final List<File> runs;
+        private final PriorityQueue<RunReader> readers;
+        // number of rows left before the limit
+        private int remaining;
+
+        private SortedRows(Iterator<GroupStats> inMemoryRows, int limit) {
+            this.inMemoryRows = inMemoryRows;
+            runs = Collections.emptyList();
+            readers = null;
+            remaining = limit;
+        }
+
+        private SortedRows(List<File> runs, final Comparator<GroupStats> comparator, int limit) throws IOException {
+            inMemoryRows = null;
+            this.runs = runs;
+            remaining = limit;
+            readers = new PriorityQueue<RunReader>(Math.max(1, runs.size()), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader o1, RunReader o2) {
+                    final int result = comparator.compare(o1.current, o2.current);
+                    return result != 0 ? result : (o1.index < o2.index ? -1 : (o1.index == o2.index ? 0 : 1));
+                }
+            });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    final RunReader reader = new RunReader(runs.get(i), i);
+                    if(reader.advance()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(remaining <= 0) {
+                close();
+                return false;
+            }
+            if(inMemoryRows != null) {
+                return inMemoryRows.hasNext();
+            }
+            if(readers.isEmpty()) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public GroupStats next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            if(inMemoryRows != null) {
+                return inMemoryRows.next();
+            }
+            final RunReader reader = readers.remove();
+            final GroupStats row = reader.current;
+            try {
+                if(reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if(readers != null) {
+                while(!readers.isEmpty()) {
+                    readers.remove().close();
+                }
+            }
+            for (File run : runs) {
+                deleteQuietly(run);
+            }
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+        private final DataInputStream in;
+        private final int index;
+        private GroupStats current;
+
+        private RunReader(File file, int index) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+            this.index = index;
+        }
+
+        boolean advance() throws IOException {
+            if(!in.readBoolean()) {
+                current = null;
+                return false;
+            }
+            current = GroupStatsSerializer.read(in);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            Closeables2.closeQuietly(in, log);
+        }
+    }
+}
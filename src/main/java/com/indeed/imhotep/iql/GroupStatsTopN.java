@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the first N rows in a given order without materializing the rest of the rows.
+ * The kept rows are in a bounded binary heap with the last of them on top so each new row is compared to it once
+ * and most of the rows are dropped right away.
+ * When the rows are ordered by a single stat column the stat values are kept in a primitive array and compared directly.
+ * Ties are broken by the order the rows came in so the result is the same as the first N rows of a stable sort.
+ */
+final class GroupStatsTopN {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int limit;
+    private final Comparator<GroupStats> comparator;
+    // index of the stat the rows are ordered by or -1 if the comparator has to be used
+    private final int statIndex;
+    private final boolean descending;
+
+    private GroupStats[] rows;
+    private double[] keys;
+    private long[] sequence;
+    private int size = 0;
+    private long rowsSeen = 0;
+
+    GroupStatsTopN(int limit, Comparator<GroupStats> comparator) {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit has to be positive: " + limit);
+        }
+        this.limit = limit;
+        this.comparator = comparator;
+        if(comparator instanceof GroupStatsComparator && ((GroupStatsComparator) comparator).getSingleStatIndex() >= 0) {
+            statIndex = ((GroupStatsComparator) comparator).getSingleStatIndex();
+            descending = ((GroupStatsComparator) comparator).isDescending(0);
+        } else {
+            statIndex = -1;
+            descending = false;
+        }
+        final int capacity = Math.min(limit, INITIAL_CAPACITY);
+        rows = new GroupStats[capacity];
+        keys = new double[capacity];
+        sequence = new long[capacity];
+    }
+
+    void addAll(Iterator<GroupStats> groupStats) {
+        while(groupStats.hasNext()) {
+            final GroupStats row = groupStats.next();
+            if(row != null) {
+                add(row);
+            }
+        }
+    }
+
+    void add(GroupStats row) {
+        final double key = statIndex >= 0 ? GroupStatsComparator.getStat(row, statIndex) : 0;
+        final long rowSequence = rowsSeen++;
+        if(size < limit) {
+            if(size == rows.length) {
+                grow();
+            }
+            set(size, row, key, rowSequence);
+            siftUp(size++);
+        } else if(compare(row, key, rowSequence, 0) < 0) {
+            // goes before the last kept row which is dropped
+            set(0, row, key, rowSequence);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Returns the kept rows in order. Empties the heap.
+     */
+    List<GroupStats> getResults() {
+        final GroupStats[] sorted = new GroupStats[size];
+        while(size > 0) {
+            sorted[size - 1] = rows[0];
+            size--;
+            if(size > 0) {
+                set(0, rows[size], keys[size], sequence[size]);
+                siftDown(0);
+            }
+            rows[size] = null;
+        }
+        return Arrays.asList(sorted);
+    }
+
+    static List<GroupStats> getTopN(Iterator<GroupStats> rows, int limit, Comparator<GroupStats> comparator) {
+        final GroupStatsTopN topN = new GroupStatsTopN(limit, comparator);
+        topN.addAll(rows);
+        return topN.getResults();
+    }
+
+    private void set(int index, GroupStats row, double key, long rowSequence) {
+        rows[index] = row;
+        keys[index] = key;
+        sequence[index] = rowSequence;
+    }
+
+    private void grow() {
+        final int capacity = (int) Math.min(limit, rows.length * 2L);
+        rows = Arrays.copyOf(rows, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        sequence = Arrays.copyOf(sequence, capacity);
+    }
+
+    private int compare(GroupStats row, double key, long rowSequence, int index) {
+        final int result = statIndex >= 0 ?
+                GroupStatsComparator.compareStats(key, keys[index], descending) : comparator.compare(row, rows[index]);
+        if(result != 0) {
+            return result;
+        }
+        return rowSequence < sequence[index] ? -1 : (rowSequence == sequence[index] ? 0 : 1);
+    }
+
+    /**
+     * The heap is ordered so that the row that comes last is on top.
+     */
+    private void siftUp(int index) {
+        final GroupStats row = rows[index];
+        final double key = keys[index];
+        final long rowSequence = sequence[index];
+        while(index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if(compare(row, key, rowSequence, parent) <= 0) {
+                break;
+            }
+            set(index, rows[parent], keys[parent], sequence[parent]);
+            index = parent;
+        }
+        set(index, row, key, rowSequence);
+    }
+
+    private void siftDown(int index) {
+        final GroupStats row = rows[index];
+        final double key = keys[index];
+        final long rowSequence = sequence[index];
+        while(true) {
+            int child = 2 * index + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && compare(rows[child + 1], keys[child + 1], sequence[child + 1], child) > 0) {
+                child++;
+            }
+            if(compare(row, key, rowSequence, child) >= 0) {
+                break;
+            }
+            set(index, rows[child], keys[child], sequence[child]);
+            index = child;
+        }
+        set(index, row, key, rowSequence);
+    }
+}
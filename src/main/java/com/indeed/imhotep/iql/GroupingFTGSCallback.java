@@ -13,18 +13,23 @@
  */
  package com.indeed.imhotep.iql;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
 import com.indeed.imhotep.ez.StatReference;
-import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TDoubleArrayList;
+import gnu.trove.TIntArrayList;
 import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
 import java.util.*;
 
 /**
+ * Returns a row for every term in every group, with 0 stats for the terms that the group doesn't have.
+ * FTGS returns the stats term by term while the rows are ordered group by group so all the stats are collected first.
+ * They are kept in primitive arrays per group and the rows, most of which are usually the zero filled ones, are
+ * only created as they are iterated.
  * @author jplaisance
  */
 public final class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
@@ -32,13 +37,18 @@ public final class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
     private final List<StatReference> statRefs;
     private final Map<Integer, GroupKey> groupKeys;
     private final List<Object> allTerms = Lists.newArrayList();
-    private final TIntObjectHashMap<Map<Object, double[]>> groupToTermsStats = new TIntObjectHashMap<Map<Object, double[]>>();
+    // indexes in allTerms of the terms each group has, in ascending order
+    private final TIntArrayList[] groupToTermIndexes;
+    // stats of the terms each group has, statRefs.size() values per term
+    private final TDoubleArrayList[] groupToTermsStats;
     private final int termLimit;
 
     public GroupingFTGSCallback(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
         super(numStats);
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
+        groupToTermIndexes = new TIntArrayList[groupKeys.size() + 1];
+        groupToTermsStats = new TDoubleArrayList[groupKeys.size() + 1];
         termLimit = EZImhotepSession.GROUP_LIMIT / Math.max(groupKeys.size(), 1);
     }
 
@@ -62,45 +72,53 @@ public final class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
                         "Try adding [] suffix to non-first groupings to disable addition of 0 rows. (e.g. 'group by country, lang[]')");
             }
         }
-        Map<Object, double[]> groupTerms = groupToTermsStats.get(group);
-        if(groupTerms == null) {
-            groupTerms = Maps.newHashMap();
-            groupToTermsStats.put(group, groupTerms);
+        if(group >= groupToTermIndexes.length) {
+            return; // not a group of the previous groupings
         }
-        groupTerms.put(term, getStats());
-    }
-
-    private double[] getStats() {
-        final double[] stats = new double[statRefs.size()];
-        for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+        TIntArrayList termIndexes = groupToTermIndexes[group];
+        if(termIndexes == null) {
+            termIndexes = new TIntArrayList();
+            groupToTermIndexes[group] = termIndexes;
+            groupToTermsStats[group] = new TDoubleArrayList();
+        }
+        termIndexes.add(allTerms.size() - 1);
+        final TDoubleArrayList termsStats = groupToTermsStats[group];
+        for (StatReference statRef : statRefs) {
+            termsStats.add(getStat(statRef));
         }
-        return stats;
     }
 
-    public List<GroupStats> getResults() {
-        final List<GroupStats> ret = Lists.newArrayList();
+    public Iterator<GroupStats> getResults() {
+        final int statCount = statRefs.size();
         // warning: we are reusing the same array instance for all blank rows to save memory
-        final double[] emptyArray = new double[statRefs.size()];
+        final double[] emptyArray = new double[statCount];
 
-        for (int group = 1; group <= groupKeys.size(); group++) {
-            final Map<Object, double[]> termsStats = groupToTermsStats.get(group);
+        return new AbstractIterator<GroupStats>() {
+            private int group = 1;
+            private int termIndex = 0;
+            // position of the next term the group has in its arrays
+            private int position = 0;
 
-            if(termsStats == null) { // this grouping was skipped by FTGS, so assigning 0 stats to all terms
-                for(Object missingTerm : allTerms) {
-                    ret.add(new GroupStats(groupKeys.get(group).add(missingTerm), emptyArray));
+            @Override
+            protected GroupStats computeNext() {
+                while(group <= groupKeys.size()) {
+                    if(termIndex < allTerms.size()) {
+                        final TIntArrayList termIndexes = groupToTermIndexes[group];
+                        final double[] stats;
+                        if(termIndexes != null && position < termIndexes.size() && termIndexes.get(position) == termIndex) {
+                            stats = groupToTermsStats[group].toNativeArray(position * statCount, statCount);
+                            position++;
+                        } else {    // the group doesn't have the term, so assigning 0 stats
+                            stats = emptyArray;
+                        }
+                        return new GroupStats(groupKeys.get(group).add(allTerms.get(termIndex++)), stats);
+                    }
+                    group++;
+                    termIndex = 0;
+                    position = 0;
                 }
-                continue;
+                return endOfData();
             }
-
-            for(Object term : allTerms) {
-                double[] stats = termsStats.get(term);
-                if(stats == null) {
-                    stats = emptyArray;
-                }
-                ret.add(new GroupStats(groupKeys.get(group).add(term), stats));
-            }
-        }
-        return ret;
+        };
     }
 }
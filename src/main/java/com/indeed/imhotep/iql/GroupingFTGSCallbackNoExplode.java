@@ -17,6 +17,7 @@ import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
 import com.indeed.imhotep.ez.StatReference;
 
+import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
 
@@ -26,11 +27,22 @@ import java.util.Map;
 public final class GroupingFTGSCallbackNoExplode extends EZImhotepSession.FTGSIteratingCallback<GroupStats> {
     private final List<StatReference> statRefs;
     private final Map<Integer, GroupKey> groupKeys;
+    private final int rowLimit;
+    private int rowCount = 0;
 
     public GroupingFTGSCallbackNoExplode(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+        this(numStats, statRefs, groupKeys, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param rowLimit number of rows after which the iteration fails. Used when the callback stands in for an exploded
+     *                 grouping of a single group, where every row is a new term that {@link GroupingFTGSCallback} would limit.
+     */
+    public GroupingFTGSCallbackNoExplode(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys, int rowLimit) {
         super(numStats);
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
+        this.rowLimit = rowLimit;
     }
 
     public GroupStats intTermGroup(final String field, final long term, final int group) {
@@ -42,6 +54,11 @@ public final class GroupingFTGSCallbackNoExplode extends EZImhotepSession.FTGSIt
     }
 
     private GroupStats getStats(int group, Object term) {
+        if(++rowCount > rowLimit) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(rowLimit) +
+                    ". Please simplify the query.");
+        }
         final double[] stats = new double[statRefs.size()];
         for (int i = 0; i < statRefs.size(); i++) {
             stats[i] = getStat(statRefs.get(i));
@@ -16,8 +16,10 @@
 import au.com.bytecode.opencsv.CSVWriter;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 import com.indeed.util.core.TreeTimer;
 import com.indeed.imhotep.ShardInfo;
@@ -28,6 +30,8 @@ import com.indeed.imhotep.client.ShardIdWithVersion;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
 import com.indeed.imhotep.ez.StatReference;
+import com.indeed.imhotep.ez.Stats;
+import com.indeed.imhotep.iql.cache.PartialResultCache;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
@@ -38,24 +42,31 @@ import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -68,7 +79,12 @@ public final class IQLQuery implements Closeable {
     private static final Period executionTimeout = Period.minutes(6);
     public static final String TEMP_FILE_PREFIX = "iql_tmp";
     private static final String EVENT_SOURCE_END = "\n\n";
+    // how often an event stream comment is written while a query with progress runs to find out if the client is gone
+    private static final int HEARTBEAT_INTERVAL_SECONDS = 5;
+    private static final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("IQL-Heartbeat").setDaemon(true).build());
 
+    private final ImhotepClient client;
     private final List<Stat> stats;
     private final String dataset;
     private final DateTime start;
@@ -76,12 +92,26 @@ public final class IQLQuery implements Closeable {
     private final List<Condition> conditions;
     private final List<Grouping> groupings;
     private final int rowLimit;
+    private final String username;
     private final ImhotepMetadataCache metadata;
+    private final long imhotepLocalTempFileSizeLimit;
+    private final long imhotepDaemonTempFileSizeLimit;
+    @Nullable
+    private final TimeSliceExecutor timeSliceExecutor;
+    // identifies the query independently of the time range when the results of slices can be cached
+    @Nullable
+    private final String partialResultCacheKey;
+    // order of the result rows requested with ORDER BY
+    @Nullable
+    private final GroupStatsComparator rowOrder;
     private final List<ShardIdWithVersion> shardVersionList;
     private final List<Interval> timeIntervalsMissingShards;
     private final ImhotepClient.SessionBuilder sessionBuilder;
     // session used for the current execution
-    private EZImhotepSession session;
+    private volatile EZImhotepSession session;
+    private volatile boolean cancelled = false;
+    // queries of the time slices being executed
+    private final Set<IQLQuery> runningSlices = Sets.newConcurrentHashSet();
 
     public IQLQuery(ImhotepClient client, final List<Stat> stats, final String dataset, final DateTime start, final DateTime end,
                     final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
@@ -93,6 +123,16 @@ public final class IQLQuery implements Closeable {
                     final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
                     final String username, ImhotepMetadataCache metadata, final long imhotepLocalTempFileSizeLimit,
                     final long imhotepDaemonTempFileSizeLimit) {
+        this(client, stats, dataset, start, end, conditions, groupings, rowLimit, username, metadata,
+                imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit, null, null, null);
+    }
+
+    public IQLQuery(ImhotepClient client, final List<Stat> stats, final String dataset, final DateTime start, final DateTime end,
+                    final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
+                    final String username, ImhotepMetadataCache metadata, final long imhotepLocalTempFileSizeLimit,
+                    final long imhotepDaemonTempFileSizeLimit, @Nullable TimeSliceExecutor timeSliceExecutor,
+                    @Nullable String partialResultCacheKey, @Nullable GroupStatsComparator rowOrder) {
+        this.client = client;
         this.stats = stats;
         this.dataset = dataset;
         this.start = start;
@@ -100,7 +140,13 @@ public final class IQLQuery implements Closeable {
         this.conditions = conditions;
         this.groupings = groupings;
         this.rowLimit = rowLimit;
+        this.username = username;
         this.metadata = metadata;
+        this.imhotepLocalTempFileSizeLimit = imhotepLocalTempFileSizeLimit;
+        this.imhotepDaemonTempFileSizeLimit = imhotepDaemonTempFileSizeLimit;
+        this.timeSliceExecutor = timeSliceExecutor;
+        this.partialResultCacheKey = partialResultCacheKey;
+        this.rowOrder = rowOrder;
 
         sessionBuilder = client.sessionBuilder(dataset, start, end)
                 .localTempFileSizeLimit(imhotepLocalTempFileSizeLimit)
@@ -109,10 +155,25 @@ public final class IQLQuery implements Closeable {
         timeIntervalsMissingShards = sessionBuilder.getTimeIntervalsMissingShards();
     }
 
+    /**
+     * Creates a query for one time slice of the given query. Executed serially in its own session.
+     */
+    private IQLQuery(IQLQuery query, Interval slice, List<Stat> stats, List<Grouping> groupings) {
+        this(query.client, stats, query.dataset, slice.getStart(), slice.getEnd(), query.conditions, groupings,
+                query.rowLimit, query.username, query.metadata, query.imhotepLocalTempFileSizeLimit,
+                query.imhotepDaemonTempFileSizeLimit, null, null, null);
+    }
+
     /**
      * Not thread safe due to session reference caching for close().
      */
     public ExecutionResult execute(boolean progress, OutputStream outputStream, boolean getTotals) throws ImhotepOutOfMemoryException {
+        if(canExecuteInTimeSlices()) {
+            final List<Interval> timeSlices = timeSliceExecutor.getTimeSlices(start, end, shardVersionList);
+            if(timeSlices.size() > 1) {
+                return executeTimeSliced(timeSlices, progress, outputStream, getTotals);
+            }
+        }
         //if outputStream passed, update on progress
         final PrintWriter out = progress ? new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outputStream), Charsets.UTF_8)) : null;
 
@@ -121,10 +182,16 @@ public final class IQLQuery implements Closeable {
         final ImhotepSession imhotepSession = sessionBuilder.build();
         session = new EZImhotepSession(imhotepSession);
         timer.pop();
+        if(cancelled) {
+            // cancelled while the session was being created
+            session.cancel();
+        }
 
         final long timeoutTS = System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
 
+        final Heartbeat heartbeat = progress ? new Heartbeat(out) : null;
         try {
+            checkCancelled();
             final int steps = conditions.size() + (groupings.size() == 0 ? 1 : groupings.size()) - 1;
             int count = 0;
             if(progress) {
@@ -133,6 +200,7 @@ public final class IQLQuery implements Closeable {
                 out.print("data: " + steps + EVENT_SOURCE_END);
                 out.print(": Starting time filter" + EVENT_SOURCE_END);
                 out.flush();
+                heartbeat.start();
             }
             timer.push("Time filter");
             timeFilter(session);
@@ -195,22 +263,258 @@ public final class IQLQuery implements Closeable {
                 result.add(new GroupStats(GroupKey.<Comparable>empty(), stats));
                 return new ExecutionResult(result.iterator(), stats, timer.toString(), session.getTempFilesBytesWritten());
             }
+        } catch (CancellationException e) {
+            log.info("Query execution cancelled");
+            throw e;
+        } catch (Throwable t) {
+            log.error("Error while executing the query", t);
+            throw Throwables.propagate(t);
+        } finally {
+            // the results are written to the output stream after returning
+            Closeables2.closeQuietly(heartbeat, log);
+        }
+    }
+
+    /**
+     * Time slices can be executed independently and merged only if all stats are additive and the groups created
+     * by the non last groupings don't depend on the data of the whole time range.
+     */
+    private boolean canExecuteInTimeSlices() {
+        if(timeSliceExecutor == null || !timeSliceExecutor.isEnabled()) {
+            return false;
+        }
+        return canMergeTimeSlices(stats, groupings);
+    }
+
+    static boolean canMergeTimeSlices(List<Stat> stats, List<Grouping> groupings) {
+        for (Stat stat : stats) {
+            if(!Stats.isAdditive(stat)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < groupings.size(); i++) {
+            final Grouping grouping = groupings.get(i);
+            if(grouping instanceof FieldGrouping) {
+                final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+                if(fieldGrouping.isTopK()) {
+                    // top terms of a slice are not the top terms of the whole range and merging all the terms of
+                    // the slices instead would lose the memory bound of top K
+                    return false;
+                }
+                final boolean isLast = i == groupings.size() - 1;
+                if(i > 0 && !fieldGrouping.isNoExplode() && (isLast || !fieldGrouping.isTermSubset())) {
+                    // the 0 rows are added for every parent group and every term of the slice so the union of the
+                    // slices misses the combinations of a parent and a term that are never in the same slice
+                    return false;
+                }
+            } else if(!(grouping instanceof StatRangeGrouping) && !(grouping instanceof StatRangeGrouping2D)) {
+                return false;   // distinct and percentiles can't be merged exactly
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes each time slice in its own session on the time slice executor and merges the results.
+     */
+    private ExecutionResult executeTimeSliced(List<Interval> timeSlices, boolean progress, OutputStream outputStream, final boolean getTotals) {
+        final PrintWriter out = progress ? new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outputStream), Charsets.UTF_8)) : null;
+        final long timeoutTS = System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
+        final TreeTimer timer = new TreeTimer();
+
+        if(progress) {
+            out.println(": Beginning IQL Query in " + timeSlices.size() + " time slices");
+            out.println("event: totalsteps");
+            out.print("data: " + timeSlices.size() + EVENT_SOURCE_END);
+            out.flush();
+        }
+
+        final Heartbeat heartbeat = progress ? new Heartbeat(out) : null;
+        if(heartbeat != null) {
+            heartbeat.start();
+        }
+        final List<Future<ExecutionResult>> futures = Lists.newArrayList();
+        final PartialResultCache partialResultCache = timeSliceExecutor.getPartialResultCache();
+        final boolean usePartialResultCache = partialResultCacheKey != null && partialResultCache.isEnabled();
+        try {
+            timer.push("Time sliced execution");
+            for (final Interval timeSlice : timeSlices) {
+                final IQLQuery sliceQuery = new IQLQuery(this, timeSlice, stats, groupings);
+                final String partialCacheFileName = usePartialResultCache ?
+                        PartialResultCache.getCacheFileName(partialResultCacheKey, timeSlice, sliceQuery.getShardVersionList()) : null;
+                futures.add(timeSliceExecutor.submit(new Callable<ExecutionResult>() {
+                    @Override
+                    public ExecutionResult call() throws Exception {
+                        runningSlices.add(sliceQuery);
+                        try {
+                            checkCancelled();
+                            if(partialCacheFileName != null) {
+                                final ExecutionResult cachedResult = partialResultCache.get(partialCacheFileName);
+                                if(cachedResult != null) {
+                                    return cachedResult;
+                                }
+                            }
+                            final ExecutionResult result = sliceQuery.execute(false, null, getTotals);
+                            // read all the rows while the session is still open
+                            final List<GroupStats> rows = Lists.newArrayList(result.getRows());
+                            // results without totals can't be reused by queries that need them
+                            if(partialCacheFileName != null && (getTotals || groupings.isEmpty())) {
+                                partialResultCache.put(partialCacheFileName, result.getTotals(), rows);
+                            }
+                            return new ExecutionResult(rows.iterator(), result.getTotals(),
+                                    timeSlice + "\n" + result.getTimings(), result.getImhotepTempFilesBytesWritten());
+                        } finally {
+                            runningSlices.remove(sliceQuery);
+                            Closeables2.closeQuietly(sliceQuery, log);
+                        }
+                    }
+                }));
+            }
+
+            final GroupStatsMerger merger = new GroupStatsMerger(groupings);
+            final StringBuilder timings = new StringBuilder();
+            double[] totals = new double[0];
+            long tempFilesBytesWritten = 0;
+            int count = 0;
+            for (Future<ExecutionResult> future : futures) {
+                final long timeLeft = timeoutTS - System.currentTimeMillis();
+                final ExecutionResult sliceResult;
+                try {
+                    sliceResult = future.get(Math.max(timeLeft, 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    checkTimeout(timeoutTS);
+                    throw Throwables.propagate(e);
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+                merger.add(sliceResult.getRows());
+                if(getTotals || groupings.isEmpty()) {
+                    totals = addStats(totals, sliceResult.getTotals());
+                }
+                timings.append(sliceResult.getTimings());
+                tempFilesBytesWritten += sliceResult.getImhotepTempFilesBytesWritten();
+                count = updateProgress(progress, out, count);
+            }
+            timer.pop();
+
+            final List<GroupStats> rows = merger.getResults();
+            return new ExecutionResult(rows.iterator(), totals, timer.toString() + timings, tempFilesBytesWritten);
+        } catch (CancellationException e) {
+            log.info("Query execution cancelled");
+            throw e;
         } catch (Throwable t) {
             log.error("Error while executing the query", t);
             throw Throwables.propagate(t);
+        } finally {
+            Closeables2.closeQuietly(heartbeat, log);
+            for (Future<ExecutionResult> future : futures) {
+                future.cancel(true);    // no-op for the completed slices
+            }
         }
     }
 
+    private static double[] addStats(double[] sum, double[] stats) {
+        if(sum.length < stats.length) {
+            sum = Arrays.copyOf(sum, stats.length);
+        }
+        for (int i = 0; i < stats.length; i++) {
+            sum[i] += stats[i];
+        }
+        return sum;
+    }
+
     private int updateProgress(boolean progress, PrintWriter out, int count) {
         count++;
         if(progress) {
-            out.println("event: chunkcomplete");
-            out.print("data: " + count + EVENT_SOURCE_END);
-            out.flush();
+            final boolean failed;
+            synchronized (out) {
+                out.println("event: chunkcomplete");
+                out.print("data: " + count + EVENT_SOURCE_END);
+                out.flush();
+                failed = out.checkError();
+            }
+            if(failed) {
+                log.info("Client disconnected, cancelling the query");
+                cancel();
+                checkCancelled();
+            }
         }
         return count;
     }
 
+    /**
+     * Periodically writes a comment to the progress event stream while the query executes. The servlet container only
+     * notices that the client disconnected when something is written so this cancels the query as soon as that fails
+     * instead of after the long Imhotep operations.
+     */
+    private final class Heartbeat implements Runnable, Closeable {
+        private final PrintWriter out;
+        // guarded by out
+        private boolean stopped = false;
+        private volatile Future<?> future;
+
+        private Heartbeat(PrintWriter out) {
+            this.out = out;
+        }
+
+        private void start() {
+            future = heartbeatExecutor.scheduleWithFixedDelay(this, HEARTBEAT_INTERVAL_SECONDS, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void run() {
+            final boolean failed;
+            synchronized (out) {
+                if(stopped) {
+                    return;
+                }
+                out.print(": heartbeat" + EVENT_SOURCE_END);
+                out.flush();
+                failed = out.checkError();
+            }
+            if(failed) {
+                log.info("Client disconnected, cancelling the query");
+                cancel();
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (out) {
+                stopped = true;
+            }
+            if(future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Stops the execution of the query from any thread. The Imhotep sessions are closed right away, which frees their
+     * resources on the daemons, and the execution fails with a {@link CancellationException}.
+     */
+    public void cancel() {
+        cancelled = true;
+        final EZImhotepSession currentSession = session;
+        if(currentSession != null) {
+            currentSession.cancel();
+        }
+        for (IQLQuery sliceQuery : runningSlices) {
+            sliceQuery.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void checkCancelled() {
+        if(cancelled) {
+            throw new CancellationException("The query was cancelled");
+        }
+    }
+
     private double[] getStats(List<StatReference> statRefs) {
         final double[] stats = new double[statRefs.size()];
         for (int i = 0; i < statRefs.size(); i++) {
@@ -265,6 +569,7 @@ public final class IQLQuery implements Closeable {
      * @param timeoutTS timestamp of when the query times out in milliseconds
      */
     public void checkTimeout(long timeoutTS) {
+        checkCancelled();
         if(System.currentTimeMillis() > timeoutTS) {
             throw new UncheckedTimeoutException("The query took longer than the allowed timeout of " + executionTimeout.toString(PeriodFormat.getDefault()));
         }
@@ -294,23 +599,27 @@ public final class IQLQuery implements Closeable {
     }
 
     private List<StatReference> pushStats(EZImhotepSession session) throws ImhotepOutOfMemoryException {
-        final List<StatReference> statRefs = Lists.newArrayList();
-        for (Stat stat : stats) {
-            final StatReference statReference = session.pushStatGeneric(stat);
-            statRefs.add(statReference);
-        }
-        return statRefs;
+        // pushed together so that the stats can share the sub-expressions they have in common
+        return session.pushStats(stats);
+    }
+
+    public boolean requiresSorting() {
+        return rowOrder != null;
     }
 
-    private boolean requiresSorting() {
-        // TODO: enable sorting
-//        if(groupings.size() > 0) {
-//            final Grouping lastGrouping = groupings.get(groupings.size() - 1);
-//            if(lastGrouping instanceof FieldGrouping && ((FieldGrouping)lastGrouping).isNoExplode()) {
-//                return true;    // currently we only have to sort when using non-exploded field grouping as the last grouping
-//            }
-//        }
-        return false;
+    /**
+     * Returns the rows in the order requested with ORDER BY limited to the row limit.
+     * Has to be closed if it's not iterated to the end.
+     */
+    public GroupStatsSorter.SortedRows sortResults(Iterator<GroupStats> rows, GroupStatsSorter sorter) {
+        if(rowOrder == null) {
+            throw new IllegalStateException("Query doesn't have ORDER BY");
+        }
+        try {
+            return sorter.sort(rows, rowOrder, rowLimit);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
     }
 
     public static class WriteResults {
@@ -331,11 +640,27 @@ public final class IQLQuery implements Closeable {
         }
     }
 
+    /**
+     * @param sharedResults if not null the output rows are added to it so that identical queries can stream them
+     */
     @Nonnull
-    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, int groupingColumns, int selectColumns, boolean cacheDisabled) {
+    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, GroupStatsSorter sorter, boolean cacheDisabled, @Nullable SharedResults sharedResults) {
         final long timeStarted = System.currentTimeMillis();
-        final boolean requiresSorting = requiresSorting();
-        if(cacheDisabled && !requiresSorting) { // just stream the rows out. don't have to worry about keeping a copy at all
+        if(!requiresSorting()) {
+            // stops reading the rows at the limit so that they are neither buffered nor spilled past it
+            final Iterator<GroupStats> limitedRows = Iterators.limit(rows, rowLimit);
+            return writeResults(sharedResults != null ? sharedResults.tee(limitedRows) : limitedRows, httpOutStream, csv, progress, rowLimit, cacheDisabled, timeStarted);
+        }
+        final GroupStatsSorter.SortedRows sortedRows = sortResults(rows, sorter);
+        try {
+            return writeResults(sharedResults != null ? sharedResults.tee(sortedRows) : sortedRows, httpOutStream, csv, progress, rowLimit, cacheDisabled, timeStarted);
+        } finally {
+            sortedRows.close();
+        }
+    }
+
+    private WriteResults writeResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, boolean cacheDisabled, long timeStarted) {
+        if(cacheDisabled) { // just stream the rows out. don't have to worry about keeping a copy at all
             final int rowsWritten = writeRowsToStream(rows, httpOutStream, csv, rowLimit, progress);
             return new WriteResults(rowsWritten, null, null, System.currentTimeMillis() - timeStarted);
         }
@@ -356,33 +681,19 @@ public final class IQLQuery implements Closeable {
         // TODO: figure out the size of the resulting data for reporting or limiting?
         if(!cacheOverflow) {
             // results fit in memory. stream them out
-            // TODO: in memory sort if necessary? or just always defer to gnu sort?
             final int rowsWritten = writeRowsToStream(resultsCache.iterator(), httpOutStream, csv, rowLimit, progress);
             return new WriteResults(rowsWritten, null, resultsCache.iterator(), System.currentTimeMillis() - timeStarted);
         } else {    // have to work with the files on the hard drive to avoid OOM
             try {
                 final File unsortedFile = File.createTempFile(TEMP_FILE_PREFIX, null);
-                final FileOutputStream fileOutputStream = new FileOutputStream(unsortedFile);
                 final long started = System.currentTimeMillis();
-                int rowsWritten = 0;
-                // flush cache
-                rowsWritten += writeRowsToStream(resultsCache.iterator(), fileOutputStream, csv, Integer.MAX_VALUE, false);
-                //noinspection UnusedAssignment
-                resultsCache = null;    // let it be GC'd
-                // save the remaining rows to disk
-                rowsWritten += writeRowsToStream(rows, fileOutputStream, csv, Integer.MAX_VALUE, false);
-                fileOutputStream.close();
+                // flush cache and save the remaining rows to disk
+                final int rowsWritten = (int) BinaryResultFormat.write(
+                        Iterators.concat(resultsCache.iterator(), rows), new FileOutputStream(unsortedFile)).getTotalRows();
                 log.trace("Stored on disk to " + unsortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
 
-                final File sortedFile;
-                if(requiresSorting) { // do on disk sort with gnu sort
-                    sortedFile = sortFile(unsortedFile, groupingColumns, selectColumns);
-                } else {
-                    sortedFile = unsortedFile;
-                }
-
                 // send the results out to the client
-                copyStream(new FileInputStream(sortedFile), httpOutStream, rowLimit, progress);
+                writeRowsToStream(new FileInputStream(unsortedFile), httpOutStream, csv, rowLimit, progress);
 
                 return new WriteResults(rowsWritten, unsortedFile, null, System.currentTimeMillis() - timeStarted);
             } catch (IOException e) {
@@ -392,99 +703,20 @@ public final class IQLQuery implements Closeable {
     }
 
     /**
-     * Sorts the given file by invoking gnu 'sort' command and returns a reference to the sorted copy.
-     * Expects inputFile to have ".tmp" in the name
+     * Renders the rows from a stream in the binary result format. The input stream is closed.
      */
-    private File sortFile(File inputFile, int groupingColumns, int selectColumns) {
+    public static int writeRowsToStream(InputStream binaryResults, OutputStream os, final boolean csv, final int rowLimit, final boolean progress) {
+        final BinaryResultFormat.Reader rows;
         try {
-            final long started;
-            final File sortedFile;
-            started = System.currentTimeMillis();
-            sortedFile = new File(inputFile.getPath().replace(".tmp", ".sorted.tmp"));
-            final List<String> sortCmd = Lists.newArrayList("sort", "-o", sortedFile.getPath(), "-t", "\t");
-
-            // TODO: custom sorting orders
-            for(int i = 1; i <= groupingColumns; i++) {
-                sortCmd.add("-k" + i + "," + i);
-            }
-            for(int i = groupingColumns + 1; i <= groupingColumns + selectColumns; i++) {
-                sortCmd.add("-k" + i + "," + i + "n");
-            }
-            sortCmd.add(inputFile.getPath());
-            log.trace(IQLQuery.join(sortCmd, " "));
-
-            final Process sortProc = Runtime.getRuntime().exec(sortCmd.toArray(new String[sortCmd.size()]), null);
-            sortProc.waitFor();
-            log.trace("Sorted to: " + sortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
-            return sortedFile;
+            rows = BinaryResultFormat.read(binaryResults);
         } catch (IOException e) {
+            Closeables2.closeQuietly(binaryResults, log);
             throw Throwables.propagate(e);
-        } catch (InterruptedException e) {
-            throw Throwables.propagate(e);
-        }
-    }
-
-    private static String join(Collection items, String delimiter) {
-        final StringBuilder sb = new StringBuilder(items.size() * 7);
-
-        for (final Iterator it = items.iterator(); it.hasNext(); ) {
-            sb.append(it.next());
-            if (it.hasNext()) {
-                sb.append(delimiter);
-            }
         }
-        return sb.toString();
-    }
-
-    /**
-     * Copies everything from input stream to the output stream, limiting to the requested number of lines if necessary.
-     * Input stream is closed; output stream is flushed but not closed when done.
-     */
-    public static int copyStream(InputStream inputStream, OutputStream outputStream, int lineLimit, boolean eventSource) {
-        final String EVENT_NAME = "resultstream";
         try {
-            if(!eventSource && (lineLimit == Integer.MAX_VALUE || lineLimit <= 0)) {
-                // no need to count rows so copy streams completely
-                // we can't do this if we need the eventSource data
-                ByteStreams.copy(inputStream, outputStream);
-                outputStream.flush();
-                return 0;    // unknown how many rows were copied as we haven't counted
-            }
-
-            // have to count the lines as we copy to enforce the limit
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, Charsets.UTF_8));
-            final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, Charsets.UTF_8));
-
-            if(eventSource) {
-                writer.write("event: " + EVENT_NAME);
-                writer.newLine();
-            }
-
-            String line = reader.readLine();
-            int linesCopied = 0;
-            while(line != null) {
-                if(eventSource) {
-                    line = "data: " + line;
-                }
-                writer.write(line);
-                writer.newLine();
-
-                if(++linesCopied >= lineLimit) {
-                    break;
-                }
-
-                line = reader.readLine();
-            }
-            if(eventSource) {
-                writer.write("\nevent: complete\ndata: :)\n\n");
-            }
-            Closeables2.closeQuietly(reader, log);
-            writer.flush();
-            return linesCopied;
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
+            return writeRowsToStream(rows, os, csv, rowLimit, progress);
         } finally {
-            Closeables2.closeQuietly(inputStream, log);
+            rows.close();
         }
     }
 
@@ -518,13 +750,13 @@ public final class IQLQuery implements Closeable {
                 out.print("data: ");
             }
             if(!csv) { // TSV
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    out.print(current.head());
-                    current = current.tail();
-                    if (!current.isEmpty()) {
+                boolean first = true;
+                for (Object keyElement : entry.groupKey) {
+                    if (!first) {
                         out.print(tsvDelimiter);
                     }
+                    out.print(keyElement);
+                    first = false;
                 }
                 for (double l : entry.stats) {
                     out.print(tsvDelimiter);
@@ -532,10 +764,8 @@ public final class IQLQuery implements Closeable {
                 }
                 out.println();
             } else {    // csv
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    csvFields.add(current.head().toString());
-                    current = current.tail();
+                for (Object keyElement : entry.groupKey) {
+                    csvFields.add(keyElement.toString());
                 }
                 for (double l : entry.stats) {
                     csvFields.add(format.format(l));
@@ -554,6 +784,18 @@ public final class IQLQuery implements Closeable {
         return rowsProcessed;
     }
 
+    public String getDataset() {
+        return dataset;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    public List<Grouping> getGroupings() {
+        return groupings;
+    }
+
     public List<ShardIdWithVersion> getShardVersionList() {
         return shardVersionList;
     }
@@ -41,4 +41,16 @@ public final class IntInCondition implements Condition {
             session.filter(intField, values);
         }
     }
+
+    public Field.IntField getIntField() {
+        return intField;
+    }
+
+    public long[] getValues() {
+        return values;
+    }
+
+    public boolean isNegation() {
+        return negation;
+    }
 }
@@ -14,7 +14,7 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.EZImhotepSession.FTGSCallback;
@@ -32,7 +32,6 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -106,44 +105,40 @@ public class PercentileGrouping extends Grouping {
     }
 
     private Int2ObjectMap<Int2LongMap> getPercentileStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final StatReference countStatRef, final long[] counts) {
-        final Set<Field> uniqueFields = Sets.newHashSet(fields);
-
         final Int2ObjectMap<Int2LongMap> groupToPositionToStats = new Int2ObjectOpenHashMap<Int2LongMap>();
         for (final int group : groupKeys.keySet()) {
             groupToPositionToStats.put(group, new Int2LongOpenHashMap());
         }
 
-        for (final Field f : uniqueFields) {
-            final List<Double> fieldPercentiles = Lists.newArrayList();
-            final List<Integer> projectionPositions = Lists.newArrayList();
-
-            for (int i = 0; i < fields.size(); ++i) {
-                if (f.equals(fields.get(i))) {
-                    fieldPercentiles.add(percentiles.get(i));
-                    projectionPositions.add(fieldProjectionPositions.get(i));
-                }
-            }
-
-            final Int2ObjectMap<DoubleList> percentileValues = new Int2ObjectOpenHashMap<DoubleList>();
-            for (final int group : groupKeys.keySet()) {
-                final DoubleList groupPercentileValues = new DoubleArrayList();
-                for (final double percentile : fieldPercentiles) {
-                    groupPercentileValues.add(percentile / 100 * counts[group]);
-                }
-                percentileValues.put(group, groupPercentileValues);
+        // percentiles of all the fields are found in a single pass. fields are iterated as int fields by name
+        final Map<String, FieldPercentiles> fieldToPercentiles = Maps.newLinkedHashMap();
+        for (int i = 0; i < fields.size(); ++i) {
+            final String fieldName = fields.get(i).getFieldName();
+            FieldPercentiles fieldPercentiles = fieldToPercentiles.get(fieldName);
+            if (fieldPercentiles == null) {
+                fieldPercentiles = new FieldPercentiles();
+                fieldToPercentiles.put(fieldName, fieldPercentiles);
             }
+            fieldPercentiles.addPercentile(percentiles.get(i), fieldProjectionPositions.get(i));
+        }
 
-            final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef, percentileValues);
+        final List<Field> ftgsFields = Lists.newArrayList();
+        for (final Map.Entry<String, FieldPercentiles> entry : fieldToPercentiles.entrySet()) {
+            entry.getValue().initGroups(groupKeys.keySet(), counts);
             // hack for ramses indexes, it's slower to iterate over a string field as an int field but it's better than
             // doing a 2D metric regroup like ramhotep does
-            final Field ftgsField = f.isIntField() ? f : Field.intField(f.getFieldName());
-            session.ftgsIterate(Arrays.asList(ftgsField), callback);
+            ftgsFields.add(Field.intField(entry.getKey()));
+        }
+
+        final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef, fieldToPercentiles);
+        session.ftgsIterate(ftgsFields, callback);
 
-            final Int2ObjectMap<LongList> groupToPercentileStats = callback.finalizeAndGetGroupToPercentileStats();
+        for (final FieldPercentiles fieldPercentiles : fieldToPercentiles.values()) {
+            final Int2ObjectMap<LongList> groupToPercentileStats = fieldPercentiles.finalizeAndGetGroupToPercentileStats();
             for (final int group : groupToPercentileStats.keySet()) {
                 final LongList percentileStats = groupToPercentileStats.get(group);
                 for (int i = 0; i < percentileStats.size(); ++i) {
-                    final int position = projectionPositions.get(i);
+                    final int position = fieldPercentiles.projectionPositions.get(i);
                     groupToPositionToStats.get(group).put(position, percentileStats.getLong(i));
                 }
             }
@@ -182,34 +177,60 @@ public class PercentileGrouping extends Grouping {
     }
 
     private static class PercentileFTGSCallback extends FTGSCallback {
-        private final Int2ObjectMap<LongList> groupToPercentileStats;
-
         private final StatReference statRef;
-        private final Int2ObjectMap<DoubleList> percentileValues;
+        private final Map<String, FieldPercentiles> fieldToPercentiles;
 
-        private Int2LongMap groupToPrevCount = new Int2LongOpenHashMap();
-        private Int2LongMap groupToPrevTerm = new Int2LongOpenHashMap();
-
-        private PercentileFTGSCallback(final int numStats, final StatReference statRef, final Int2ObjectMap<DoubleList> percentileValues) {
+        private PercentileFTGSCallback(final int numStats, final StatReference statRef, final Map<String, FieldPercentiles> fieldToPercentiles) {
             super(numStats);
 
             this.statRef = statRef;
-            this.percentileValues = percentileValues;
+            this.fieldToPercentiles = fieldToPercentiles;
+        }
+
+        @Override
+        protected void intTermGroup(final String field, final long term, final int group) {
+            fieldToPercentiles.get(field).addTermCount(term, group, Math.round(getStat(statRef)));
+        }
+
+        @Override
+        protected void stringTermGroup(final String field, final String term, final int group) {
+            throw new UnsupportedOperationException("Percentiles do not work with string fields");
+        }
+    }
+
+    /**
+     * Percentiles requested for one field and the terms found for them so far.
+     */
+    private static class FieldPercentiles {
+        private final List<Double> percentiles = Lists.newArrayList();
+        private final List<Integer> projectionPositions = Lists.newArrayList();
+
+        private final Int2ObjectMap<DoubleList> percentileValues = new Int2ObjectOpenHashMap<DoubleList>();
+        private final Int2ObjectMap<LongList> groupToPercentileStats = new Int2ObjectOpenHashMap<LongList>();
+
+        private final Int2LongMap groupToPrevCount = new Int2LongOpenHashMap();
+        private final Int2LongMap groupToPrevTerm = new Int2LongOpenHashMap();
+
+        private void addPercentile(final double percentile, final int projectionPosition) {
+            percentiles.add(percentile);
+            projectionPositions.add(projectionPosition);
+        }
 
-            groupToPercentileStats = new Int2ObjectOpenHashMap<LongList>();
-            for (final int group : percentileValues.keySet()) {
+        private void initGroups(final Set<Integer> groups, final long[] counts) {
+            for (final int group : groups) {
+                final DoubleList groupPercentileValues = new DoubleArrayList();
                 final LongList stats = new LongArrayList();
-                for (int i = 0; i < percentileValues.get(group).size(); ++i) {
+                for (final double percentile : percentiles) {
+                    groupPercentileValues.add(percentile / 100 * counts[group]);
                     stats.add(Long.MIN_VALUE);
                 }
+                percentileValues.put(group, groupPercentileValues);
                 groupToPercentileStats.put(group, stats);
             }
         }
 
-        @Override
-        protected void intTermGroup(final String field, final long term, final int group) {
+        private void addTermCount(final long term, final int group, final long countForTerm) {
             final long prevCount = groupToPrevCount.get(group);
-            final long countForTerm = Math.round(getStat(statRef));
             final long newCount = prevCount + countForTerm;
 
             final DoubleList groupPercentileValues = percentileValues.get(group);
@@ -224,12 +245,7 @@ public class PercentileGrouping extends Grouping {
             groupToPrevTerm.put(group, term);
         }
 
-        @Override
-        protected void stringTermGroup(final String field, final String term, final int group) {
-            throw new UnsupportedOperationException("Percentiles do not work with string fields");
-        }
-
-        public Int2ObjectMap<LongList> finalizeAndGetGroupToPercentileStats() {
+        private Int2ObjectMap<LongList> finalizeAndGetGroupToPercentileStats() {
             for (final int group : groupToPercentileStats.keySet()) {
                 final LongList stats = groupToPercentileStats.get(group);
                 for (int i = 0; i < stats.size(); ++i) {
@@ -39,4 +39,8 @@ public final class QueryCondition implements Condition {
             session.filter(query);
         }
     }
+
+    public boolean isNegation() {
+        return negation;
+    }
 }
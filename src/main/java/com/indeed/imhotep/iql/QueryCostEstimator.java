@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.indeed.imhotep.web.ImhotepMetadataCache;
+import com.indeed.imhotep.web.TopTermsCache;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Estimates the work a query is going to do before it's executed, from the shards it covers, its conditions and
+ * the shape of its groupings, so that expensive queries can be told apart from the cheap ones up front.
+ * The document count comes from the shard list of the dataset, the fraction of the documents left after the
+ * conditions from the {@link ConditionPlanner} estimates and the number of groups from the bucket counts, top K
+ * limits and term lists of the groupings. Fields grouped by all their terms are assumed to have the number of terms
+ * in the top terms cache if it's not full or the configured default otherwise.
+ */
+public final class QueryCostEstimator {
+    private final ImhotepMetadataCache metadata;
+    @Nullable
+    private final TopTermsCache topTermsCache;
+    private final long defaultFieldTerms;
+
+    /**
+     * @param topTermsCache used to estimate the number of terms of the fields. Can be null
+     * @param defaultFieldTerms number of terms assumed for the fields grouped by all their terms when nothing better is known
+     */
+    public QueryCostEstimator(ImhotepMetadataCache metadata, @Nullable TopTermsCache topTermsCache, long defaultFieldTerms) {
+        this.metadata = metadata;
+        this.topTermsCache = topTermsCache;
+        this.defaultFieldTerms = defaultFieldTerms;
+    }
+
+    public Cost estimate(IQLQuery query) {
+        final String dataset = query.getDataset();
+        final int shardCount = query.getShardVersionList().size();
+        final long docCount = metadata.getDocCount(dataset, query.getShardVersionList());
+
+        double selectivity = 1;
+        final ConditionPlanner conditionPlanner = new ConditionPlanner(topTermsCache, dataset);
+        for (Condition condition : query.getConditions()) {
+            selectivity *= conditionPlanner.getSelectivity(condition);
+        }
+        final long matchingDocCount = docCount >= 0 ? (long) Math.ceil(docCount * selectivity) : -1;
+
+        double fixedGroupCount = 1;
+        double groupCount = 1;
+        for (Grouping grouping : query.getGroupings()) {
+            if(grouping instanceof StatRangeGrouping) {
+                final long buckets = ((StatRangeGrouping) grouping).getBucketCount();
+                fixedGroupCount *= buckets;
+                groupCount *= buckets;
+            } else if(grouping instanceof StatRangeGrouping2D) {
+                final long buckets = ((StatRangeGrouping2D) grouping).getBucketCount();
+                fixedGroupCount *= buckets;
+                groupCount *= buckets;
+            } else if(grouping instanceof FieldGrouping) {
+                final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+                if(fieldGrouping.isTopK()) {
+                    groupCount *= fieldGrouping.getTopK();
+                } else if(fieldGrouping.isTermSubset()) {
+                    groupCount *= fieldGrouping.getTermSubset().size();
+                } else {
+                    groupCount *= getFieldTerms(dataset, fieldGrouping.getField().getFieldName());
+                }
+            } else if(grouping instanceof DistinctGrouping || grouping instanceof PercentileGrouping) {
+                // computed for the existing groups without splitting them
+            } else {
+                // groupings by the mapped terms of a field
+                groupCount *= defaultFieldTerms;
+            }
+        }
+        // term groups without documents are never created. buckets are created regardless
+        if(matchingDocCount >= 0) {
+            groupCount = Math.min(groupCount, Math.max(fixedGroupCount, matchingDocCount));
+        }
+        return new Cost(shardCount, docCount, matchingDocCount, toLong(fixedGroupCount), toLong(groupCount));
+    }
+
+    private long getFieldTerms(String dataset, String field) {
+        if(topTermsCache == null) {
+            return defaultFieldTerms;
+        }
+        final List<String> topTerms = topTermsCache.getTopTerms(dataset, field);
+        // the cache has all the terms of fields with fewer terms than it keeps
+        if(!topTerms.isEmpty() && topTerms.size() < TopTermsCache.TERMS_TO_CACHE) {
+            return topTerms.size();
+        }
+        return defaultFieldTerms;
+    }
+
+    private static long toLong(double value) {
+        return value >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) value;
+    }
+
+    public static final class Cost {
+        private final int shardCount;
+        private final long docCount;
+        private final long matchingDocCount;
+        private final long fixedGroupCount;
+        private final long groupCount;
+
+        public Cost(int shardCount, long docCount, long matchingDocCount, long fixedGroupCount, long groupCount) {
+            this.shardCount = shardCount;
+            this.docCount = docCount;
+            this.matchingDocCount = matchingDocCount;
+            this.fixedGroupCount = fixedGroupCount;
+            this.groupCount = groupCount;
+        }
+
+        public int getShardCount() {
+            return shardCount;
+        }
+
+        /**
+         * Returns the number of documents in the shards of the query or -1 if it's not known.
+         */
+        public long getDocCount() {
+            return docCount;
+        }
+
+        /**
+         * Returns the estimated number of documents left after the conditions or -1 if it's not known.
+         */
+        public long getMatchingDocCount() {
+            return matchingDocCount;
+        }
+
+        /**
+         * Returns the number of groups created regardless of the data, by the bucket groupings.
+         */
+        public long getFixedGroupCount() {
+            return fixedGroupCount;
+        }
+
+        /**
+         * Returns the estimated number of groups and result rows.
+         */
+        public long getGroupCount() {
+            return groupCount;
+        }
+
+        @Override
+        public String toString() {
+            return "shards=" + shardCount + " docs=" + docCount + " matchingDocs=" + matchingDocCount +
+                    " groups=" + groupCount;
+        }
+    }
+}
@@ -41,4 +41,8 @@ public final class RegexCondition implements Condition {
             session.filterRegex(stringField, regex);
         }
     }
+
+    public boolean isNegation() {
+        return negation;
+    }
 }
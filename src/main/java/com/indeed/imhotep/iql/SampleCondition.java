@@ -41,4 +41,11 @@ public class SampleCondition implements Condition {
     public void filter(EZImhotepSession session) throws ImhotepOutOfMemoryException {
         session.filterSample(field, p, salt);
     }
+
+    /**
+     * @return ratio of terms that will be removed by this condition
+     */
+    public double getRemovedRatio() {
+        return p;
+    }
 }
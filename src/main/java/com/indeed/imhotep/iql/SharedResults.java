@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Result rows of a query execution shared with the identical queries that arrive while it's running.
+ * The execution adds the rows as it outputs them and any number of readers stream them from the start while they
+ * are being added, so duplicate queries neither execute again nor wait for the results to reach the cache.
+ * The first rows are kept in memory and the rest are spilled to a temp file that is deleted once the execution
+ * and all the readers are done with it. Results that outgrow the memory before anyone started reading them are
+ * not shared at all to avoid spilling every large result.
+ */
+public final class SharedResults implements Closeable {
+    private static final Logger log = Logger.getLogger(SharedResults.class);
+    private static final int MAX_ROWS_IN_MEMORY = 10000;
+    // rows are made visible to the readers in batches to avoid waking them up for each row
+    private static final int BATCH_SIZE = 256;
+
+    private final List<GroupStats> memoryRows = Lists.newArrayList();
+    private final List<GroupStats> pendingRows = Lists.newArrayListWithCapacity(BATCH_SIZE);
+    private File spillFile = null;
+    private DataOutputStream spillOut = null;
+    // rows visible to the readers
+    private long rowCount = 0;
+    private boolean done = false;
+    private Throwable failure = null;
+    private boolean writerClosed = false;
+    private int openReaders = 0;
+    private boolean readerCreated = false;
+    // set when the rows outgrew the memory without any readers. only accessed by the execution thread afterwards
+    private boolean abandoned = false;
+
+    /**
+     * Returns an iterator over the rows that adds each row to the shared results as it's read.
+     * {@link #finish()} has to be called once all the rows that are going to be output were read.
+     */
+    public Iterator<GroupStats> tee(final Iterator<GroupStats> rows) {
+        return new Iterator<GroupStats>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public GroupStats next() {
+                final GroupStats row = rows.next();
+                add(row);
+                return row;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void add(GroupStats row) {
+        if(row == null || abandoned) {
+            return;
+        }
+        pendingRows.add(row);
+        if(pendingRows.size() >= BATCH_SIZE) {
+            publishPendingRows();
+        }
+    }
+
+    private void publishPendingRows() {
+        if(pendingRows.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if(spillOut == null && memoryRows.size() + pendingRows.size() <= MAX_ROWS_IN_MEMORY) {
+                memoryRows.addAll(pendingRows);
+                rowCount += pendingRows.size();
+                pendingRows.clear();
+                notifyAll();
+                return;
+            }
+            if(spillOut == null && !readerCreated) {
+                abandoned = true;
+                memoryRows.clear();
+                pendingRows.clear();
+                return;
+            }
+        }
+        // spilled rows are only read by the readers once they are published so they are written without the lock
+        try {
+            if(spillOut == null) {
+                spillFile = File.createTempFile("iql_shared_", ".tmp");
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            for (GroupStats row : pendingRows) {
+                GroupStatsSerializer.write(spillOut, row);
+            }
+            spillOut.flush();
+        } catch (IOException e) {
+            fail(e);
+            throw Throwables.propagate(e);
+        }
+        synchronized (this) {
+            rowCount += pendingRows.size();
+            pendingRows.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the rows as complete.
+     */
+    public void finish() {
+        if(!abandoned) {
+            publishPendingRows();
+        }
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Makes the readers that reach the end of the rows added so far fail with the error.
+     */
+    public synchronized void fail(Throwable t) {
+        if(done) {
+            return;
+        }
+        failure = t;
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns a reader over all the rows from the start or null if the rows are not shared.
+     * The reader blocks until more rows are added or they are complete. Has to be closed.
+     */
+    @Nullable
+    public synchronized Reader newReader() {
+        if(abandoned || writerClosed) {
+            return null;
+        }
+        readerCreated = true;
+        openReaders++;
+        return new Reader();
+    }
+
+    /**
+     * Called by the execution when it's done adding rows. Fails the readers if the rows are not complete.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if(writerClosed) {
+                return;
+            }
+            writerClosed = true;
+        }
+        fail(new IllegalStateException("Original execution of the query stopped before completing the results"));
+        Closeables2.closeQuietly(spillOut, log);
+        releaseIfUnused();
+    }
+
+    private void releaseIfUnused() {
+        final File fileToDelete;
+        synchronized (this) {
+            if(!writerClosed || openReaders > 0 || spillFile == null) {
+                return;
+            }
+            fileToDelete = spillFile;
+            spillFile = null;
+        }
+        if(!fileToDelete.delete()) {
+            log.info("Failed to delete: " + fileToDelete.getPath());
+        }
+    }
+
+    /**
+     * Blocks until there are more than position rows or the rows are complete. Returns the number of available rows.
+     */
+    private synchronized long awaitRows(long position) {
+        while(rowCount <= position && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while waiting for the results of the original execution of the query");
+            }
+        }
+        if(rowCount <= position && failure != null) {
+            throw new RuntimeException("Original execution of the query failed", failure);
+        }
+        return rowCount;
+    }
+
+    public final class Reader implements Iterator<GroupStats>, Closeable {
+        private final List<GroupStats> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+        private int batchPosition = 0;
+        // rows read so far
+        private long position = 0;
+        private DataInputStream spillIn = null;
+        private boolean closed = false;
+
+        private Reader() {
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(closed) {
+                return false;
+            }
+            if(batchPosition < batch.size()) {
+                return true;
+            }
+            final long available = awaitRows(position);
+            if(available <= position) {
+                close();
+                return false;
+            }
+            batch.clear();
+            batchPosition = 0;
+            try {
+                readBatch(available);
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+            return true;
+        }
+
+        private void readBatch(long available) throws IOException {
+            final long end = Math.min(available, position + BATCH_SIZE);
+            synchronized (SharedResults.this) {
+                while(position < end && position < memoryRows.size()) {
+                    batch.add(memoryRows.get((int) position++));
+                }
+            }
+            if(position < end) {
+                if(spillIn == null) {
+                    spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(getSpillFile())));
+                }
+                while(position < end) {
+                    batch.add(GroupStatsSerializer.read(spillIn));
+                    position++;
+                }
+            }
+        }
+
+        @Override
+        public GroupStats next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(batchPosition++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            Closeables2.closeQuietly(spillIn, log);
+            synchronized (SharedResults.this) {
+                openReaders--;
+            }
+            releaseIfUnused();
+        }
+    }
+
+    @Nullable
+    synchronized File getSpillFile() {
+        return spillFile;
+    }
+}
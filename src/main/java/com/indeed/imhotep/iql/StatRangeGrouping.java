@@ -21,6 +21,8 @@ import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
@@ -58,6 +60,21 @@ public final class StatRangeGrouping extends Grouping {
         }
     }
 
+    /**
+     * Returns the number of groups each existing group is split into including the gutters.
+     */
+    public long getBucketCount() {
+        return (maxValue - minValue - 1) / intervalSize + 1 + (noGutters ? 0 : 2);
+    }
+
+    /**
+     * Returns the names of the buckets each existing group is split into in the order of the new groups.
+     */
+    public List<String> getBucketNames() {
+        final String[] bucketNames = EZImhotepSession.getMetricBucketNames(minValue, maxValue, intervalSize, noGutters, stringFormatter);
+        return Arrays.asList(bucketNames).subList(1, bucketNames.length);
+    }
+
     public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
         if(groupKeys.isEmpty()) {
             return groupKeys;
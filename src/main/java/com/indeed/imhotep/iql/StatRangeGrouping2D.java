@@ -20,6 +20,8 @@ import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
@@ -62,6 +64,21 @@ public final class StatRangeGrouping2D extends Grouping {
         }
     }
 
+    /**
+     * Returns the number of groups each existing group is split into including the gutters.
+     */
+    public long getBucketCount() {
+        return ((xMax - 1 - xMin) / xIntervalSize + 3) * ((yMax - 1 - yMin) / yIntervalSize + 3);
+    }
+
+    /**
+     * Returns the names of the buckets in the order of the new groups.
+     */
+    public List<String> getBucketNames() {
+        final String[] bucketNames = EZImhotepSession.getMetricBucketNames2D(xMin, xMax, xIntervalSize, yMin, yMax, yIntervalSize);
+        return Arrays.asList(bucketNames).subList(1, bucketNames.length);
+    }
+
     public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
         if(groupKeys.isEmpty()) {
             return groupKeys;
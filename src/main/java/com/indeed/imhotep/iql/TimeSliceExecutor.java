@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ShardInfo;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.iql.cache.PartialResultCache;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+import org.joda.time.Interval;
+import org.joda.time.LocalDate;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the time slices of queries on a bounded pool of threads shared by all queries.
+ * Each slice is executed in its own Imhotep session and the results are merged by the caller.
+ */
+public class TimeSliceExecutor implements Closeable {
+    private static final Logger log = Logger.getLogger(TimeSliceExecutor.class);
+    private static final LocalDate EPOCH_DAY = new LocalDate(1970, 1, 1);
+
+    private final ExecutorService executorService;
+    private final int maxSlices;
+    private final PartialResultCache partialResultCache;
+
+    /**
+     * @param threads number of slices that can be executed concurrently across all queries. 0 disables slicing
+     * @param maxSlices maximum number of slices a single query is split into
+     * @param partialResultCache cache for the results of individual slices
+     */
+    public TimeSliceExecutor(int threads, int maxSlices, PartialResultCache partialResultCache) {
+        this.maxSlices = maxSlices;
+        this.partialResultCache = partialResultCache;
+        if(threads > 0) {
+            executorService = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("IQL-TimeSlice"));
+        } else {
+            executorService = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return executorService != null && maxSlices > 1;
+    }
+
+    public PartialResultCache getPartialResultCache() {
+        return partialResultCache;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executorService.submit(task);
+    }
+
+    /**
+     * Splits the [start, end) range into slices of whole days that contain at least one of the given shards.
+     * Slice length is the smallest power of 2 days that keeps the slice count around maxSlices and the slice boundaries
+     * are aligned to multiples of that length since the epoch so that the same range always produces the same slices.
+     * Returns a single slice when the range can't be split.
+     */
+    public List<Interval> getTimeSlices(DateTime start, DateTime end, List<ShardIdWithVersion> shards) {
+        final List<Interval> slices = Lists.newArrayList();
+        final int days = Days.daysBetween(start.toLocalDate(), end.minusMillis(1).toLocalDate()).getDays() + 1;
+        if(!isEnabled() || days < 2) {
+            slices.add(new Interval(start, end));
+            return slices;
+        }
+        int sliceDays = 1;
+        while((days + sliceDays - 1) / sliceDays > maxSlices) {
+            sliceDays *= 2;
+        }
+
+        DateTime sliceStart = start;
+        int boundaryIndex = (Days.daysBetween(EPOCH_DAY, start.toLocalDate()).getDays() / sliceDays + 1) * sliceDays;
+        while(sliceStart.isBefore(end)) {
+            DateTime sliceEnd = EPOCH_DAY.plusDays(boundaryIndex).toDateTimeAtStartOfDay(start.getZone());
+            if(!sliceEnd.isBefore(end)) {
+                sliceEnd = end;
+            }
+            final Interval slice = new Interval(sliceStart, sliceEnd);
+            if(containsShards(slice, shards)) {
+                slices.add(slice);
+            }
+            sliceStart = sliceEnd;
+            boundaryIndex += sliceDays;
+        }
+        if(slices.isEmpty()) {
+            slices.add(new Interval(start, end));
+        }
+        return slices;
+    }
+
+    private static boolean containsShards(Interval slice, List<ShardIdWithVersion> shards) {
+        for(ShardIdWithVersion shard : shards) {
+            final ShardInfo.DateTimeRange range = shard.getRange();
+            if(range.start.getMillis() < slice.getEndMillis() && range.end.getMillis() > slice.getStartMillis()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if(executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+}
@@ -14,29 +14,30 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.indeed.util.core.Pair;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.GroupKey;
 import com.indeed.imhotep.ez.StatReference;
+import com.indeed.imhotep.ez.TopKHeap;
 import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
 import java.util.*;
 
 /**
+ * Collects the top K terms of each group in a {@link TopKHeap} and creates the rows only for the terms that made it.
  * @author jplaisance
  */
 public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
     private static final Logger log = Logger.getLogger(TopKGroupingFTGSCallback.class);
 
-    private final Map<Integer, PriorityQueue<Pair<Double, GroupStats>>> groupToTopK = Maps.newHashMap();
-    private final Comparator<Pair<Double, GroupStats>> comparator;
+    // by group
+    private final TopKHeap[] groupToTopK;
     private final int topK;
     private final boolean isBottom;
     private final StatReference countStat;
     private final List<StatReference> statRefs;
     private final Map<Integer, GroupKey> groupKeys;
+    private boolean isIntField = false;
     private int newGroupCount = 0;
 
     public TopKGroupingFTGSCallback(final int numStats, int topK, StatReference countStat, List<StatReference> statRefs,
@@ -47,92 +48,61 @@ public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSCallbac
         this.countStat = countStat;
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
-        // do a custom comparator to ensure that real numbers are preferred to NaNs
-        final Comparator<Pair<Double, GroupStats>> baseComparator = new Comparator<Pair<Double, GroupStats>>() {
-            @Override
-            public int compare(Pair<Double, GroupStats> o1, Pair<Double, GroupStats> o2) {
-                Double a = o1.getFirst();
-                if(a.isNaN()) {
-                    a = Double.NEGATIVE_INFINITY;
-                }
-                Double b = o2.getFirst();
-                if(b.isNaN()) {
-                    b = Double.NEGATIVE_INFINITY;
-                }
-                return a.compareTo(b);
-            }
-        };
-        final Comparator<Pair<Double, GroupStats>> reverseComparator = new Comparator<Pair<Double, GroupStats>>() {
-            @Override
-            public int compare(Pair<Double, GroupStats> o1, Pair<Double, GroupStats> o2) {
-                Double a = o1.getFirst();
-                if(a.isNaN()) {
-                    a = Double.POSITIVE_INFINITY;
-                }
-                Double b = o2.getFirst();
-                if(b.isNaN()) {
-                    b = Double.POSITIVE_INFINITY;
-                }
-                return b.compareTo(a);  // reverse the result by swapping the sides
-            }
-        };
-
-        this.comparator = isBottom ? reverseComparator : baseComparator;
+        groupToTopK = new TopKHeap[groupKeys.size() + 1];
     }
 
     protected void intTermGroup(final String field, final long term, final int group) {
-        termGroup(term, group);
+        isIntField = true;
+        final int slot = offer(group);
+        if (slot >= 0) {
+            groupToTopK[group].setIntTerm(slot, term);
+        }
     }
 
     protected void stringTermGroup(final String field, final String term, final int group) {
-        termGroup(term, group);
+        final int slot = offer(group);
+        if (slot >= 0) {
+            groupToTopK[group].setStringTerm(slot, term);
+        }
     }
 
-    private void termGroup(final Object term, final int group) {
-        PriorityQueue<Pair<Double, GroupStats>> topTerms = groupToTopK.get(group);
+    /**
+     * Offers the current term of the group and sets its stats if it's kept. Returns the slot of the term or -1.
+     */
+    private int offer(final int group) {
+        if (group >= groupToTopK.length) {
+            return -1;  // not a group of the previous groupings
+        }
+        TopKHeap topTerms = groupToTopK[group];
         if (topTerms == null) {
-            topTerms = new PriorityQueue<Pair<Double, GroupStats>>(topK, comparator);
-            groupToTopK.put(group, topTerms);
+            topTerms = new TopKHeap(topK, isBottom, statRefs.size());
+            groupToTopK[group] = topTerms;
         }
-        final double count = getStat(countStat);
-        if (topTerms.size() < topK) {
-            topTerms.add(getStats(count, group, term));
-
-            if(++newGroupCount > EZImhotepSession.GROUP_LIMIT) {
-                throw new IllegalArgumentException("Number of groups exceeds the limit " +
-                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
-                        ". Please simplify the query.");
-            }
-        } else {
-            final Double headCount = topTerms.peek().getFirst();
-            if ((!isBottom && count > headCount) ||
-                    (isBottom && count < headCount) ||
-                    (headCount.isNaN() && !Double.isNaN(count))) {
-                topTerms.remove();
-                topTerms.add(getStats(count, group, term));
-            }
+        final boolean full = topTerms.size() >= topK;
+        final int slot = topTerms.offer(getStat(countStat));
+        if (slot < 0) {
+            return slot;
+        }
+        if (!full && ++newGroupCount > EZImhotepSession.GROUP_LIMIT) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query.");
         }
-    }
-
-    private Pair<Double, GroupStats> getStats(double count, int group, Object term) {
-        final double[] stats = new double[statRefs.size()];
         for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+            topTerms.setStat(slot, i, getStat(statRefs.get(i)));
         }
-        return Pair.of(count, new GroupStats(groupKeys.get(group).add(term), stats));
+        return slot;
     }
 
     public List<GroupStats> getResults() {
         final List<GroupStats> ret = Lists.newArrayList();
-        final ArrayDeque<Pair<Double, GroupStats>> stack = new ArrayDeque<Pair<Double, GroupStats>>();
         for (int group = 1; group <= groupKeys.size(); group++) {
-            final PriorityQueue<Pair<Double, GroupStats>> pairs = groupToTopK.get(group);
-            if (pairs != null) {
-                while (!pairs.isEmpty()) {
-                    stack.push(pairs.remove());
-                }
-                while (!stack.isEmpty()) {
-                    ret.add(stack.remove().getSecond());
+            final TopKHeap topTerms = group < groupToTopK.length ? groupToTopK[group] : null;
+            if (topTerms != null) {
+                final GroupKey groupKey = groupKeys.get(group);
+                for (int slot : topTerms.drainBestFirst()) {
+                    final Object term = isIntField ? topTerms.getIntTerm(slot) : topTerms.getStringTerm(slot);
+                    ret.add(new GroupStats(groupKey.add(term), topTerms.getStats(slot)));
                 }
             } else {    // TODO: do we want these empty rows?
                 ret.add(new GroupStats(groupKeys.get(group).add(""), new double[statRefs.size()]));
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import java.io.OutputStream;
+
+/**
+ * Stream that stores a file in the query cache. The file is committed to the cache when the stream is closed so
+ * writers that fail part way through have to call {@link #discard()} instead of close() for no truncated file to
+ * be cached.
+ */
+public abstract class CacheOutputStream extends OutputStream {
+    /**
+     * Throws away what was written without storing anything in the cache and releases the stream.
+     * Has no effect once the stream is closed or discarded.
+     */
+    public abstract void discard();
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers speculative existence checks ({@link #isFileLikelyCached}) for files that are certainly not in the wrapped
+ * cache without asking HDFS/S3.
+ * Keeps a Bloom filter of the names of all the cached files that is built from a listing of the wrapped cache,
+ * rebuilt periodically to pick up files written by other instances and updated right away by the writes of this one.
+ * Names the filter may contain are still checked in the wrapped cache and the files that turn out to be missing
+ * are remembered for a short time.
+ * Until the first listing completes all the checks go to the wrapped cache.
+ */
+public class CatalogQueryCache implements QueryCache {
+    private static final Logger log = Logger.getLogger(CatalogQueryCache.class);
+    private static final int MIN_EXPECTED_FILES = 100000;
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MAX_NEGATIVE_ENTRIES = 10000;
+
+    private final QueryCache cache;
+    private final Cache<String, Boolean> missingFiles;
+    private final ScheduledExecutorService refreshExecutor;
+    // null until the first listing completes
+    private BloomFilter<CharSequence> catalog = null;
+    // files written while the catalog is being rebuilt. null when it isn't
+    private Set<String> addedDuringRefresh = null;
+    private final AtomicLong catalogMisses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong remoteChecks = new AtomicLong();
+
+    /**
+     * @param cache cache that has all the files
+     * @param refreshMinutes how often the catalog is rebuilt from a listing of the wrapped cache
+     * @param negativeTtlSeconds how long the files found missing in the wrapped cache are remembered
+     */
+    public CatalogQueryCache(QueryCache cache, long refreshMinutes, long negativeTtlSeconds) {
+        this.cache = cache;
+        missingFiles = CacheBuilder.newBuilder()
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS)
+                .maximumSize(MAX_NEGATIVE_ENTRIES)
+                .build();
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("IQL-Cache-Catalog"));
+        refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (Throwable t) {
+                    log.warn("Failed to refresh the query cache catalog", t);
+                }
+            }
+        }, 0, refreshMinutes, TimeUnit.MINUTES);
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    /**
+     * Rebuilds the catalog from a listing of the wrapped cache.
+     */
+    void refresh() throws IOException {
+        final long start = System.currentTimeMillis();
+        synchronized (this) {
+            addedDuringRefresh = Sets.newHashSet();
+        }
+        final List<String> fileNames;
+        BloomFilter<CharSequence> newCatalog = null;
+        try {
+            fileNames = cache.listFileNames();
+            newCatalog = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8),
+                    Math.max(fileNames.size() * 2, MIN_EXPECTED_FILES), FALSE_POSITIVE_PROBABILITY);
+            for (String fileName : fileNames) {
+                newCatalog.put(fileName);
+            }
+        } finally {
+            synchronized (this) {
+                if(newCatalog != null) {
+                    // the listing may have missed them
+                    for (String fileName : addedDuringRefresh) {
+                        newCatalog.put(fileName);
+                    }
+                    catalog = newCatalog;
+                }
+                addedDuringRefresh = null;
+            }
+        }
+        log.info("Loaded " + fileNames.size() + " files into the query cache catalog in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return cache.isEnabledInConfig();
+    }
+
+    /**
+     * Always checks the wrapped cache as the catalog doesn't know about the files other instances wrote since it
+     * was last rebuilt, e.g. async results that clients fetch from any instance.
+     */
+    @Override
+    public boolean isFileCached(String fileName) {
+        final boolean cached = cache.isFileCached(fileName);
+        if(cached) {
+            added(fileName);
+        }
+        return cached;
+    }
+
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        synchronized (this) {
+            if(catalog != null && !catalog.mightContain(fileName)) {
+                catalogMisses.incrementAndGet();
+                return false;
+            }
+        }
+        if(missingFiles.getIfPresent(fileName) != null) {
+            negativeHits.incrementAndGet();
+            return false;
+        }
+        remoteChecks.incrementAndGet();
+        final boolean cached = cache.isFileCached(fileName);
+        if(!cached) {
+            missingFiles.put(fileName, Boolean.TRUE);
+        }
+        return cached;
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        return cache.getInputStream(cachedFileName);
+    }
+
+    @Override
+    public CacheOutputStream getOutputStream(final String cachedFileName) throws IOException {
+        final CacheOutputStream out = cache.getOutputStream(cachedFileName);
+        return new CacheOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                out.close();
+                added(cachedFileName);
+            }
+
+            @Override
+            public void discard() {
+                closed = true;
+                out.discard();
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        cache.writeFromFile(cachedFileName, localFile);
+        added(cachedFileName);
+    }
+
+    private void added(String cachedFileName) {
+        synchronized (this) {
+            if(catalog != null) {
+                catalog.put(cachedFileName);
+            }
+            if(addedDuringRefresh != null) {
+                addedDuringRefresh.add(cachedFileName);
+            }
+        }
+        missingFiles.invalidate(cachedFileName);
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        cache.healthcheck();
+    }
+
+    @Override
+    public List<String> listFileNames() throws IOException {
+        return cache.listFileNames();
+    }
+
+    @Export(name = "catalog-misses", doc = "Number of cache lookups answered as missing by the catalog")
+    public long getCatalogMissCount() {
+        return catalogMisses.get();
+    }
+
+    @Export(name = "catalog-negative-hits", doc = "Number of cache lookups answered as missing by the recently missing files")
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    @Export(name = "catalog-remote-checks", doc = "Number of cache lookups that had to check the wrapped cache")
+    public long getRemoteCheckCount() {
+        return remoteChecks.get();
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.ByteStreams;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses everything stored in the wrapped cache and decompresses it while it's read.
+ * Each stored file starts with a marker that identifies the codec followed by independently compressed blocks
+ * so files are streamed in both directions without being buffered whole.
+ * Files without the marker (e.g. written before compression was enabled) are read as is.
+ * <pre>
+ * file:  MAGIC codec:byte block* 0:int
+ * block: rawLength:int storedLength:int bytes   (storedLength == rawLength means the block is stored uncompressed)
+ * </pre>
+ */
+public class CompressingQueryCache implements QueryCache {
+    private static final Logger log = Logger.getLogger(CompressingQueryCache.class);
+    private static final byte[] MAGIC = {'I', 'Q', 'L', 'Z'};
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private final QueryCache cache;
+    private final int level;
+
+    /**
+     * @param cache cache that stores the compressed files
+     * @param level Deflater compression level. Low levels are a lot faster and compress repetitive results almost as well
+     */
+    public CompressingQueryCache(QueryCache cache, int level) {
+        this.cache = cache;
+        this.level = level;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return cache.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return cache.isFileCached(fileName);
+    }
+
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        return cache.isFileLikelyCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        final InputStream in = new BufferedInputStream(cache.getInputStream(cachedFileName));
+        try {
+            in.mark(MAGIC.length + 1);
+            final byte[] header = new byte[MAGIC.length + 1];
+            final int read = ByteStreams.read(in, header, 0, header.length);
+            if(read == header.length && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+                final byte codec = header[MAGIC.length];
+                if(codec != CODEC_DEFLATE) {
+                    throw new IOException("Unknown compression codec " + codec + " in " + cachedFileName);
+                }
+                return new InflatingInputStream(in);
+            }
+            in.reset();
+            return in;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(in, log);
+            throw e;
+        }
+    }
+
+    @Override
+    public CacheOutputStream getOutputStream(String cachedFileName) throws IOException {
+        final CacheOutputStream out = cache.getOutputStream(cachedFileName);
+        try {
+            out.write(MAGIC);
+            out.write(CODEC_DEFLATE);
+        } catch (IOException e) {
+            out.discard();
+            throw e;
+        }
+        return new DeflatingOutputStream(out, level);
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        // compressed to a local file first as the wrapped cache may need to know the size up front
+        final File compressedFile = File.createTempFile("iql_cache_", ".z");
+        try {
+            final InputStream in = new BufferedInputStream(new FileInputStream(localFile));
+            try {
+                final OutputStream out = new FileOutputStream(compressedFile);
+                try {
+                    out.write(MAGIC);
+                    out.write(CODEC_DEFLATE);
+                    final CacheOutputStream compressedOut = new DeflatingOutputStream(out, level);
+                    try {
+                        ByteStreams.copy(in, compressedOut);
+                        compressedOut.close();
+                    } finally {
+                        compressedOut.discard();    // releases the deflater if it wasn't closed
+                    }
+                } finally {
+                    Closeables2.closeQuietly(out, log);
+                }
+            } finally {
+                Closeables2.closeQuietly(in, log);
+            }
+            if(log.isDebugEnabled()) {
+                log.debug("Compressed " + cachedFileName + " from " + localFile.length() + " to " + compressedFile.length() + " bytes");
+            }
+            cache.writeFromFile(cachedFileName, compressedFile);
+        } finally {
+            if(!compressedFile.delete()) {
+                log.info("Failed to delete: " + compressedFile.getPath());
+            }
+        }
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        cache.healthcheck();
+    }
+
+    @Override
+    public List<String> listFileNames() throws IOException {
+        return cache.listFileNames();
+    }
+
+    private static final class DeflatingOutputStream extends CacheOutputStream {
+        private final OutputStream target;
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final byte[] buffer = new byte[BLOCK_SIZE];
+        private final byte[] compressed = new byte[BLOCK_SIZE];
+        private int length = 0;
+        private boolean closed = false;
+
+        private DeflatingOutputStream(OutputStream out, int level) {
+            target = out;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            deflater = new Deflater(level);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(length == buffer.length) {
+                writeBlock();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(length == buffer.length) {
+                    writeBlock();
+                }
+                final int copied = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, copied);
+                length += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if(length == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(buffer, 0, length);
+            deflater.finish();
+            int compressedLength = 0;
+            // gives up once the output is as large as the input
+            while(!deflater.finished() && compressedLength < length) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            out.writeInt(length);
+            if(deflater.finished() && compressedLength < length) {
+                out.writeInt(compressedLength);
+                out.write(compressed, 0, compressedLength);
+            } else {
+                // doesn't compress
+                out.writeInt(length);
+                out.write(buffer, 0, length);
+            }
+            length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            boolean success = false;
+            try {
+                writeBlock();
+                out.writeInt(0);
+                out.flush();
+                success = true;
+            } finally {
+                if(!success) {
+                    discard();
+                }
+            }
+            closed = true;
+            deflater.end();
+            out.close();
+        }
+
+        @Override
+        public void discard() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+            if(target instanceof CacheOutputStream) {
+                ((CacheOutputStream) target).discard();
+            } else {
+                Closeables2.closeQuietly(target, log);
+            }
+        }
+    }
+
+    private static final class InflatingInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater();
+        private byte[] buffer = new byte[BLOCK_SIZE];
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private int length = 0;
+        private int position = 0;
+        private boolean done = false;
+
+        private InflatingInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!fill()) {
+                return -1;
+            }
+            final int copied = Math.min(len, length - position);
+            System.arraycopy(buffer, position, b, off, copied);
+            position += copied;
+            return copied;
+        }
+
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        /**
+         * Skips whole blocks without decompressing them.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while(skipped < n && !done) {
+                if(position < length) {
+                    final int count = (int) Math.min(n - skipped, length - position);
+                    position += count;
+                    skipped += count;
+                    continue;
+                }
+                final int rawLength = readBlockHeader();
+                if(rawLength == 0) {
+                    break;
+                }
+                final int storedLength = in.readInt();
+                checkLengths(rawLength, storedLength);
+                if(rawLength <= n - skipped) {
+                    ByteStreams.skipFully(in, storedLength);
+                    skipped += rawLength;
+                } else {
+                    readBlockData(rawLength, storedLength);
+                }
+            }
+            return skipped;
+        }
+
+        private boolean fill() throws IOException {
+            while(position == length) {
+                if(done) {
+                    return false;
+                }
+                readBlock();
+            }
+            return true;
+        }
+
+        private void readBlock() throws IOException {
+            final int rawLength = readBlockHeader();
+            if(rawLength == 0) {
+                return;
+            }
+            final int storedLength = in.readInt();
+            checkLengths(rawLength, storedLength);
+            readBlockData(rawLength, storedLength);
+        }
+
+        /**
+         * Reads the raw length of the next block and discards the current one. Returns 0 at the end of the stream.
+         */
+        private int readBlockHeader() throws IOException {
+            final int rawLength;
+            try {
+                rawLength = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Compressed cache file is truncated", e);
+            }
+            position = 0;
+            length = 0;
+            if(rawLength == 0) {
+                done = true;
+            }
+            return rawLength;
+        }
+
+        private void checkLengths(int rawLength, int storedLength) throws IOException {
+            if(rawLength < 0 || storedLength < 0 || storedLength > rawLength) {
+                throw new IOException("Corrupted compressed cache file");
+            }
+        }
+
+        private void readBlockData(int rawLength, int storedLength) throws IOException {
+            if(buffer.length < rawLength) {
+                buffer = new byte[rawLength];
+            }
+            if(storedLength == rawLength) {
+                in.readFully(buffer, 0, rawLength);
+            } else {
+                if(compressed.length < storedLength) {
+                    compressed = new byte[storedLength];
+                }
+                in.readFully(compressed, 0, storedLength);
+                inflater.reset();
+                inflater.setInput(compressed, 0, storedLength);
+                try {
+                    int inflated = 0;
+                    while(inflated < rawLength && !inflater.finished()) {
+                        final int count = inflater.inflate(buffer, inflated, rawLength - inflated);
+                        if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += count;
+                    }
+                    if(inflated != rawLength) {
+                        throw new IOException("Corrupted compressed cache file");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupted compressed cache file", e);
+                }
+            }
+            length = rawLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
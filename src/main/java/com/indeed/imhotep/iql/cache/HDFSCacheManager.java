@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the HDFS query cache directory from growing without bounds.
+ * Each run lists the directory once, groups the files into entries by the cache key they were written for
+ * (results, their metadata and index are deleted together) and deletes:
+ * <ul>
+ *     <li>temp files of writes that never completed</li>
+ *     <li>entries that weren't used for longer than the max age</li>
+ *     <li>the least recently used entries while the total size is over the budget</li>
+ * </ul>
+ * Last use is the latest of the HDFS modification time, the HDFS access time and the reads of this instance.
+ * <p>
+ * The HDFS access time is the only record of the reads made by the other IQL instances sharing the directory, so
+ * access times have to be enabled on the NameNode (dfs.namenode.accesstime.precision > 0) for the eviction to be
+ * least recently used. Otherwise entries are evicted in the order they were written.
+ * The access time is only updated once per precision period so entries used within the grace period are never
+ * evicted for size, which should be at least the precision (1 hour by default).
+ * <p>
+ * Only one of the instances sharing the directory cleans it up. It's elected by holding a lease file in the
+ * directory that it renews on each run. Another instance takes over once the lease isn't renewed for its duration.
+ */
+class HDFSCacheManager implements Runnable {
+    private static final Logger log = Logger.getLogger(HDFSCacheManager.class);
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    static final String LEASE_FILE_NAME = "_cleanup.lease";
+
+    private final FileSystem hdfs;
+    private final Path cachePath;
+    private final long maxSizeBytes;
+    private final long maxAgeMillis;
+    private final long tempFileMaxAgeMillis;
+    private final long graceMillis;
+    private final long leaseMillis;
+    private final String instanceId = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    // entry key -> last time it was read by this instance
+    private final ConcurrentMap<String, Long> lastReads = Maps.newConcurrentMap();
+
+    /**
+     * @param maxSizeBytes total size of the cache above which the least recently used entries are deleted. 0 for no limit
+     * @param maxAgeMillis entries not used for this long are deleted. 0 for no limit
+     * @param tempFileMaxAgeMillis temp files older than this are assumed to be left by failed writes
+     * @param graceMillis entries used more recently than this are not deleted to get under the size budget
+     * @param leaseMillis how long the instance cleaning up stays elected without renewing its lease
+     */
+    HDFSCacheManager(FileSystem hdfs, Path cachePath, long maxSizeBytes, long maxAgeMillis, long tempFileMaxAgeMillis,
+                     long graceMillis, long leaseMillis) {
+        this.hdfs = hdfs;
+        this.cachePath = cachePath;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.tempFileMaxAgeMillis = tempFileMaxAgeMillis;
+        this.graceMillis = graceMillis;
+        this.leaseMillis = leaseMillis;
+    }
+
+    void recordRead(String cachedFileName) {
+        lastReads.put(getEntryKey(cachedFileName), System.currentTimeMillis());
+    }
+
+    @Override
+    public void run() {
+        try {
+            if(!acquireLease()) {
+                log.debug("Another instance is cleaning up the HDFS query cache in " + cachePath);
+                return;
+            }
+            cleanup();
+        } catch (Throwable t) {
+            log.warn("Failed to clean up the HDFS query cache in " + cachePath, t);
+        }
+    }
+
+    private void cleanup() throws IOException {
+        final long start = System.currentTimeMillis();
+        final Map<String, Entry> entries = Maps.newHashMap();
+        long totalSize = 0;
+        int deletedTempFiles = 0;
+        for (FileStatus status : hdfs.listStatus(cachePath)) {
+            if(status.isDirectory()) {
+                continue;
+            }
+            final String name = status.getPath().getName();
+            if(name.equals(LEASE_FILE_NAME)) {
+                continue;
+            }
+            if(name.endsWith(TEMP_FILE_SUFFIX)) {
+                if(start - status.getModificationTime() > tempFileMaxAgeMillis && delete(status.getPath())) {
+                    deletedTempFiles++;
+                }
+                continue;
+            }
+            final String key = getEntryKey(name);
+            Entry entry = entries.get(key);
+            if(entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+            }
+            entry.add(status);
+            totalSize += status.getLen();
+        }
+        // forgets the reads of the entries that are gone
+        lastReads.keySet().retainAll(entries.keySet());
+
+        final List<Entry> sortedEntries = Lists.newArrayList(entries.values());
+        for (Entry entry : sortedEntries) {
+            final Long lastRead = lastReads.get(entry.key);
+            if(lastRead != null) {
+                entry.lastUsed = Math.max(entry.lastUsed, lastRead);
+            }
+        }
+        Collections.sort(sortedEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.lastUsed < o2.lastUsed ? -1 : (o1.lastUsed == o2.lastUsed ? 0 : 1);
+            }
+        });
+
+        int deletedEntries = 0;
+        long deletedBytes = 0;
+        for (Entry entry : sortedEntries) {
+            final boolean expired = maxAgeMillis > 0 && start - entry.lastUsed > maxAgeMillis;
+            final boolean overBudget = maxSizeBytes > 0 && totalSize > maxSizeBytes && start - entry.lastUsed > graceMillis;
+            if(!expired && !overBudget) {
+                // the rest were used more recently
+                break;
+            }
+            for (Path path : entry.paths) {
+                delete(path);
+            }
+            lastReads.remove(entry.key);
+            totalSize -= entry.size;
+            deletedBytes += entry.size;
+            deletedEntries++;
+        }
+        log.info("Cleaned up the HDFS query cache in " + (System.currentTimeMillis() - start) + " ms. Deleted " +
+                deletedEntries + " entries with " + deletedBytes + " bytes and " + deletedTempFiles + " temp files. " +
+                (entries.size() - deletedEntries) + " entries with " + totalSize + " bytes left");
+    }
+
+    /**
+     * Returns true if this instance holds the cleanup lease, taking it over if it has expired.
+     * Two instances may both take over an expired lease at the same time but only one of them keeps it for the
+     * next run.
+     */
+    private boolean acquireLease() throws IOException {
+        final Path leasePath = new Path(cachePath, LEASE_FILE_NAME);
+        final long now = System.currentTimeMillis();
+        if(hdfs.exists(leasePath)) {
+            final FileStatus status = hdfs.getFileStatus(leasePath);
+            if(instanceId.equals(readLeaseOwner(leasePath))) {
+                hdfs.setTimes(leasePath, now, -1);
+                return true;
+            }
+            if(now - status.getModificationTime() < leaseMillis) {
+                return false;
+            }
+            log.info("Taking over the expired HDFS query cache cleanup lease in " + cachePath);
+            hdfs.delete(leasePath, false);
+        }
+        final FSDataOutputStream out;
+        try {
+            out = hdfs.create(leasePath, false);
+        } catch (IOException e) {
+            // created by another instance in the meantime
+            return false;
+        }
+        try {
+            out.write(instanceId.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        return true;
+    }
+
+    private String readLeaseOwner(Path leasePath) {
+        FSDataInputStream in = null;
+        try {
+            in = hdfs.open(leasePath);
+            final byte[] bytes = new byte[(int) hdfs.getFileStatus(leasePath).getLen()];
+            in.readFully(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        } finally {
+            Closeables2.closeQuietly(in, log);
+        }
+    }
+
+    private boolean delete(Path path) {
+        try {
+            return hdfs.delete(path, false);
+        } catch (IOException e) {
+            log.info("Failed to delete: " + path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Cache file names are the key followed by suffixes for the different files of the entry e.g. hash.bin.meta.
+     */
+    private static String getEntryKey(String cachedFileName) {
+        final int suffixStart = cachedFileName.indexOf('.');
+        return suffixStart >= 0 ? cachedFileName.substring(0, suffixStart) : cachedFileName;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final List<Path> paths = Lists.newArrayListWithCapacity(3);
+        private long size = 0;
+        private long lastUsed = 0;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+
+        private void add(FileStatus status) {
+            paths.add(status.getPath());
+            size += status.getLen();
+            lastUsed = Math.max(lastUsed, Math.max(status.getModificationTime(), status.getAccessTime()));
+        }
+    }
+}
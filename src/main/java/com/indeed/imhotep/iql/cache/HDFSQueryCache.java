@@ -13,10 +13,14 @@
  */
  package com.indeed.imhotep.iql.cache;
 
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.indeed.imhotep.web.KerberosUtils;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.NamedThreadFactory;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
@@ -28,7 +32,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author vladimir
@@ -41,6 +48,7 @@ public class HDFSQueryCache implements QueryCache {
     private FileSystem hdfs;
     private Path cachePath;
     private boolean cacheDirWorldWritable;
+    private HDFSCacheManager cacheManager = null;
 
     public HDFSQueryCache(PropertyResolver props) {
 
@@ -56,7 +64,27 @@ public class HDFSQueryCache implements QueryCache {
         } catch (Exception e) {
             log.info("Failed to initialize the HDFS query cache. Caching disabled.", e);
             enabled = false;
+            return;
         }
+        startCacheManager(props);
+    }
+
+    private void startCacheManager(PropertyResolver props) {
+        final long cleanupMinutes = props.getProperty("query.cache.hdfs.cleanup.minutes", Long.class, 60L);
+        if(cleanupMinutes <= 0) {
+            return;
+        }
+        final long maxSizeBytes = props.getProperty("query.cache.hdfs.max.size.gb", Long.class, 0L) * 1024 * 1024 * 1024;
+        final long maxAgeMillis = TimeUnit.DAYS.toMillis(props.getProperty("query.cache.hdfs.max.age.days", Long.class, 0L));
+        // long enough for any upload to complete
+        final long tempFileMaxAgeMillis = TimeUnit.HOURS.toMillis(6);
+        final long graceMillis = TimeUnit.MINUTES.toMillis(props.getProperty("query.cache.hdfs.eviction.grace.minutes", Long.class, 60L));
+        // a missed run doesn't hand the cleanup over to another instance
+        final long leaseMillis = TimeUnit.MINUTES.toMillis(3 * cleanupMinutes);
+        cacheManager = new HDFSCacheManager(hdfs, cachePath, maxSizeBytes, maxAgeMillis, tempFileMaxAgeMillis, graceMillis, leaseMillis);
+        final ScheduledExecutorService cleanupExecutor =
+                Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("IQL-HDFS-Cache-Cleanup"));
+        cleanupExecutor.scheduleWithFixedDelay(cacheManager, cleanupMinutes, cleanupMinutes, TimeUnit.MINUTES);
     }
 
     private void kerberosLogin(PropertyResolver props) {
@@ -97,17 +125,25 @@ public class HDFSQueryCache implements QueryCache {
 
     }
 
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        return isFileCached(fileName);
+    }
+
     @Override
     public InputStream getInputStream(String cachedFileName) throws IOException {
         if(!enabled) {
             throw new IllegalStateException("Can't send data from HDFS cache as it is disabled");
         }
         final Path f = new Path(cachePath, cachedFileName);
+        if(cacheManager != null) {
+            cacheManager.recordRead(cachedFileName);
+        }
         return hdfs.open(f);
     }
 
     @Override
-    public OutputStream getOutputStream(String cachedFileName) throws IOException {
+    public CacheOutputStream getOutputStream(String cachedFileName) throws IOException {
         if(!enabled) {
             throw new IllegalStateException("Can't send data to HDFS cache as it is disabled");
         }
@@ -117,7 +153,7 @@ public class HDFSQueryCache implements QueryCache {
 
         final FSDataOutputStream fileOut = hdfs.create(tempPath);
         // Wrap the returned OutputStream so that we can finish when it is closed
-        return new OutputStream() {
+        return new CacheOutputStream() {
             private boolean closed = false;
 
             @Override
@@ -151,18 +187,53 @@ public class HDFSQueryCache implements QueryCache {
                 // Move to the final file location
                 hdfs.rename(tempPath, filePath);
             }
+
+            @Override
+            public void discard() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                Closeables2.closeQuietly(fileOut, log);
+                try {
+                    hdfs.delete(tempPath, false);
+                } catch (IOException e) {
+                    log.warn("Failed to delete " + tempPath, e);
+                }
+            }
         };
     }
 
     @Override
     public void writeFromFile(String cachedFileName, File localFile) throws IOException {
-        final OutputStream cacheStream = getOutputStream(cachedFileName);
+        final CacheOutputStream cacheStream = getOutputStream(cachedFileName);
         final InputStream fileIn = new BufferedInputStream(new FileInputStream(localFile));
-        ByteStreams.copy(fileIn, cacheStream);
-        fileIn.close();
+        try {
+            ByteStreams.copy(fileIn, cacheStream);
+        } catch (IOException e) {
+            cacheStream.discard();
+            throw e;
+        } finally {
+            Closeables2.closeQuietly(fileIn, log);
+        }
         cacheStream.close();
     }
 
+    @Override
+    public List<String> listFileNames() throws IOException {
+        if(!enabled) {
+            throw new IllegalStateException("Can't list HDFS cache as it is disabled");
+        }
+        final List<String> fileNames = Lists.newArrayList();
+        for (FileStatus fileStatus : hdfs.listStatus(cachePath)) {
+            final String fileName = fileStatus.getPath().getName();
+            if(!fileName.equals(HDFSCacheManager.LEASE_FILE_NAME)) {
+                fileNames.add(fileName);
+            }
+        }
+        return fileNames;
+    }
+
     private void makeSurePathExists(Path path) throws IOException {
         if(!hdfs.exists(path)) {
             hdfs.mkdirs(cachePath);
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.Files;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Keeps the contents of small recently used files of the wrapped cache in memory so that queries that are repeated
+ * often (e.g. auto refreshing dashboards) are served without any I/O.
+ * The total size of the kept files is limited and the least recently used ones are evicted first.
+ * Files are kept when they are written and when they are read.
+ * Cache file names contain the hash of the query and its shard list so entries never have to be invalidated.
+ */
+public class InMemoryQueryCache implements QueryCache {
+    private static final Logger log = Logger.getLogger(InMemoryQueryCache.class);
+
+    private final QueryCache cache;
+    private final Cache<String, byte[]> files;
+    private final int maxFileBytes;
+
+    /**
+     * @param cache cache that has all the files
+     * @param maxSizeBytes total size of the files kept in memory
+     * @param maxFileBytes files larger than this are not kept in memory
+     */
+    public InMemoryQueryCache(QueryCache cache, long maxSizeBytes, int maxFileBytes) {
+        this.cache = cache;
+        this.maxFileBytes = maxFileBytes;
+        files = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] value) {
+                        return value.length + 2 * key.length();
+                    }
+                })
+                .recordStats()
+                .build();
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return cache.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        // doesn't count as a hit or miss as the file is usually read right after
+        return files.asMap().containsKey(fileName) || cache.isFileCached(fileName);
+    }
+
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        return files.asMap().containsKey(fileName) || cache.isFileLikelyCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(final String cachedFileName) throws IOException {
+        final byte[] contents = files.getIfPresent(cachedFileName);
+        if(contents != null) {
+            return new ByteArrayInputStream(contents);
+        }
+        // keeps a copy of what is read and stores it if the whole file is read
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        return new FilterInputStream(cache.getInputStream(cachedFileName)) {
+            private boolean copying = true;
+
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if(b < 0) {
+                    finish();
+                } else {
+                    copy(new byte[] {(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int count = super.read(b, off, len);
+                if(count < 0) {
+                    finish();
+                } else {
+                    copy(b, off, count);
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                copying = false;
+                return super.skip(n);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    // readers often stop at the end of the data without reading to the end of the stream
+                    // so small files are read to the end to be kept
+                    final byte[] buffer = new byte[8192];
+                    while(copying && read(buffer, 0, buffer.length) >= 0) {
+                        // copied by read()
+                    }
+                } catch (IOException e) {
+                    copying = false;
+                } finally {
+                    super.close();
+                }
+            }
+
+            private void copy(byte[] b, int off, int len) {
+                if(!copying) {
+                    return;
+                }
+                if(copy.size() + len > maxFileBytes) {
+                    copying = false;
+                    return;
+                }
+                copy.write(b, off, len);
+            }
+
+            private void finish() {
+                if(copying) {
+                    copying = false;
+                    files.put(cachedFileName, copy.toByteArray());
+                }
+            }
+        };
+    }
+
+    @Override
+    public CacheOutputStream getOutputStream(final String cachedFileName) throws IOException {
+        final CacheOutputStream out = cache.getOutputStream(cachedFileName);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        return new CacheOutputStream() {
+            private boolean copying = true;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                if(copying && copy.size() < maxFileBytes) {
+                    copy.write(b);
+                } else {
+                    copying = false;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if(copying && copy.size() + len <= maxFileBytes) {
+                    copy.write(b, off, len);
+                } else {
+                    copying = false;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                out.close();
+                // only kept once the file is committed to the wrapped cache
+                if(copying) {
+                    files.put(cachedFileName, copy.toByteArray());
+                }
+            }
+
+            @Override
+            public void discard() {
+                closed = true;
+                out.discard();
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        cache.writeFromFile(cachedFileName, localFile);
+        if(localFile.length() <= maxFileBytes) {
+            try {
+                files.put(cachedFileName, Files.toByteArray(localFile));
+            } catch (IOException e) {
+                log.warn("Failed to keep " + cachedFileName + " in memory", e);
+            }
+        }
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        cache.healthcheck();
+    }
+
+    @Override
+    public List<String> listFileNames() throws IOException {
+        return cache.listFileNames();
+    }
+
+    @Export(name = "memory-hits", doc = "Number of query cache files read from memory")
+    public long getHitCount() {
+        return files.stats().hitCount();
+    }
+
+    @Export(name = "memory-misses", doc = "Number of query cache files that had to be read from the wrapped cache")
+    public long getMissCount() {
+        return files.stats().missCount();
+    }
+
+    @Export(name = "memory-evictions", doc = "Number of files evicted from memory")
+    public long getEvictionCount() {
+        return files.stats().evictionCount();
+    }
+
+    @Export(name = "memory-files", doc = "Number of files kept in memory")
+    public long getFileCount() {
+        return files.size();
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the most recently used files of the wrapped (remote) cache on the local disk so that repeated reads
+ * of the same results don't have to go to HDFS/S3.
+ * The resident files are tracked in memory in LRU order and the least recently used ones are deleted when the
+ * local tier grows over its size limit.
+ * Writes go to both tiers. Files read from the remote tier are copied to the local one in the background.
+ */
+public class LocalDiskQueryCache implements QueryCache {
+    private static final Logger log = Logger.getLogger(LocalDiskQueryCache.class);
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int MAX_PENDING_FILLS = 100;
+
+    private final QueryCache remoteCache;
+    private final File dir;
+    private final long maxSizeBytes;
+    private final ThreadPoolExecutor fillExecutor;
+    // resident file name -> size in bytes in access order
+    private final LinkedHashMap<String, Long> residentFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Set<String> pendingFills = Sets.newHashSet();
+    private long sizeBytes = 0;
+
+    /**
+     * @param remoteCache cache that has all the files
+     * @param dir local directory for the resident files. Created if it doesn't exist
+     * @param maxSizeBytes total size of the local files above which the least recently used ones are deleted
+     */
+    public LocalDiskQueryCache(QueryCache remoteCache, File dir, long maxSizeBytes) throws IOException {
+        this.remoteCache = remoteCache;
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create local cache directory " + dir.getPath());
+        }
+        fillExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_FILLS), new NamedThreadFactory("IQL-Cache-Fill"));
+        fillExecutor.allowCoreThreadTimeOut(true);
+        loadResidentFiles();
+    }
+
+    /**
+     * Picks up the files left from before a restart oldest first so that the newest ones are kept.
+     */
+    private void loadResidentFiles() {
+        final File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+        final List<File> sortedFiles = Lists.newArrayList(files);
+        Collections.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                final long modified1 = o1.lastModified();
+                final long modified2 = o2.lastModified();
+                return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+            }
+        });
+        for (File file : sortedFiles) {
+            if(file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                deleteQuietly(file);    // left by an interrupted write
+            } else if(file.isFile()) {
+                addResidentFile(file.getName(), file.length());
+            }
+        }
+        log.info("Loaded " + residentFiles.size() + " files with " + sizeBytes + " bytes into the local query cache");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return remoteCache.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return remoteCache.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return isResident(fileName) || remoteCache.isFileCached(fileName);
+    }
+
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        return isResident(fileName) || remoteCache.isFileLikelyCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        if(isResident(cachedFileName)) {
+            try {
+                return new FileInputStream(getLocalFile(cachedFileName));
+            } catch (FileNotFoundException e) {
+                // evicted since we checked
+                removeResidentFile(cachedFileName);
+            }
+        }
+        scheduleFill(cachedFileName);
+        return remoteCache.getInputStream(cachedFileName);
+    }
+
+    @Override
+    public CacheOutputStream getOutputStream(final String cachedFileName) throws IOException {
+        // written to a local file that is uploaded when done
+        final File tempFile = createTempFile(cachedFileName);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        return new CacheOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    out.close();
+                    remoteCache.writeFromFile(cachedFileName, tempFile);
+                    commit(cachedFileName, tempFile);
+                } finally {
+                    deleteQuietly(tempFile);
+                }
+            }
+
+            @Override
+            public void discard() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                Closeables2.closeQuietly(out, log);
+                deleteQuietly(tempFile);
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        remoteCache.writeFromFile(cachedFileName, localFile);
+        final File tempFile = createTempFile(cachedFileName);
+        try {
+            copy(localFile, tempFile);
+            commit(cachedFileName, tempFile);
+        } catch (IOException e) {
+            log.warn("Failed to copy " + cachedFileName + " to the local query cache", e);
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        remoteCache.healthcheck();
+    }
+
+    @Override
+    public List<String> listFileNames() throws IOException {
+        return remoteCache.listFileNames();
+    }
+
+    private void scheduleFill(final String cachedFileName) {
+        synchronized (this) {
+            if(!pendingFills.add(cachedFileName)) {
+                return;
+            }
+        }
+        try {
+            fillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fill(cachedFileName);
+                    } catch (Exception e) {
+                        log.warn("Failed to copy " + cachedFileName + " to the local query cache", e);
+                    } finally {
+                        synchronized (LocalDiskQueryCache.this) {
+                            pendingFills.remove(cachedFileName);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // too many pending fills. the file will be filled on a later read
+            synchronized (this) {
+                pendingFills.remove(cachedFileName);
+            }
+        }
+    }
+
+    private void fill(String cachedFileName) throws IOException {
+        if(isResident(cachedFileName)) {
+            return;
+        }
+        final File tempFile = createTempFile(cachedFileName);
+        try {
+            final InputStream in = remoteCache.getInputStream(cachedFileName);
+            try {
+                final OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                Closeables2.closeQuietly(in, log);
+            }
+            commit(cachedFileName, tempFile);
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        try {
+            final FileOutputStream out = new FileOutputStream(to);
+            try {
+                final FileChannel inChannel = in.getChannel();
+                final FileChannel outChannel = out.getChannel();
+                final long size = inChannel.size();
+                long position = 0;
+                while(position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            Closeables2.closeQuietly(in, log);
+        }
+    }
+
+    private File createTempFile(String cachedFileName) throws IOException {
+        return File.createTempFile(cachedFileName + ".", TEMP_FILE_SUFFIX, dir);
+    }
+
+    /**
+     * Moves the complete temp file into place and makes it resident.
+     */
+    private void commit(String cachedFileName, File tempFile) {
+        final File file = getLocalFile(cachedFileName);
+        final long size = tempFile.length();
+        if(size > maxSizeBytes) {
+            return;
+        }
+        synchronized (this) {
+            removeResidentFile(cachedFileName);
+            if(!tempFile.renameTo(file)) {
+                log.warn("Failed to move " + tempFile.getPath() + " to " + file.getPath());
+                return;
+            }
+            addResidentFile(cachedFileName, size);
+        }
+    }
+
+    private File getLocalFile(String cachedFileName) {
+        return new File(dir, cachedFileName);
+    }
+
+    private synchronized boolean isResident(String cachedFileName) {
+        // get() also moves the file to the most recently used position
+        return residentFiles.get(cachedFileName) != null;
+    }
+
+    private synchronized void addResidentFile(String cachedFileName, long size) {
+        residentFiles.put(cachedFileName, size);
+        sizeBytes += size;
+        final Iterator<Map.Entry<String, Long>> iterator = residentFiles.entrySet().iterator();
+        while(sizeBytes > maxSizeBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            sizeBytes -= eldest.getValue();
+            // open streams of the file can still be read
+            deleteQuietly(getLocalFile(eldest.getKey()));
+        }
+    }
+
+    private synchronized void removeResidentFile(String cachedFileName) {
+        final Long size = residentFiles.remove(cachedFileName);
+        if(size != null) {
+            sizeBytes -= size;
+            deleteQuietly(getLocalFile(cachedFileName));
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if(!file.delete() && file.exists()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.iql.BinaryResultFormat;
+import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.GroupStatsSerializer;
+import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.joda.time.Interval;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Stores the aggregated rows of the time slices of queries in the query cache so that queries over overlapping
+ * time ranges (e.g. a dashboard for the last 30 days) only have to run the slices that aren't cached yet.
+ * An entry is identified by the normalized query, the slice time range and the id and version of every shard in it
+ * so rebuilt shards invalidate the slices that contain them.
+ */
+public class PartialResultCache {
+    private static final Logger log = Logger.getLogger(PartialResultCache.class);
+    private static final String FILE_PREFIX = "partial_";
+    private static final String FILE_SUFFIX = ".bin";
+    // this can be incremented to invalidate the old partial results
+    private static final byte VERSION_FOR_HASHING = 2;
+
+    private final QueryCache queryCache;
+    private final boolean enabled;
+
+    public PartialResultCache(QueryCache queryCache, boolean enabled) {
+        this.queryCache = queryCache;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled && queryCache.isEnabled();
+    }
+
+    public static String getCacheFileName(String queryKey, Interval slice, List<ShardIdWithVersion> shards) {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            log.error("Failed to init SHA1", e);
+            throw Throwables.propagate(e);
+        }
+        sha1.update(queryKey.getBytes(Charsets.UTF_8));
+        sha1.update(Longs.toByteArray(slice.getStartMillis()));
+        sha1.update(Longs.toByteArray(slice.getEndMillis()));
+        for (ShardIdWithVersion shard : shards) {
+            sha1.update(shard.getShardId().getBytes(Charsets.UTF_8));
+            sha1.update(Longs.toByteArray(shard.getVersion()));
+        }
+        sha1.update(VERSION_FOR_HASHING);
+        return FILE_PREFIX + Base64.encodeBase64URLSafeString(sha1.digest()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Returns the cached result or null if it isn't cached or can't be read.
+     */
+    @Nullable
+    public IQLQuery.ExecutionResult get(String fileName) {
+        if(!isEnabled()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            if(!queryCache.isFileCached(fileName)) {
+                return null;
+            }
+            in = new DataInputStream(new BufferedInputStream(queryCache.getInputStream(fileName)));
+            final double[] totals = GroupStatsSerializer.readDoubles(in);
+            // read completely so that a truncated file fails here rather than while the rows are merged
+            final List<GroupStats> rows = Lists.newArrayList(BinaryResultFormat.read(in));
+            return new IQLQuery.ExecutionResult(rows.iterator(), totals, "Loaded from partial cache " + fileName + "\n", 0);
+        } catch (Exception e) {
+            log.warn("Failed to load partial result from cache: " + fileName, e);
+            return null;
+        } finally {
+            if(in != null) {
+                Closeables2.closeQuietly(in, log);
+            }
+        }
+    }
+
+    public void put(String fileName, double[] totals, List<GroupStats> rows) {
+        if(!isEnabled()) {
+            return;
+        }
+        try {
+            final CacheOutputStream cacheStream = queryCache.getOutputStream(fileName);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cacheStream));
+                GroupStatsSerializer.writeDoubles(out, totals);
+                out.flush();
+            } catch (IOException e) {
+                cacheStream.discard();
+                throw e;
+            }
+            // closes the stream which commits the file to the cache or discards it if writing fails
+            BinaryResultFormat.write(rows.iterator(), cacheStream);
+        } catch (Exception e) {
+            log.warn("Failed to upload partial result to cache: " + fileName, e);
+        }
+    }
+}
@@ -16,7 +16,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.List;
 
 public interface QueryCache {
 
@@ -32,6 +32,13 @@ public interface QueryCache {
 
     public boolean isFileCached(String fileName);
 
+    /**
+     * Cheaper version of isFileCached that may answer from what this instance knows about the cache, e.g. the
+     * catalog of cached files, and so may miss files that other instances wrote recently.
+     * Only for speculative lookups that can afford a false miss like checking whether a query has to be run.
+     */
+    public boolean isFileLikelyCached(String fileName);
+
     /**
      * Returns InputStream that can be used to read data in the cache.
      * close() should be called when done.
@@ -40,11 +47,11 @@ public interface QueryCache {
 
     /**
      * Returns OutputStream that can be written to to store data in the cache.
-     * close() on the OutputStream MUST be called when done.
-     * Note that for S3 cache this actually writes to a memory buffer first, so large data should be uploaded with writeFromFile().
+     * close() on the OutputStream MUST be called when done. It commits the data which is only visible afterwards.
+     * discard() has to be called instead if writing fails so that incomplete data is never cached.
      * @param cachedFileName Name of the file to upload to
      */
-    public OutputStream getOutputStream(String cachedFileName) throws IOException;
+    public CacheOutputStream getOutputStream(String cachedFileName) throws IOException;
 
     /**
      * Better optimized than getOutputStream when whole data is available in a file.
@@ -55,4 +62,9 @@ public interface QueryCache {
 
     public void healthcheck() throws IOException;
 
+    /**
+     * Returns the names of all the files in the cache. Can be expensive as it lists the whole cache.
+     */
+    public List<String> listFileNames() throws IOException;
+
 }
\ No newline at end of file
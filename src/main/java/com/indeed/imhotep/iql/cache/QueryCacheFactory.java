@@ -16,7 +16,8 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 
 import javax.xml.bind.PropertyException;
 
@@ -36,15 +37,49 @@ public class QueryCacheFactory {
             return new NoOpQueryCache();
         }
         cacheType = props.getProperty("query.cache.backend", String.class, "HDFS");
+        QueryCache queryCache;
         if ("HDFS".equals(cacheType)) {
-            return new HDFSQueryCache(props);
+            queryCache = new HDFSQueryCache(props);
+        } else if ("S3".equals(cacheType)) {
+            queryCache = new S3QueryCache(props);
+        } else {
+            throw new PropertyException("Unknown cache type (property: query.cache.backend): "
+                    + cacheType);
         }
-        if ("S3".equals(cacheType)) {
-            return new S3QueryCache(props);
+
+        if (queryCache.isEnabled() && props.getProperty("query.cache.catalog.enabled", Boolean.class, true)) {
+            final long refreshMinutes = props.getProperty("query.cache.catalog.refresh.minutes", Long.class, 5L);
+            final long negativeTtlSeconds = props.getProperty("query.cache.negative.ttl.seconds", Long.class, 30L);
+            queryCache = new CatalogQueryCache(queryCache, refreshMinutes, negativeTtlSeconds);
         }
-        
-        throw new PropertyException("Unknown cache type (property: query.cache.backend): "
-                + cacheType);
+
+        final String localDir = props.getProperty("query.cache.local.dir", String.class, "");
+        if (!localDir.isEmpty() && queryCache.isEnabled()) {
+            final long localSizeBytes = props.getProperty("query.cache.local.size.mb", Long.class, 10240L) * 1024 * 1024;
+            try {
+                queryCache = new LocalDiskQueryCache(queryCache, new File(localDir), localSizeBytes);
+            } catch (IOException e) {
+                log.warn("Failed to initialize the local query cache in " + localDir + ". Using the remote cache only.", e);
+            }
+        }
+
+        final long memorySizeMB = props.getProperty("query.cache.memory.mb", Long.class, 0L);
+        if (memorySizeMB > 0 && queryCache.isEnabled()) {
+            final int maxFileMB = props.getProperty("query.cache.memory.max.file.mb", Integer.class, 4);
+            // kept compressed so that more results fit in memory
+            queryCache = new InMemoryQueryCache(queryCache, memorySizeMB * 1024 * 1024, maxFileMB * 1024 * 1024);
+        }
+
+        final String compression = props.getProperty("query.cache.compression", String.class, "deflate");
+        if ("deflate".equals(compression)) {
+            final int level = props.getProperty("query.cache.compression.level", Integer.class, 1);
+            return new CompressingQueryCache(queryCache, level);
+        }
+        if (!"none".equals(compression)) {
+            throw new PropertyException("Unknown cache compression (property: query.cache.compression): "
+                    + compression);
+        }
+        return queryCache;
     }
     
     static class NoOpQueryCache implements QueryCache {
@@ -64,13 +99,18 @@ public class QueryCacheFactory {
             return false;
         }
 
+        @Override
+        public boolean isFileLikelyCached(String fileName) {
+            return false;
+        }
+
         @Override
         public InputStream getInputStream(String cachedFileName) throws IOException {
             throw new IllegalStateException("Can't read data from cache as it is disabled");
         }
 
         @Override
-        public OutputStream getOutputStream(String cachedFileName) throws IOException {
+        public CacheOutputStream getOutputStream(String cachedFileName) throws IOException {
             throw new IllegalStateException("Can't send data to cache as it is disabled");
         }
 
@@ -83,6 +123,11 @@ public class QueryCacheFactory {
         public void healthcheck() throws IOException {
             throw new IllegalStateException("Cache is not available");
         }
+
+        @Override
+        public List<String> listFileNames() throws IOException {
+            return Collections.emptyList();
+        }
         
     }
 
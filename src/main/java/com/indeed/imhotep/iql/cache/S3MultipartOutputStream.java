@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads the written data to S3 in parts while it's being written so that only a few parts are in memory at once.
+ * Data that fits in a single part is uploaded with a single put when the stream is closed.
+ * The object is created when the stream is closed and nothing is created if writing or any of the uploads fail.
+ */
+class S3MultipartOutputStream extends CacheOutputStream {
+    private static final Logger log = Logger.getLogger(S3MultipartOutputStream.class);
+    // S3 doesn't accept smaller parts except for the last one
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final ExecutorService executorService;
+    private final Semaphore uploadPermits;
+    private final List<Future<PartETag>> uploads = Lists.newArrayList();
+    private byte[] buffer;
+    private int length = 0;
+    private String uploadId = null;
+    private boolean closed = false;
+    // committed or discarded
+    private boolean finished = false;
+
+    /**
+     * @param partSize size of the uploaded parts. At most (maxConcurrentUploads + 1) * partSize bytes are buffered
+     * @param maxConcurrentUploads number of parts of this stream that can be uploaded at the same time
+     */
+    S3MultipartOutputStream(AmazonS3 client, String bucket, String key, int partSize, int maxConcurrentUploads,
+                            ExecutorService executorService) {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.executorService = executorService;
+        uploadPermits = new Semaphore(Math.max(1, maxConcurrentUploads));
+        buffer = new byte[this.partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if(length == buffer.length) {
+            uploadPart();
+        }
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while(len > 0) {
+            if(length == buffer.length) {
+                uploadPart();
+            }
+            final int copied = Math.min(len, buffer.length - length);
+            System.arraycopy(b, off, buffer, length, copied);
+            length += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Stream for " + key + " is closed");
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        try {
+            if(uploadId == null) {
+                uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            }
+            // blocks until one of the previous parts is uploaded when too many are in flight
+            uploadPermits.acquire();
+        } catch (InterruptedException e) {
+            discard();
+            throw new IOException("Interrupted while uploading " + key, e);
+        } catch (RuntimeException e) {
+            discard();
+            throw new IOException("Failed to upload " + key, e);
+        }
+        final UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(uploads.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                .withPartSize(length);
+        try {
+            uploads.add(executorService.submit(new Callable<PartETag>() {
+                @Override
+                public PartETag call() throws Exception {
+                    try {
+                        return client.uploadPart(request).getPartETag();
+                    } finally {
+                        uploadPermits.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            uploadPermits.release();
+            discard();
+            throw new IOException("Failed to upload " + key, e);
+        }
+        // the previous buffer is owned by the upload now
+        buffer = new byte[partSize];
+        length = 0;
+    }
+
+    /**
+     * Completes the upload. The object doesn't exist until this returns successfully.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        if(uploadId == null) {
+            closed = true;
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            try {
+                client.putObject(bucket, key, new ByteArrayInputStream(buffer, 0, length), metadata);
+            } finally {
+                finished = true;
+                buffer = null;
+            }
+            return;
+        }
+        if(length > 0) {
+            uploadPart();
+        }
+        closed = true;
+        buffer = null;
+        final List<PartETag> partETags = Lists.newArrayList();
+        try {
+            for (Future<PartETag> upload : uploads) {
+                partETags.add(upload.get());
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+            finished = true;
+        } catch (InterruptedException e) {
+            discard();
+            throw new IOException("Interrupted while uploading " + key, e);
+        } catch (ExecutionException e) {
+            discard();
+            throw new IOException("Failed to upload " + key, e.getCause());
+        } catch (RuntimeException e) {
+            discard();
+            throw new IOException("Failed to upload " + key, e);
+        }
+    }
+
+    /**
+     * Discards the uploaded parts. The stream can't be used afterwards.
+     */
+    @Override
+    public void discard() {
+        if(finished) {
+            return;
+        }
+        finished = true;
+        closed = true;
+        buffer = null;
+        for (Future<PartETag> upload : uploads) {
+            upload.cancel(true);
+        }
+        if(uploadId != null) {
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (RuntimeException e) {
+                log.warn("Failed to abort the upload of " + key, e);
+            }
+        }
+    }
+}
@@ -15,19 +15,22 @@
 
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Region;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import com.google.common.collect.Lists;
+import com.indeed.util.core.threads.NamedThreadFactory;
 import org.apache.log4j.Logger;
 import org.springframework.core.env.PropertyResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author darren
@@ -39,6 +42,9 @@ public class S3QueryCache implements QueryCache {
     private boolean enabled;
     private AmazonS3Client client;
     private String bucket;
+    private int uploadPartSize;
+    private int maxConcurrentPartUploads;
+    private final ExecutorService uploadExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("IQL-S3-Upload"));
 
     public S3QueryCache(PropertyResolver props) {
         String awsRegion;
@@ -56,6 +62,14 @@ public class S3QueryCache implements QueryCache {
             } else {
                 client = new AmazonS3Client(new BasicAWSCredentials(awsKey, awsSecret));
             }
+            // e.g. a local S3 compatible server for testing
+            final String endpoint = props.getProperty("query.cache.s3.endpoint", String.class, "");
+            if (!endpoint.isEmpty()) {
+                client.setEndpoint(endpoint);
+                client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+            }
+            uploadPartSize = props.getProperty("query.cache.s3.upload.part.mb", Integer.class, 8) * 1024 * 1024;
+            maxConcurrentPartUploads = props.getProperty("query.cache.s3.upload.threads", Integer.class, 4);
 
             boolean exists = client.doesBucketExist(bucket);
             if (! exists) {
@@ -100,6 +114,11 @@ public class S3QueryCache implements QueryCache {
         }
     }
 
+    @Override
+    public boolean isFileLikelyCached(String fileName) {
+        return isFileCached(fileName);
+    }
+
     @Override
     public InputStream getInputStream(String cachedFileName) throws IOException {
         if(!enabled) {
@@ -109,52 +128,13 @@ public class S3QueryCache implements QueryCache {
     }
 
     @Override
-    public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+    public CacheOutputStream getOutputStream(final String cachedFileName) throws IOException {
         if(!enabled) {
             throw new IllegalStateException("Can't send data to S3 cache as it is disabled");
         }
 
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        // Wrap the returned OutputStream so that we can write to buffer and do actual write on close()
-        return new OutputStream() {
-            private boolean closed = false;
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                os.write(b, off, len);
-            }
-
-            @Override
-            public void flush() throws IOException {
-                os.flush();
-            }
-
-            @Override
-            public void write(int b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void close() throws IOException {
-                if(closed) {
-                    return;
-                }
-                closed = true;
-                os.close();
-
-                // do actual write
-                byte[] csvData = os.toByteArray();
-                ByteArrayInputStream is = new ByteArrayInputStream(csvData);
-                ObjectMetadata metadata = new ObjectMetadata();
-                metadata.setContentLength(csvData.length);
-                client.putObject(bucket, cachedFileName, is, metadata);
-            }
-        };
+        // uploaded in parts while it's written and committed on close()
+        return new S3MultipartOutputStream(client, bucket, cachedFileName, uploadPartSize, maxConcurrentPartUploads, uploadExecutor);
     }
 
     @Override
@@ -165,6 +145,24 @@ public class S3QueryCache implements QueryCache {
         client.putObject(bucket, cachedFileName, localFile);
     }
 
+    @Override
+    public List<String> listFileNames() throws IOException {
+        if(!enabled) {
+            throw new IllegalStateException("Can't list S3 cache as it is disabled");
+        }
+        final List<String> fileNames = Lists.newArrayList();
+        ObjectListing listing = client.listObjects(bucket);
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                fileNames.add(summary.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return fileNames;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
+    }
+
     /**
      * Tries to see if the S3 is accessible by listing the files in the bucket
      * @throws IOException
@@ -30,8 +30,10 @@ import com.indeed.imhotep.ez.DynamicMetric;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
 import com.indeed.imhotep.iql.Condition;
+import com.indeed.imhotep.iql.ConditionPlanner;
 import com.indeed.imhotep.iql.DistinctGrouping;
 import com.indeed.imhotep.iql.FieldGrouping;
+import com.indeed.imhotep.iql.GroupStatsComparator;
 import com.indeed.imhotep.iql.Grouping;
 import com.indeed.imhotep.iql.IQLQuery;
 import com.indeed.imhotep.iql.IntInCondition;
@@ -42,6 +44,7 @@ import com.indeed.imhotep.iql.SampleCondition;
 import com.indeed.imhotep.iql.StatRangeGrouping;
 import com.indeed.imhotep.iql.StatRangeGrouping2D;
 import com.indeed.imhotep.iql.StringInCondition;
+import com.indeed.imhotep.iql.TimeSliceExecutor;
 import com.indeed.imhotep.metadata.DatasetMetadata;
 import com.indeed.imhotep.metadata.FieldMetadata;
 import com.indeed.imhotep.sql.ast.Expression;
@@ -52,10 +55,12 @@ import com.indeed.imhotep.sql.ast.Op;
 import com.indeed.imhotep.sql.ast.StringExpression;
 import com.indeed.imhotep.sql.ast.TupleExpression;
 import com.indeed.imhotep.sql.ast2.FromClause;
+import com.indeed.imhotep.sql.ast2.OrderByClause;
 import com.indeed.imhotep.sql.ast2.SelectStatement;
 import com.indeed.imhotep.sql.parser.ExpressionParser;
 import com.indeed.imhotep.sql.parser.PeriodParser;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
+import com.indeed.imhotep.web.TopTermsCache;
 import dk.brics.automaton.RegExp;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -74,6 +79,7 @@ import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -89,6 +95,12 @@ public final class IQLTranslator {
 
     public static IQLQuery translate(SelectStatement parse, ImhotepClient client, String username, ImhotepMetadataCache metadata,
                                      long imhotepLocalTempFileSizeLimit, long imhotepDaemonTempFileSizeLimit) {
+        return translate(parse, client, username, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit, null, null);
+    }
+
+    public static IQLQuery translate(SelectStatement parse, ImhotepClient client, String username, ImhotepMetadataCache metadata,
+                                     long imhotepLocalTempFileSizeLimit, long imhotepDaemonTempFileSizeLimit,
+                                     @Nullable TimeSliceExecutor timeSliceExecutor, @Nullable TopTermsCache topTermsCache) {
         if(log.isTraceEnabled()) {
             log.trace(parse.toHashKeyString());
         }
@@ -100,6 +112,7 @@ public final class IQLTranslator {
         final List<Stat> stats = Lists.newArrayList();
 
         final List<Expression> projections = Lists.newArrayList(parse.select.getProjections());
+        final GroupStatsComparator rowOrder = getRowOrder(parse, projections);
         final DistinctGrouping distinctGrouping = getDistinctGrouping(projections, datasetMetadata);
         final PercentileGrouping percentileGrouping = getPercentileGrouping(projections, datasetMetadata, EZImhotepSession.counts());
 
@@ -136,12 +149,58 @@ public final class IQLTranslator {
 
         handleMultitermIn(conditions, groupings);
 
+        new ConditionPlanner(topTermsCache, dataset).plan(conditions);
+
         handleDiffGrouping(groupings, stats);
 
         optimizeGroupings(groupings);
 
+        // results of time slices can be reused for other time ranges unless the groups depend on the time range
+        final String partialResultCacheKey = groupByMatcher.isTimeRangeDependent() ?
+                parse.toHashKeyString() : parse.toTimeRangeIndependentHashKeyString();
+
         return new IQLQuery(client, stats, fromClause.getDataset(), fromClause.getStart(), fromClause.getEnd(),
-                conditions, groupings, parse.limit, username, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit);
+                conditions, groupings, parse.limit, username, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit,
+                timeSliceExecutor, partialResultCacheKey, rowOrder);
+    }
+
+    /**
+     * Resolves the ORDER BY columns to the indexes of the output columns which are the GROUP BY columns followed by
+     * the SELECT columns. Returns null if the query isn't ordered.
+     */
+    @Nullable
+    static GroupStatsComparator getRowOrder(SelectStatement parse, List<Expression> projections) {
+        if(parse.orderBy == null || parse.orderBy.orderings.isEmpty()) {
+            return null;
+        }
+        final List<Expression> groupBys = parse.groupBy != null && parse.groupBy.groupings != null ?
+                parse.groupBy.groupings : Collections.<Expression>emptyList();
+        final int columnCount = groupBys.size() + projections.size();
+        final List<OrderByClause.Ordering> orderings = parse.orderBy.orderings;
+        final int[] columns = new int[orderings.size()];
+        final boolean[] descending = new boolean[orderings.size()];
+        for (int i = 0; i < orderings.size(); i++) {
+            final Expression expression = orderings.get(i).expression;
+            int column = groupBys.indexOf(expression);
+            if(column < 0) {
+                column = projections.indexOf(expression);
+                if(column >= 0) {
+                    column += groupBys.size();
+                }
+            }
+            if(column < 0 && expression instanceof NumberExpression) {
+                column = Integer.parseInt(((NumberExpression) expression).number) - 1;
+                if(column < 0 || column >= columnCount) {
+                    throw new IllegalArgumentException("ORDER BY column number has to be between 1 and " + columnCount);
+                }
+            }
+            if(column < 0) {
+                throw new IllegalArgumentException("ORDER BY " + expression + " has to be one of the GROUP BY or SELECT expressions or a column number");
+            }
+            columns[i] = column;
+            descending[i] = orderings.get(i).descending;
+        }
+        return new GroupStatsComparator(columns, descending, groupBys.size());
     }
 
     private static void ensureDistinctSelectDoesntMatchGroupings(List<Grouping> groupings, DistinctGrouping distinctGrouping) {
@@ -918,6 +977,8 @@ public final class IQLTranslator {
 
         private final StatMatcher statMatcher;
 
+        // set when a grouping uses the query time range e.g. for time buckets
+        private boolean timeRangeDependent = false;
 
         private GroupByMatcher(final DatasetMetadata datasetMetadata, final Set<String> keywordAnalyzerWhitelist, final DateTime start, final DateTime end) {
             statMatcher = new StatMatcher(datasetMetadata, keywordAnalyzerWhitelist);
@@ -1016,7 +1077,12 @@ public final class IQLTranslator {
             functionLookup = builder.build();
         }
 
+        private boolean isTimeRangeDependent() {
+            return timeRangeDependent;
+        }
+
         private Grouping timeBuckets(String bucket, String format, Expression timeField) {
+            timeRangeDependent = true;
             final int min = (int) (start.getMillis()/1000);
             final int max = (int) (end.getMillis()/1000);
             final long interval = parseTimeBucketInterval(bucket, true, min, max);
@@ -24,20 +24,26 @@ public class QueryParts {
     public String where = "";
     public String groupBy = "";
     public String select = "";
+    public String orderBy = "";
     public String limit = "";
 
     public String error;
 
-    public int fromStart, fromEnd, whereStart, whereEnd, groupByStart, groupByEnd, selectStart, selectEnd;
+    public int fromStart, fromEnd, whereStart, whereEnd, groupByStart, groupByEnd, selectStart, selectEnd, orderByStart, orderByEnd;
 
     public QueryParts() {
     }
 
     public QueryParts(String from, String where, String groupBy, String select, String limit) {
+        this(from, where, groupBy, select, "", limit);
+    }
+
+    public QueryParts(String from, String where, String groupBy, String select, String orderBy, String limit) {
         this.from = Strings.nullToEmpty(from).trim();
         this.where = Strings.nullToEmpty(where).trim();
         this.groupBy = Strings.nullToEmpty(groupBy).trim();
         this.select = Strings.nullToEmpty(select).trim();
+        this.orderBy = Strings.nullToEmpty(orderBy).trim();
         this.limit = Strings.nullToEmpty(limit).trim();
     }
 
@@ -45,8 +51,8 @@ public class QueryParts {
         this(from, where, groupBy, select, "");
     }
 
-    public QueryParts(Token from, Token where, Token groupBy, Token select, Token limit) {
-        this(tokenAsString(from), tokenAsString(where), tokenAsString(groupBy), tokenAsString(select), tokenAsString(limit));
+    public QueryParts(Token from, Token where, Token groupBy, Token select, Token orderBy, Token limit) {
+        this(tokenAsString(from), tokenAsString(where), tokenAsString(groupBy), tokenAsString(select), tokenAsString(orderBy), tokenAsString(limit));
 
         if(from != null) {
             fromStart = from.index();
@@ -64,6 +70,10 @@ public class QueryParts {
             groupByStart = groupBy.index();
             groupByEnd = groupBy.index() + groupBy.length();
         }
+        if(orderBy != null) {
+            orderByStart = orderBy.index();
+            orderByEnd = orderBy.index() + orderBy.length();
+        }
     }
 
     private static String tokenAsString(Token token) {
@@ -81,12 +91,14 @@ public class QueryParts {
                     (Strings.isNullOrEmpty(where) ? "" : " where " + where) +
                     (Strings.isNullOrEmpty(groupBy) ? "" : " group by " + groupBy) +
                     " select " + select +
+                    (Strings.isNullOrEmpty(orderBy) ? "" : " order by " + orderBy) +
                     (Strings.isNullOrEmpty(limit) ? "" : " limit " + limit);
         } else {
             return "select " + select +
                     " from " + from +
                     (Strings.isNullOrEmpty(where) ? "" : " where " + where) +
                     (Strings.isNullOrEmpty(groupBy) ? "" : " group by " + groupBy) +
+                    (Strings.isNullOrEmpty(orderBy) ? "" : " order by " + orderBy) +
                     (Strings.isNullOrEmpty(limit) ? "" : " limit " + limit);
         }
     }
@@ -101,6 +113,7 @@ public class QueryParts {
         if (!from.equals(that.from)) return false;
         if (!groupBy.equals(that.groupBy)) return false;
         if (!limit.equals(that.limit)) return false;
+        if (!orderBy.equals(that.orderBy)) return false;
         if (!select.equals(that.select)) return false;
         if (!where.equals(that.where)) return false;
 
@@ -113,6 +126,7 @@ public class QueryParts {
         result = 31 * result + where.hashCode();
         result = 31 * result + groupBy.hashCode();
         result = 31 * result + select.hashCode();
+        result = 31 * result + orderBy.hashCode();
         result = 31 * result + limit.hashCode();
         return result;
     }
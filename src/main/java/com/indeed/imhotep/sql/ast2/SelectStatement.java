@@ -27,13 +27,19 @@ public class SelectStatement extends IQLStatement implements Serializable {
     public final FromClause from;
     public final WhereClause where;
     public final GroupByClause groupBy;
+    public final OrderByClause orderBy;
     public final int limit;
 
     public SelectStatement(SelectClause select, FromClause from, WhereClause where, GroupByClause groupBy, int limit) {
+        this(select, from, where, groupBy, null, limit);
+    }
+
+    public SelectStatement(SelectClause select, FromClause from, WhereClause where, GroupByClause groupBy, OrderByClause orderBy, int limit) {
         this.select = select;
         this.from = from;
         this.where = where;
         this.groupBy = groupBy;
+        this.orderBy = orderBy;
         this.limit = limit;
     }
 
@@ -45,6 +51,7 @@ public class SelectStatement extends IQLStatement implements Serializable {
         this.from = from;
         this.where = new WhereClause(where);
         this.groupBy = new GroupByClause(groupBy);
+        this.orderBy = null;
         this.limit = limit;
     }
 
@@ -57,14 +64,31 @@ public class SelectStatement extends IQLStatement implements Serializable {
 
     /**
      * Returns a string representation that can be used to compare with other SelectStatements.
-     * limit value is ignored as it changes presentation of results only.
+     * limit value is included when set as only the rows up to the limit are output and cached.
      */
     public String toHashKeyString() {
         final String fromStr = from != null ? from.toString() : "null";
         final String groupByStr = groupBy != null ? groupBy.toString() : "null";
         final String selectStr = select != null ? select.toString() : "null";
         final String whereStr = where != null ? where.toString() : "null";
+        final String orderByStr = orderBy != null ? ", orderBy=" + orderBy.toString() : "";
+        final String limitStr = limit != Integer.MAX_VALUE ? ", limit=" + limit : "";
         return "SelectStatement {from=" + fromStr  +
+                ", groupBy=" + groupByStr +
+                ", select=" + selectStr +
+                ", where=" + whereStr + orderByStr + limitStr + "}";
+    }
+
+    /**
+     * Same as toHashKeyString() but only the dataset is used from the FROM clause so that the same query
+     * over different time ranges produces the same string. order by is ignored as it's applied to the final results only.
+     */
+    public String toTimeRangeIndependentHashKeyString() {
+        final String datasetStr = from != null ? from.getDataset() : "null";
+        final String groupByStr = groupBy != null ? groupBy.toString() : "null";
+        final String selectStr = select != null ? select.toString() : "null";
+        final String whereStr = where != null ? where.toString() : "null";
+        return "SelectStatement {dataset=" + datasetStr  +
                 ", groupBy=" + groupByStr +
                 ", select=" + selectStr +
                 ", where=" + whereStr + "}";
@@ -17,6 +17,7 @@ import com.google.common.collect.Lists;
 import com.indeed.imhotep.sql.ast2.QueryParts;
 import org.codehaus.jparsec.*;
 import org.codehaus.jparsec.functors.Map5;
+import org.codehaus.jparsec.functors.Pair;
 import org.codehaus.jparsec.misc.Mapper;
 import org.codehaus.jparsec.pattern.Patterns;
 
@@ -29,7 +30,7 @@ import java.util.Set;
 
 public class QuerySplitter {
     private static final String[] KEYWORDS = new String[] {
-            "select", "from", "where", "group", "by", "limit", "=", ":", //query
+            "select", "from", "where", "group", "order", "by", "limit", "=", ":", //query
 
     };
 
@@ -57,37 +58,42 @@ public class QuerySplitter {
     }
 
     private static Parser<QueryParts> getQueryLINQParser() {
-        Parser<Token> selectLINQParser = TERMS.token("select").next(getContentParser("limit"));
-        Parser<Token> fromLINQParser = TERMS.token("from").next(getContentParser("where", "group", "select", "limit"));
-        Parser<Token> whereLINQParser = TERMS.token("where").next(getContentParser(true, "group", "select", "limit"));
-        Parser<Token> groupByLINQParser = TERMS.phrase("group", "by").next(getContentParser("select", "limit"));
-        Parser<Token> limitParser = TERMS.token("limit").next(getContentParser());
+        Parser<Token> selectLINQParser = TERMS.token("select").next(getContentParser("order", "limit"));
+        Parser<Token> fromLINQParser = TERMS.token("from").next(getContentParser("where", "group", "select", "order", "limit"));
+        Parser<Token> whereLINQParser = TERMS.token("where").next(getContentParser(true, "group", "select", "order", "limit"));
+        Parser<Token> groupByLINQParser = TERMS.phrase("group", "by").next(getContentParser("select", "order", "limit"));
 
-        return Parsers.sequence(fromLINQParser, whereLINQParser.optional(), groupByLINQParser.optional(), selectLINQParser.optional(), limitParser.optional(),
-                new Map5<Token, Token, Token, Token, Token, QueryParts>() {
+        return Parsers.sequence(fromLINQParser, whereLINQParser.optional(), groupByLINQParser.optional(), selectLINQParser.optional(), getOrderByLimitParser(),
+                new Map5<Token, Token, Token, Token, Pair<Token, Token>, QueryParts>() {
             @Override
-            public QueryParts map(Token from, Token where, Token groupBy, Token select, Token limit) {
-                return new QueryParts(from, where, groupBy, select, limit);
+            public QueryParts map(Token from, Token where, Token groupBy, Token select, Pair<Token, Token> orderByLimit) {
+                return new QueryParts(from, where, groupBy, select, orderByLimit.a, orderByLimit.b);
             }
         });
     }
 
     private static Parser<QueryParts> getQuerySQLParser() {
         Parser<Token> selectSQLParser = TERMS.token("select").next(getContentParser("from"));
-        Parser<Token> fromSQLParser = TERMS.token("from").next(getContentParser("where", "group", "limit"));
-        Parser<Token> whereSQLParser = TERMS.token("where").next(getContentParser(true, "group", "limit"));
-        Parser<Token> groupBySQLParser = TERMS.phrase("group", "by").next(getContentParser("limit"));
-        Parser<Token> limitParser = TERMS.token("limit").next(getContentParser());
+        Parser<Token> fromSQLParser = TERMS.token("from").next(getContentParser("where", "group", "order", "limit"));
+        Parser<Token> whereSQLParser = TERMS.token("where").next(getContentParser(true, "group", "order", "limit"));
+        Parser<Token> groupBySQLParser = TERMS.phrase("group", "by").next(getContentParser("order", "limit"));
 
-        return Parsers.sequence(selectSQLParser.optional(), fromSQLParser, whereSQLParser.optional(), groupBySQLParser.optional(), limitParser.optional(),
-                new Map5<Token, Token, Token, Token, Token, QueryParts>() {
+        return Parsers.sequence(selectSQLParser.optional(), fromSQLParser, whereSQLParser.optional(), groupBySQLParser.optional(), getOrderByLimitParser(),
+                new Map5<Token, Token, Token, Token, Pair<Token, Token>, QueryParts>() {
                     @Override
-                    public QueryParts map(Token select, Token from, Token where, Token groupBy, Token limit) {
-                        return new QueryParts(from, where, groupBy, select, limit);
+                    public QueryParts map(Token select, Token from, Token where, Token groupBy, Pair<Token, Token> orderByLimit) {
+                        return new QueryParts(from, where, groupBy, select, orderByLimit.a, orderByLimit.b);
                     }
                 });
     }
 
+    // order by and limit come last in both query styles
+    private static Parser<Pair<Token, Token>> getOrderByLimitParser() {
+        Parser<Token> orderByParser = TERMS.phrase("order", "by").next(getContentParser("limit"));
+        Parser<Token> limitParser = TERMS.token("limit").next(getContentParser());
+        return Parsers.tuple(orderByParser.optional(), limitParser.optional());
+    }
+
     private static Parser<Token> getContentParser(String... excludedTerms) {
         return getContentParser(false, excludedTerms);
     }
@@ -102,11 +108,20 @@ public class QuerySplitter {
             }
         }
         // consume any token as long as it is not one of the excluded ones
-        alternatives.add(TERMS.token(excludedTerms).not().next(Parsers.ANY_TOKEN));
+        alternatives.add(getExcludedTermsParser(excludedTerms).not().next(Parsers.ANY_TOKEN));
 
         return Parsers.sequence(Parsers.ANY_TOKEN.optional(), Parsers.or(alternatives).many()).source().token();
     }
 
+    private static Parser<?> getExcludedTermsParser(String... excludedTerms) {
+        List<Parser<?>> excluded = Lists.newArrayList();
+        for(String term : excludedTerms) {
+            // 'order' is a common field name so only the whole 'order by' phrase ends a clause
+            excluded.add("order".equals(term) ? TERMS.phrase("order", "by") : TERMS.token(term));
+        }
+        return Parsers.or(excluded);
+    }
+
     static void runBenchmark() {
         runBenchmarkJParsec();
         System.out.println("Warm up done");
@@ -40,6 +40,7 @@ import static com.indeed.imhotep.sql.parser.TerminalParser.term;
 public class StatementParser {
     private static final Pattern selectPattern = Pattern.compile("(?i)\\s*(?:select|from) .*");
     private static final Pattern showPattern = Pattern.compile("(?i)\\s*show\\s+(?:tables|datasets).*");
+    private static final Pattern orderDirectionPattern = Pattern.compile("(?is)(.*\\S)\\s+(asc|desc)");
     private static final Pattern describePattern = Pattern.compile("(?i)\\s*(?:describe|explain|desc)\\s+(\\w+)(?:(?:\\s+|\\.)(\\w+))?.*");
 
 
@@ -72,6 +73,7 @@ public class StatementParser {
         final FromClause from;
         final WhereClause where;
         final GroupByClause groupBy;
+        final OrderByClause orderBy;
 
         try {
             from = parseFromClause(parts.from);
@@ -97,9 +99,14 @@ public class StatementParser {
         } catch (Exception e) {
             throw new IQLParseException(e, "groupBy");
         }
+        try {
+            orderBy = parseOrderByClause(parts.orderBy, aliases);
+        } catch (Exception e) {
+            throw new IQLParseException(e, "orderBy");
+        }
         int limit = parseLimit(parts.limit);
 
-        return new SelectStatement(select, from, where, groupBy, limit);
+        return new SelectStatement(select, from, where, groupBy, orderBy, limit);
     }
 
     private static int parseLimit(String limit) {
@@ -126,6 +133,61 @@ public class StatementParser {
         return TerminalParser.parse(groupByParser, text);
     }
 
+    static OrderByClause parseOrderByClause(String text) {
+        return parseOrderByClause(text, Collections.<String, String>emptyMap());
+    }
+    static OrderByClause parseOrderByClause(String text, java.util.Map<String, String> aliases) {
+        if(Strings.isNullOrEmpty(text)) {
+            return null;
+        }
+        text = Preprocessor.applyAliases(text, aliases);
+
+        // asc and desc are not keywords so that they can still be used as field names
+        final Parser<Expression> expr = Parsers.longest(ExpressionParser.groupByExpression(), ExpressionParser.expression());
+        final List<OrderByClause.Ordering> orderings = Lists.newArrayList();
+        for(String column : splitTopLevel(text)) {
+            final Matcher matcher = orderDirectionPattern.matcher(column);
+            final boolean descending;
+            if(matcher.matches()) {
+                column = matcher.group(1);
+                descending = "desc".equalsIgnoreCase(matcher.group(2));
+            } else {
+                descending = false;
+            }
+            orderings.add(new OrderByClause.Ordering(TerminalParser.parse(expr, column), descending));
+        }
+        return new OrderByClause(orderings);
+    }
+
+    /**
+     * Splits the text on the commas that are not in brackets or quotes.
+     */
+    private static List<String> splitTopLevel(String text) {
+        final List<String> parts = Lists.newArrayList();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for(int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if(quote != 0) {
+                if(c == quote) {
+                    quote = 0;
+                }
+            } else if(c == '"' || c == '\'') {
+                quote = c;
+            } else if(c == '(' || c == '[') {
+                depth++;
+            } else if(c == ')' || c == ']') {
+                depth--;
+            } else if(c == ',' && depth == 0) {
+                parts.add(text.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start).trim());
+        return parts;
+    }
+
     public static WhereClause parseWhereClause(String text) {
         return parseWhereClause(text, Collections.<String, String>emptyMap());
     }
@@ -14,94 +14,167 @@
  package com.indeed.imhotep.web;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.QueryCostEstimator;
+import com.indeed.imhotep.iql.SharedResults;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
+import java.text.DecimalFormat;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Keeps track of the currently running queries.
- * All public methods on this class operating on internal data structures should be marked synchronized.
+ * Keeps track of the currently running queries and decides when they start.
+ * Queries are admitted by a {@link QueryScheduler} that shares the execution slots fairly between the users.
+ * Identical queries that arrive while one is running stream its results instead of executing again.
+ * The estimated cost of each query decides up front whether it's rejected, which Imhotep cluster it runs on and
+ * whether it counts against the limit of expensive queries.
+ * The state is kept in concurrent data structures so starting and releasing queries doesn't contend on a lock.
+ * Running and waiting queries can be cancelled by their id, which stops their Imhotep sessions right away.
  * @author vladimir
  */
 @Component
 public class ExecutionManager {
     private static final Logger log = Logger.getLogger(ExecutionManager.class);
-    // values are used for locking to avoid concurrent processing of identical requests
-    private final Map<String, CountDownLatch> queryToLock = Maps.newHashMap();
-    // used to limit number of concurrent queries per user
-    private final Map<String, Semaphore> userToLock = Maps.newHashMap();
-    private final Set<QueryTracker> runningQueries = Sets.newHashSet();
+    // original executions of the running queries. identical requests share their results or wait for them to finish
+    private final ConcurrentMap<String, QueryTracker> queryToOriginal = Maps.newConcurrentMap();
+    private final Set<QueryTracker> runningQueries = Sets.newConcurrentHashSet();
+    private final AtomicLong queryIds = new AtomicLong();
+    private final QueryScheduler scheduler;
+    // queries estimated to match more documents or produce more groups than these are heavy. 0 for no limit
+    private final long heavyQueryDocs;
+    private final long heavyQueryGroups;
+    // queries predicted to take longer than this are heavy. 0 for no limit
+    private final long heavyQueryMillis;
+    // whether cheap queries run on the interactive cluster even when it's not requested
+    private final boolean interactiveRouting;
 
-    @Value("${user.concurrent.query.limit}")
-    private int maxQueriesPerUser;
-
-    public ExecutionManager() {
+    @Autowired
+    public ExecutionManager(@Value("${user.concurrent.query.limit}") int maxQueriesPerUser,
+                            @Value("${query.concurrent.limit:0}") int maxQueries,
+                            @Value("${query.scheduler.weights:}") String weights,
+                            @Value("${query.cost.heavy.concurrent.limit:0}") int maxHeavyQueries,
+                            @Value("${query.cost.heavy.docs:0}") long heavyQueryDocs,
+                            @Value("${query.cost.heavy.groups:0}") long heavyQueryGroups,
+                            @Value("${query.cost.heavy.seconds:0}") long heavyQuerySeconds,
+                            @Value("${query.cost.interactive.routing:false}") boolean interactiveRouting) {
+        scheduler = new QueryScheduler(maxQueries, maxQueriesPerUser, maxHeavyQueries, QueryScheduler.parseWeights(weights));
+        this.heavyQueryDocs = heavyQueryDocs;
+        this.heavyQueryGroups = heavyQueryGroups;
+        this.heavyQueryMillis = TimeUnit.SECONDS.toMillis(heavyQuerySeconds);
+        this.interactiveRouting = interactiveRouting;
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
     }
 
     @Nonnull
-    public synchronized List<QueryTracker> getRunningQueries() {
+    public List<QueryTracker> getRunningQueries() {
         return Lists.newArrayList(runningQueries);
     }
 
+    @Export(name = "running-queries", doc = "Number of queries admitted for execution")
+    public int getAdmittedQueryCount() {
+        return scheduler.getRunningCount();
+    }
+
+    @Export(name = "running-heavy-queries", doc = "Number of queries estimated to be expensive admitted for execution")
+    public int getAdmittedHeavyQueryCount() {
+        return scheduler.getHeavyRunningCount();
+    }
+
+    @Export(name = "queued-queries", doc = "Number of queries waiting in line for execution")
+    public int getQueuedQueryCount() {
+        return scheduler.getWaitingCount();
+    }
+
     /**
-     * Keeps track of the query that is going to be executed and makes sure that user allocated limit is not exceeded.
+     * Keeps track of the query that is going to be executed and puts it in line for execution without waiting.
      * When the query execution is completed (data is in HDFS cache) or fails, the returned Query object must be closed.
+     * @param username user the query is accounted to
+     * @param client client application used when the query has no user
+     * @param cost estimated cost of the query
+     * @param prediction cost of the query predicted from similar queries. null if there were none
+     * @throws IllegalArgumentException if the query would certainly create more groups than allowed
      */
-    public synchronized QueryTracker queryStarted(String query, String username) throws TimeoutException {
-        final CountDownLatch releaseLock;
-        final CountDownLatch waitLockForQuery;
-        final Semaphore waitLockForUser;
-        if(queryToLock.containsKey(query)) {   // this is a duplicate query and execution will have to wait
-            waitLockForQuery = queryToLock.get(query);
-            waitLockForUser = null;
-            releaseLock = null;
-        } else {    // this is a non-duplicate query and the lock has to be released after execution is finished
-            waitLockForQuery = null;
-            waitLockForUser = getUserSemaphore(username);
-            releaseLock = new CountDownLatch(1);
-            queryToLock.put(query, releaseLock);
-        }
-        final QueryTracker newQueryTracker = new QueryTracker(username, query, waitLockForQuery, waitLockForUser, releaseLock, this);
+    public QueryTracker queryStarted(String query, String username, String client, QueryCostEstimator.Cost cost,
+                                     @Nullable QueryCostModel.Prediction prediction) throws TimeoutException {
+        if(cost.getFixedGroupCount() > EZImhotepSession.GROUP_LIMIT) {
+            final DecimalFormat df = new DecimalFormat("###,###");
+            throw new IllegalArgumentException("Number of groups " + df.format(cost.getFixedGroupCount()) +
+                    " created by the bucket groupings exceeds the limit " + df.format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query.");
+        }
+        final QueryTracker newQueryTracker = new QueryTracker(username, query, this, cost, prediction, isHeavy(cost, prediction));
+        final QueryTracker original = queryToOriginal.putIfAbsent(query, newQueryTracker);
+        if(original != null) {   // this is a duplicate query and execution will have to wait
+            newQueryTracker.original = original;
+        } else {    // this is a non-duplicate query and the slot has to be released after execution is finished
+            newQueryTracker.admission = scheduler.enqueue(!Strings.isNullOrEmpty(username) ? username : client, newQueryTracker.heavy,
+                    newQueryTracker.getPredictedMillis());
+        }
         runningQueries.add(newQueryTracker);
         return newQueryTracker;
     }
 
-    private synchronized Semaphore getUserSemaphore(String username) {
-        Semaphore semaphore = userToLock.get(username);
-        if(semaphore == null) {
-            semaphore = new Semaphore(maxQueriesPerUser, true);
-            userToLock.put(username, semaphore);
+    /**
+     * Returns the running or waiting query with the id or null if there is no such query.
+     */
+    @Nullable
+    public QueryTracker getRunningQuery(long id) {
+        for (QueryTracker queryTracker : runningQueries) {
+            if(queryTracker.getId() == id) {
+                return queryTracker;
+            }
         }
-        return semaphore;
+        return null;
     }
 
-    private synchronized void release(QueryTracker q) {
-        if(q.released) {
-            return; // release called twice
+    private boolean isHeavy(QueryCostEstimator.Cost cost, @Nullable QueryCostModel.Prediction prediction) {
+        return (heavyQueryDocs > 0 && cost.getMatchingDocCount() > heavyQueryDocs) ||
+                (heavyQueryGroups > 0 && cost.getGroupCount() > heavyQueryGroups) ||
+                (heavyQueryMillis > 0 && prediction != null && prediction.getMillis() > heavyQueryMillis);
+    }
+
+    private void release(QueryTracker q) {
+        if(q.original == null) { // this was the original query of this type and it's done now
+            // removed before it's marked released so that new identical queries don't wait for it
+            queryToOriginal.remove(q.query, q);
+        }
+        synchronized (q) {
+            if(q.released) {
+                return; // release called twice
+            }
+            q.released = true;
+            if(q.resultsToShare != null) {
+                q.resultsToShare.close();
+            }
+            q.notifyAll();    // wakes up the duplicates waiting for it
         }
-        q.released = true;
 
-        if(q.releaseLock != null) { // this was the original query of this type and it's done now
-            q.releaseLock.countDown();
-            queryToLock.remove(q.query);
+        if(q.sharedRows != null) {
+            q.sharedRows.close();
         }
-        if(q.userSlotUsed && q.waitLockForUser != null) {
-            q.waitLockForUser.release();
+        if(q.admission != null) {
+            q.admission.release();
         }
 
         runningQueries.remove(q);
@@ -112,24 +185,42 @@ public class ExecutionManager {
      * Must be closed when all operations relating to the query processing are complete (including HDFS cache upload).
      */
     public class QueryTracker implements Closeable {
+        private final long id = queryIds.incrementAndGet();
         private final String username;  // user running the query
         private final String query; // query text
-        private final CountDownLatch waitLockForQuery;  // lock to wait on before the query starts
-        private final Semaphore waitLockForUser;  // lock to wait on before the query starts
-        private final CountDownLatch releaseLock;   // lock to be released when the query is done
         private final ExecutionManager owner;
+        private final QueryCostEstimator.Cost cost;
+        @Nullable
+        private final QueryCostModel.Prediction prediction;
+        private final boolean heavy;
         private final DateTime startedTime = DateTime.now();
-        private boolean asynchronousRelease = false;
+        // set right after construction by queryStarted
+        private QueryTracker original = null;  // original execution of the query if this is a duplicate
+        private volatile QueryScheduler.Admission admission = null;  // place in line for execution if this is an original
+        private volatile boolean asynchronousRelease = false;
+        private volatile boolean cancelled = false;
+        // query being executed for this request. null before the execution starts
+        private volatile IQLQuery executingQuery = null;
+        // guarded by this
         private boolean released = false;
-        private boolean userSlotUsed = false;
+        // set by the original execution once it starts outputting the results. guarded by this
+        private SharedResults resultsToShare = null;
+        private QueryMetadata sharedMetadata = null;
+        // results of the original execution this duplicate streams from
+        private SharedResults.Reader sharedRows = null;
 
-        private QueryTracker(String username, String query, CountDownLatch waitLockForQuery, Semaphore waitLockForUser, CountDownLatch releaseLock, ExecutionManager owner) {
+        private QueryTracker(String username, String query, ExecutionManager owner, QueryCostEstimator.Cost cost,
+                             @Nullable QueryCostModel.Prediction prediction, boolean heavy) {
             this.username = username;
             this.query = query;
-            this.waitLockForQuery = waitLockForQuery;
-            this.waitLockForUser = waitLockForUser;
-            this.releaseLock = releaseLock;
             this.owner = owner;
+            this.cost = cost;
+            this.prediction = prediction;
+            this.heavy = heavy;
+        }
+
+        public long getId() {
+            return id;
         }
 
         public String getUsername() {
@@ -144,41 +235,171 @@ public class ExecutionManager {
             return startedTime.toString();
         }
 
+        public String getEstimatedCost() {
+            return cost.toString();
+        }
+
+        /**
+         * Returns how long the query is predicted to take or -1 if there is no prediction.
+         */
+        public long getPredictedMillis() {
+            return prediction != null ? prediction.getMillis() : -1;
+        }
+
+        public boolean isHeavy() {
+            return heavy;
+        }
+
+        /**
+         * Returns whether the query should run on the interactive Imhotep cluster.
+         * Heavy queries are only routed to the batch cluster when the interactive cluster was not requested.
+         * @param requested whether the interactive cluster was requested
+         */
+        public boolean isInteractive(boolean requested) {
+            return requested || (!heavy && interactiveRouting);
+        }
+
+        /**
+         * Returns the number of queries ahead of this one in line for execution or 0 if it's not waiting.
+         */
+        public int getQueuePosition() {
+            return admission != null ? admission.getQueuePosition() : 0;
+        }
+
         public void acquireLocks() throws TimeoutException {
             waitForQueryLock();
-            waitForUserLock();
+            waitForAdmission();
         }
 
+        /**
+         * Waits until the original execution of the same query either starts outputting results that this one can
+         * stream from or finishes.
+         */
         private void waitForQueryLock() throws TimeoutException {
-            if(waitLockForQuery == null) {
+            if(original == null) {
                 return;
             }
             // same query is already being handled, waiting
-            try {
-                if(!waitLockForQuery.await(5, TimeUnit.MINUTES)) {
-                    log.error("Reached timeout waiting for completion of: " + query);
-                    throw new TimeoutException("Reached timeout (5 min) waiting for completion of original execution of the query");
+            final long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+            synchronized (original) {
+                try {
+                    while(!original.released) {
+                        checkCancelled();
+                        if(original.resultsToShare != null) {
+                            sharedRows = original.resultsToShare.newReader();
+                            if(sharedRows != null) {
+                                return;
+                            }
+                            // the results are not shared. waiting for them to be cached
+                        }
+                        final long remaining = timeout - System.currentTimeMillis();
+                        if(remaining <= 0) {
+                            log.error("Reached timeout waiting for completion of: " + query);
+                            throw new TimeoutException("Reached timeout (5 min) waiting for completion of original execution of the query");
+                        }
+                        original.wait(remaining);
+                    }
+                } catch (InterruptedException ignored) {
+                    throw new RuntimeException("Interrupted while waiting for completion of original execution of the query. You can retry.");
                 }
-            } catch (InterruptedException ignored) {
-                throw new RuntimeException("Interrupted while waiting for completion of original execution of the query. You can retry.");
             }
         }
 
-        private void waitForUserLock() throws TimeoutException {
-            if(waitLockForUser == null) {
+        /**
+         * Lets the duplicates of this query stream the results of this execution.
+         * The results are closed when this query is released.
+         */
+        public synchronized void shareResults(QueryMetadata metadata, SharedResults results) {
+            if(released) {
+                results.close();
+                return;
+            }
+            sharedMetadata = metadata;
+            resultsToShare = results;
+            notifyAll();
+        }
+
+        /**
+         * Returns the results of the original execution of the query if this is a duplicate that streams them.
+         */
+        @Nullable
+        @JsonIgnore
+        public SharedResults.Reader getSharedRows() {
+            return sharedRows;
+        }
+
+        /**
+         * Returns the metadata of the original execution that the shared rows come from.
+         */
+        @JsonIgnore
+        public QueryMetadata getSharedMetadata() {
+            synchronized (original) {
+                return original.sharedMetadata;
+            }
+        }
+
+        private void waitForAdmission() throws TimeoutException {
+            if(admission == null) {
                 return;
             }
 
             try {
-                if(!waitLockForUser.tryAcquire(5, TimeUnit.MINUTES)) {
-                    throw new TimeoutException("Reached timeout (5 min) waiting in queue for query execution");
-                }
-                userSlotUsed = true;
+                admission.await(5, TimeUnit.MINUTES);
+            } catch (CancellationException e) {
+                checkCancelled();
+                throw e;
+            } catch (TimeoutException e) {
+                throw new TimeoutException("Reached timeout (5 min) waiting in queue for query execution");
             } catch (InterruptedException ignored) {
                 throw new RuntimeException("Wait in queue for query execution was interrupted. You can retry.");
             }
         }
 
+        /**
+         * Sets the query executed for this request so that it can be cancelled. Cancels it right away if this
+         * request was cancelled already.
+         */
+        public void setExecutingQuery(IQLQuery query) {
+            executingQuery = query;
+            if(cancelled) {
+                query.cancel();
+            }
+        }
+
+        /**
+         * Stops the query. A waiting query gives up its place in line and an executing one closes its Imhotep
+         * sessions, which frees their resources on the daemons. The request then fails with a {@link CancellationException}.
+         */
+        public void cancel() {
+            if(cancelled) {
+                return;
+            }
+            cancelled = true;
+            log.info("Cancelling query " + id + ": " + query);
+            if(admission != null) {
+                admission.cancel();
+            }
+            if(original != null) {
+                synchronized (original) {
+                    original.notifyAll();   // stops waiting for the original execution
+                }
+            }
+            final IQLQuery executing = executingQuery;
+            if(executing != null) {
+                executing.cancel();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void checkCancelled() {
+            if(cancelled) {
+                throw new CancellationException("The query was cancelled");
+            }
+        }
+
         @Override
         public void close() throws IOException {
             owner.release(this);
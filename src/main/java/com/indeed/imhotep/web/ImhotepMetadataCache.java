@@ -20,7 +20,9 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.client.ImhotepClient;
+import com.indeed.imhotep.client.ShardIdWithVersion;
 import com.indeed.imhotep.metadata.DatasetMetadata;
 import com.indeed.imhotep.metadata.FieldMetadata;
 import com.indeed.imhotep.metadata.FieldType;
@@ -52,6 +54,8 @@ public class ImhotepMetadataCache {
     private LinkedHashMap<String, DatasetMetadata> datasets = Maps.newLinkedHashMap();
     // TODO: integrate into the metadata above?
     private volatile Map<String, Set<String>> datasetToKeywordAnaylzerWhitelist = Maps.newHashMap();
+    // number of documents in each shard of each dataset. used to estimate the cost of queries
+    private volatile Map<String, Map<String, Integer>> datasetToShardDocCounts = Maps.newHashMap();
     private final ImhotepClient imhotepClient;
     private String ramsesMetadataPath;
     private final List<Pattern> disabledFields = Lists.newArrayList();
@@ -83,6 +87,20 @@ public class ImhotepMetadataCache {
             return;
         }
 
+        final Map<String, Map<String, Integer>> newDatasetToShardDocCounts = Maps.newHashMap();
+        for(DatasetInfo datasetInfo : datasetToShardList.values()) {
+            final Map<String, Integer> shardDocCounts = Maps.newHashMap();
+            for(ShardInfo shard : datasetInfo.getShardList()) {
+                // shards are listed once per daemon that serves them
+                final Integer docCount = shardDocCounts.get(shard.getShardId());
+                if(docCount == null || docCount < shard.getNumDocs()) {
+                    shardDocCounts.put(shard.getShardId(), shard.getNumDocs());
+                }
+            }
+            newDatasetToShardDocCounts.put(datasetInfo.getDataset(), shardDocCounts);
+        }
+        datasetToShardDocCounts = newDatasetToShardDocCounts;
+
         // First make empty DatasetMetadata instances
         final LinkedHashMap<String, DatasetMetadata> newDatasets = Maps.newLinkedHashMap();
         for(String datasetName : datasetNames) {
@@ -148,6 +166,30 @@ public class ImhotepMetadataCache {
         return datasets.get(dataset);
     }
 
+    /**
+     * Returns the number of documents in the shards of the dataset or -1 if none of them are known.
+     * Shards that are not known yet are assumed to have the average number of documents of the known ones.
+     */
+    public long getDocCount(String dataset, List<ShardIdWithVersion> shards) {
+        final Map<String, Integer> shardDocCounts = datasetToShardDocCounts.get(dataset);
+        if(shardDocCounts == null || shards.isEmpty()) {
+            return shards.isEmpty() ? 0 : -1;
+        }
+        long docCount = 0;
+        int knownShards = 0;
+        for(ShardIdWithVersion shard : shards) {
+            final Integer shardDocCount = shardDocCounts.get(shard.getShardId());
+            if(shardDocCount != null) {
+                docCount += shardDocCount;
+                knownShards++;
+            }
+        }
+        if(knownShards == 0) {
+            return -1;
+        }
+        return docCount * shards.size() / knownShards;
+    }
+
     public Set<String> getKeywordAnalyzerWhitelist(String dataset) {
         if(!datasetToKeywordAnaylzerWhitelist.containsKey(dataset)) {
             return Collections.emptySet();
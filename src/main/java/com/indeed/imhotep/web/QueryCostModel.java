@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.sql.ast2.FromClause;
+import com.indeed.imhotep.sql.ast2.SelectStatement;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import org.apache.log4j.Logger;
+import org.joda.time.Duration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Predicts how long a query will take and how much FTGS data it will write from the queries that ran before.
+ * Learns from the query log entries written by {@link QueryServlet}: of each executed select statement as it
+ * completes and of the ones in an existing log file when the application starts.
+ * Queries are grouped by dataset and shape (number of selected metrics and of groupings) and for each group
+ * the time and FTGS megabytes are fitted as a linear function of the number of days queried. Older queries are
+ * gradually forgotten so that the model follows changes of the data and the cluster.
+ * Shapes with too few queries are predicted from all the queries of the dataset.
+ */
+@Component
+public class QueryCostModel {
+    private static final Logger log = Logger.getLogger(QueryCostModel.class);
+    private static final int MIN_SAMPLES = 5;
+    // weight kept by the previous queries each time a query is added
+    private static final double DECAY = 0.995;
+    private static final String LOG_ENTRY_MARKER = "[logentry] ";
+    private static final Pattern TOTAL_TIME_PATTERN = Pattern.compile("(?:^| )tottime:(\\d+) ");
+    private static final Pattern PARAMS_PATTERN = Pattern.compile(" params:(.*?) q:");
+
+    private final ConcurrentMap<String, Fit> fits = Maps.newConcurrentMap();
+
+    @Autowired
+    public QueryCostModel(@Value("${query.cost.model.log.file:}") final String logFile) {
+        if(!Strings.isNullOrEmpty(logFile)) {
+            final ExecutorService loader = Executors.newSingleThreadExecutor(new NamedThreadFactory("IQL-Cost-Model-Loader"));
+            loader.submit(new Runnable() {
+                @Override
+                public void run() {
+                    load(new File(logFile));
+                }
+            });
+            loader.shutdown();
+        }
+    }
+
+    /**
+     * Returns the prediction for a query or null if no similar queries were seen yet.
+     */
+    @Nullable
+    public Prediction predict(SelectStatement selectStatement) {
+        final FromClause from = selectStatement.from;
+        if(from == null) {
+            return null;
+        }
+        final int selectCount = selectStatement.select != null && selectStatement.select.getProjections() != null ?
+                selectStatement.select.getProjections().size() : 0;
+        final int groupByCount = selectStatement.groupBy != null && selectStatement.groupBy.groupings != null ?
+                selectStatement.groupBy.groupings.size() : 0;
+        final long days = from.getStart() != null && from.getEnd() != null ?
+                new Duration(from.getStart(), from.getEnd()).getStandardDays() : 0;
+        return predict(from.getDataset(), selectCount, groupByCount, days);
+    }
+
+    @Nullable
+    Prediction predict(String dataset, int selectCount, int groupByCount, long days) {
+        Fit fit = fits.get(getShapeKey(dataset, selectCount, groupByCount));
+        if(fit == null || !fit.hasEnoughSamples()) {
+            fit = fits.get(dataset);
+        }
+        if(fit == null || !fit.hasEnoughSamples()) {
+            return null;
+        }
+        return fit.predict(days);
+    }
+
+    /**
+     * Learns from a query that completed. Only select statements that were executed are used.
+     */
+    public void observe(QueryLogEntry logEntry) {
+        observe(logEntry.getProperties());
+    }
+
+    private void observe(Map<String, String> entry) {
+        if(!"select".equals(entry.get("statement")) || !"0".equals(entry.get("error")) ||
+                !"0".equals(entry.get("cached")) || !"0".equals(entry.get("head")) ||
+                Strings.nullToEmpty(entry.get("params")).contains("async")) {
+            return;
+        }
+        final String dataset = entry.get("dataset");
+        final long days;
+        final int selectCount;
+        final int groupByCount;
+        final long time;
+        final long ftgsMB;
+        try {
+            days = Long.parseLong(Strings.nullToEmpty(entry.get("days")));
+            selectCount = Integer.parseInt(entry.get("selectcnt"));
+            groupByCount = Integer.parseInt(entry.get("groupbycnt"));
+            time = Long.parseLong(entry.get("tottime"));
+            ftgsMB = Long.parseLong(entry.get("ftgsmb"));
+        } catch (NumberFormatException e) {
+            return; // incomplete entry
+        }
+        if(dataset == null) {
+            return;
+        }
+        getFit(getShapeKey(dataset, selectCount, groupByCount)).add(days, time, ftgsMB);
+        getFit(dataset).add(days, time, ftgsMB);
+    }
+
+    private Fit getFit(String key) {
+        Fit fit = fits.get(key);
+        if(fit == null) {
+            final Fit newFit = new Fit();
+            fit = fits.putIfAbsent(key, newFit);
+            if(fit == null) {
+                fit = newFit;
+            }
+        }
+        return fit;
+    }
+
+    private static String getShapeKey(String dataset, int selectCount, int groupByCount) {
+        return dataset + "|" + selectCount + "|" + groupByCount;
+    }
+
+    private void load(File logFile) {
+        if(!logFile.exists()) {
+            log.info("Query log to load the cost model from not found: " + logFile);
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        int loaded = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), Charsets.UTF_8));
+            for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final Map<String, String> entry = parseLogLine(line);
+                if(entry != null) {
+                    observe(entry);
+                    loaded++;
+                }
+            }
+            log.info("Loaded " + loaded + " query log entries into the cost model in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            log.warn("Failed to load the cost model from " + logFile, e);
+        } finally {
+            Closeables2.closeQuietly(reader, log);
+        }
+    }
+
+    /**
+     * Parses the properties used by the model from a query log line.
+     * The query text can contain anything so the properties before it are found by name and the ones after it
+     * are read from the end of the query text on, which is followed by its length.
+     */
+    @Nullable
+    static Map<String, String> parseLogLine(String line) {
+        final int entryStart = line.indexOf(LOG_ENTRY_MARKER);
+        final int queryLengthStart = line.lastIndexOf(" qlen:");
+        if(entryStart < 0 || queryLengthStart < 0) {
+            return null;
+        }
+        final Map<String, String> entry = Maps.newHashMap();
+        final String beforeQuery = line.substring(entryStart + LOG_ENTRY_MARKER.length(), queryLengthStart);
+        final Matcher timeMatcher = TOTAL_TIME_PATTERN.matcher(beforeQuery);
+        if(timeMatcher.find()) {
+            entry.put("tottime", timeMatcher.group(1));
+        }
+        final Matcher paramsMatcher = PARAMS_PATTERN.matcher(beforeQuery);
+        if(paramsMatcher.find()) {
+            entry.put("params", paramsMatcher.group(1));
+        }
+        for(String property : line.substring(queryLengthStart + 1).split(" ")) {
+            final int separator = property.indexOf(':');
+            if(separator > 0) {
+                entry.put(property.substring(0, separator), property.substring(separator + 1));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Least squares fit of the time and FTGS megabytes to the number of days, weighted towards recent queries.
+     */
+    private static final class Fit {
+        private double weight = 0;
+        private double sumDays = 0;
+        private double sumDaysSquared = 0;
+        private double sumTime = 0;
+        private double sumDaysTime = 0;
+        private double sumFtgs = 0;
+        private double sumDaysFtgs = 0;
+        private int samples = 0;
+
+        synchronized void add(long days, long time, long ftgsMB) {
+            weight = weight * DECAY + 1;
+            sumDays = sumDays * DECAY + days;
+            sumDaysSquared = sumDaysSquared * DECAY + (double) days * days;
+            sumTime = sumTime * DECAY + time;
+            sumDaysTime = sumDaysTime * DECAY + (double) days * time;
+            sumFtgs = sumFtgs * DECAY + ftgsMB;
+            sumDaysFtgs = sumDaysFtgs * DECAY + (double) days * ftgsMB;
+            samples++;
+        }
+
+        synchronized boolean hasEnoughSamples() {
+            return samples >= MIN_SAMPLES;
+        }
+
+        synchronized Prediction predict(long days) {
+            return new Prediction(Math.round(Math.max(0, predict(sumTime, sumDaysTime, days))),
+                    Math.round(Math.max(0, predict(sumFtgs, sumDaysFtgs, days))), samples);
+        }
+
+        private double predict(double sumY, double sumDaysY, long days) {
+            final double meanDays = sumDays / weight;
+            final double meanY = sumY / weight;
+            final double variance = sumDaysSquared / weight - meanDays * meanDays;
+            if(variance < 1e-6) {
+                // all the queries were for the same number of days
+                return meanY * (days + 1) / (meanDays + 1);
+            }
+            final double slope = (sumDaysY / weight - meanDays * meanY) / variance;
+            return meanY + slope * (days - meanDays);
+        }
+    }
+
+    public static final class Prediction {
+        static final Prediction UNKNOWN = new Prediction(-1, -1, 0);
+
+        private final long millis;
+        private final long ftgsMB;
+        private final int samples;
+
+        Prediction(long millis, long ftgsMB, int samples) {
+            this.millis = millis;
+            this.ftgsMB = ftgsMB;
+            this.samples = samples;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getFtgsMB() {
+            return ftgsMB;
+        }
+
+        /**
+         * Returns the number of queries the prediction is based on.
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        @Override
+        public String toString() {
+            return "millis=" + millis + " ftgsMB=" + ftgsMB + " samples=" + samples;
+        }
+    }
+}
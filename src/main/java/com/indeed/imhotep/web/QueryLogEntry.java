@@ -15,6 +15,8 @@
 
 import com.google.common.base.Joiner;
 
+import java.util.Collections;
+
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -39,6 +41,10 @@ public class QueryLogEntry implements Iterable<Entry<String,String>> {
         propertyMap.put(key, Integer.toString(val));
     }
 
+    public Map<String, String> getProperties() {
+        return Collections.unmodifiableMap(propertyMap);
+    }
+
     @Override
     public Iterator<Entry<String, String>> iterator() {
         return propertyMap.entrySet().iterator();
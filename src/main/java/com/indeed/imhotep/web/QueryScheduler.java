@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when queries start executing so that the execution slots are shared fairly between the users.
+ * Each user (or client for requests without a user name) has a queue of waiting queries. Whenever a slot frees up
+ * the head of the queue of the user with the fewest running queries relative to its weight is admitted, as long as
+ * neither the global nor the per user limit of running queries is reached. Among equals the query predicted to finish
+ * first is admitted, or the oldest one if there are no predictions, which keeps short queries from waiting behind
+ * long ones.
+ * Queries estimated to be expensive also have to fit under a separate limit so that they can't take all the slots.
+ * <p>
+ * Queueing doesn't block: {@link #enqueue(String, boolean, long)} returns right away and the returned admission
+ * completes when the query may start. The state is kept in concurrent data structures and admissions are made by
+ * whichever thread enqueues, releases or gives up a query without holding a lock. Callers that need the result on the
+ * same thread still block in {@link Admission#await(long, TimeUnit)} until the query is admitted.
+ * The queue of a user is dropped once none of its queries wait or run.
+ */
+class QueryScheduler {
+    private static final double DEFAULT_WEIGHT = 1;
+
+    private final int maxRunningQueries;
+    private final int maxRunningQueriesPerUser;
+    private final int maxRunningHeavyQueries;
+    private final Map<String, Double> weights;
+    private final ConcurrentMap<String, UserQueue> userQueues = Maps.newConcurrentMap();
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicInteger heavyRunningCount = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    // number of requested admission passes. only the thread that raised it from 0 runs them
+    private final AtomicInteger pendingDispatches = new AtomicInteger();
+
+    /**
+     * @param maxRunningQueries limit of the queries running at once. 0 for no limit
+     * @param maxRunningQueriesPerUser limit of the queries of a single user running at once
+     * @param maxRunningHeavyQueries limit of the expensive queries running at once. 0 for no limit
+     * @param weights share of each user or client relative to the default of 1
+     */
+    QueryScheduler(int maxRunningQueries, int maxRunningQueriesPerUser, int maxRunningHeavyQueries, Map<String, Double> weights) {
+        this.maxRunningQueries = maxRunningQueries;
+        this.maxRunningQueriesPerUser = maxRunningQueriesPerUser;
+        this.maxRunningHeavyQueries = maxRunningHeavyQueries;
+        this.weights = ImmutableMap.copyOf(weights);
+    }
+
+    /**
+     * Parses weights in the "name:weight,name:weight" format.
+     */
+    static Map<String, Double> parseWeights(String weights) {
+        final Map<String, Double> result = Maps.newHashMap();
+        if(Strings.isNullOrEmpty(weights)) {
+            return result;
+        }
+        for (Map.Entry<String, String> entry : Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator(Splitter.on(':').trimResults()).split(weights).entrySet()) {
+            final double weight = Double.parseDouble(entry.getValue());
+            if(!(weight > 0)) {
+                throw new IllegalArgumentException("Query scheduler weight has to be positive: " + entry.getKey());
+            }
+            result.put(entry.getKey(), weight);
+        }
+        return result;
+    }
+
+    /**
+     * Puts a query of the user in line for execution.
+     * @param user name of the user or the client that the query is accounted to
+     * @param heavy whether the query is estimated to be expensive
+     * @param predictedMillis how long the query is predicted to take or -1 if it's not known
+     */
+    Admission enqueue(String user, boolean heavy, long predictedMillis) {
+        UserQueue userQueue;
+        do {
+            userQueue = userQueues.get(user);
+            if(userQueue == null) {
+                final Double weight = weights.get(user);
+                final UserQueue newQueue = new UserQueue(user, weight != null ? weight : DEFAULT_WEIGHT);
+                userQueue = userQueues.putIfAbsent(user, newQueue);
+                if(userQueue == null) {
+                    userQueue = newQueue;
+                }
+            }
+            // fails if the queue is being dropped. a new one is created then
+        } while(!userQueue.retain());
+        final Admission admission = new Admission(sequence.incrementAndGet(), userQueue, heavy, predictedMillis);
+        userQueue.waiting.add(admission);
+        dispatch();
+        return admission;
+    }
+
+    int getRunningCount() {
+        return runningCount.get();
+    }
+
+    int getHeavyRunningCount() {
+        return heavyRunningCount.get();
+    }
+
+    int getWaitingCount() {
+        int waiting = 0;
+        for (UserQueue userQueue : userQueues.values()) {
+            waiting += userQueue.waiting.size();
+        }
+        return waiting;
+    }
+
+    /**
+     * Admits as many queries as the limits allow.
+     * Concurrent calls are folded into the running one which makes another pass for each of them.
+     */
+    private void dispatch() {
+        if(pendingDispatches.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while(admitNext()) {
+                // keeps admitting
+            }
+            missed = pendingDispatches.addAndGet(-missed);
+        } while(missed != 0);
+    }
+
+    private boolean admitNext() {
+        if(maxRunningQueries > 0 && runningCount.get() >= maxRunningQueries) {
+            return false;
+        }
+        final boolean heavyAllowed = maxRunningHeavyQueries <= 0 || heavyRunningCount.get() < maxRunningHeavyQueries;
+        UserQueue next = null;
+        Admission nextHead = null;
+        double nextShare = 0;
+        for (UserQueue userQueue : userQueues.values()) {
+            final Admission head = userQueue.waiting.peek();
+            final int running = userQueue.running.get();
+            if(head == null || running >= maxRunningQueriesPerUser || (head.heavy && !heavyAllowed)) {
+                continue;
+            }
+            final double share = running / userQueue.weight;
+            if(next == null || share < nextShare || (share == nextShare && head.isBefore(nextHead))) {
+                next = userQueue;
+                nextHead = head;
+                nextShare = share;
+            }
+        }
+        if(next == null) {
+            return false;
+        }
+        final Admission admission = next.waiting.peek();
+        if(admission == null || (admission.heavy && !heavyAllowed) || !next.waiting.remove(admission)) {
+            return true;    // changed in the meantime. looks again
+        }
+        admission.acquire();
+        if(!admission.admitted.set(null)) {
+            // gave up waiting
+            admission.free();
+        }
+        return true;
+    }
+
+    private final class UserQueue {
+        private final String user;
+        private final double weight;
+        private final Queue<Admission> waiting = new ConcurrentLinkedQueue<Admission>();
+        private final AtomicInteger running = new AtomicInteger();
+        // number of waiting and running queries. -1 once the queue is dropped
+        private final AtomicInteger references = new AtomicInteger();
+
+        private UserQueue(String user, double weight) {
+            this.user = user;
+            this.weight = weight;
+        }
+
+        private boolean retain() {
+            while(true) {
+                final int count = references.get();
+                if(count < 0) {
+                    return false;
+                }
+                if(references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void unretain() {
+            if(references.decrementAndGet() == 0 && references.compareAndSet(0, -1)) {
+                userQueues.remove(user, this);
+            }
+        }
+    }
+
+    /**
+     * Place of a query in line for execution. Has to be released once the query is done if it was admitted.
+     */
+    class Admission {
+        private final long sequence;
+        private final UserQueue userQueue;
+        private final boolean heavy;
+        private final long predictedMillis;
+        private final SettableFuture<Void> admitted = SettableFuture.create();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Admission(long sequence, UserQueue userQueue, boolean heavy, long predictedMillis) {
+            this.sequence = sequence;
+            this.userQueue = userQueue;
+            this.heavy = heavy;
+            this.predictedMillis = predictedMillis;
+        }
+
+        private boolean isBefore(Admission other) {
+            if(predictedMillis >= 0 && other.predictedMillis >= 0 && predictedMillis != other.predictedMillis) {
+                return predictedMillis < other.predictedMillis;
+            }
+            return sequence < other.sequence;
+        }
+
+        boolean isAdmitted() {
+            return admitted.isDone() && !admitted.isCancelled();
+        }
+
+        /**
+         * Waits for the query to be admitted. Gives up its place in line if it isn't admitted before the timeout.
+         */
+        void await(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+            try {
+                admitted.get(timeout, unit);
+            } catch (TimeoutException e) {
+                if(admitted.cancel(false)) {
+                    giveUp();
+                    throw e;
+                }
+                // admitted right after the timeout
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Gives up the place in line of a waiting query. Waiting for the admission then fails with a
+         * {@link java.util.concurrent.CancellationException}. Has no effect once the query is admitted.
+         */
+        void cancel() {
+            if(admitted.cancel(false)) {
+                giveUp();
+            }
+        }
+
+        /**
+         * Returns the number of queries that were put in line before this one and still wait. 0 once admitted.
+         * Only an estimate as other users' queries may be admitted first according to their share.
+         */
+        int getQueuePosition() {
+            if(admitted.isDone()) {
+                return 0;
+            }
+            int position = 0;
+            for (UserQueue otherQueue : userQueues.values()) {
+                for (Admission other : otherQueue.waiting) {
+                    if(other.sequence < sequence) {
+                        position++;
+                    }
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Frees the slot of an admitted query or gives up the place in line of a waiting one.
+         */
+        void release() {
+            if(!released.compareAndSet(false, true)) {
+                return;
+            }
+            if(admitted.isCancelled()) {
+                return; // gave up waiting already
+            }
+            if(admitted.cancel(false)) {
+                giveUp();
+                return;
+            }
+            free();
+            userQueue.unretain();
+            dispatch();
+        }
+
+        /**
+         * Leaves the line after the admission was cancelled. The queries behind this one may be admissible now,
+         * e.g. when this one was expensive and waited for the heavy query limit.
+         */
+        private void giveUp() {
+            userQueue.waiting.remove(this);
+            userQueue.unretain();
+            dispatch();
+        }
+
+        private void acquire() {
+            runningCount.incrementAndGet();
+            userQueue.running.incrementAndGet();
+            if(heavy) {
+                heavyRunningCount.incrementAndGet();
+            }
+        }
+
+        private void free() {
+            runningCount.decrementAndGet();
+            userQueue.running.decrementAndGet();
+            if(heavy) {
+                heavyRunningCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Longs;
@@ -24,7 +25,13 @@ import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.client.ShardIdWithVersion;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.BinaryResultFormat;
+import com.indeed.imhotep.iql.GroupStatsSorter;
 import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.QueryCostEstimator;
+import com.indeed.imhotep.iql.SharedResults;
+import com.indeed.imhotep.iql.TimeSliceExecutor;
+import com.indeed.imhotep.iql.cache.CacheOutputStream;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import com.indeed.imhotep.metadata.DatasetMetadata;
 import com.indeed.imhotep.metadata.FieldMetadata;
@@ -67,7 +74,6 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -99,9 +105,9 @@ public class QueryServlet {
     private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
     private static final String METADATA_FILE_SUFFIX = ".meta";
     // this can be incremented to invalidate the old cache
-    private static final byte VERSION_FOR_HASHING = 1;
+    private static final byte VERSION_FOR_HASHING = 2;
 
-    private static final Set<String> USED_PARAMS = Sets.newHashSet("view", "sync", "csv", "json", "interactive", "nocache");
+    private static final Set<String> USED_PARAMS = Sets.newHashSet("view", "sync", "async", "csv", "json", "interactive", "nocache");
 
     private final ImhotepClient imhotepClient;
     private final ImhotepClient imhotepInteractiveClient;
@@ -109,7 +115,11 @@ public class QueryServlet {
     private final TopTermsCache topTermsCache;
     private final QueryCache queryCache;
     private final ExecutionManager executionManager;
+    private final QueryCostEstimator queryCostEstimator;
+    private final QueryCostModel queryCostModel;
     private final ExecutorService executorService;
+    private final TimeSliceExecutor timeSliceExecutor;
+    private final GroupStatsSorter groupStatsSorter;
     private final long imhotepLocalTempFileSizeLimit;
     private final long imhotepDaemonTempFileSizeLimit;
 
@@ -120,7 +130,11 @@ public class QueryServlet {
                         TopTermsCache topTermsCache,
                         QueryCache queryCache,
                         ExecutionManager executionManager,
+                        QueryCostEstimator queryCostEstimator,
+                        QueryCostModel queryCostModel,
                         ExecutorService executorService,
+                        TimeSliceExecutor timeSliceExecutor,
+                        GroupStatsSorter groupStatsSorter,
                         Integer rowLimit,
                         Long imhotepLocalTempFileSizeLimit,
                         Long imhotepDaemonTempFileSizeLimit) {
@@ -130,7 +144,11 @@ public class QueryServlet {
         this.topTermsCache = topTermsCache;
         this.queryCache = queryCache;
         this.executionManager = executionManager;
+        this.queryCostEstimator = queryCostEstimator;
+        this.queryCostModel = queryCostModel;
         this.executorService = executorService;
+        this.timeSliceExecutor = timeSliceExecutor;
+        this.groupStatsSorter = groupStatsSorter;
         this.imhotepLocalTempFileSizeLimit = imhotepLocalTempFileSizeLimit;
         this.imhotepDaemonTempFileSizeLimit = imhotepDaemonTempFileSizeLimit;
         EZImhotepSession.GROUP_LIMIT = rowLimit;
@@ -140,8 +158,7 @@ public class QueryServlet {
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp,
                          @Nonnull @RequestParam("q") String query) throws ServletException, IOException {
 
-        final String httpUserName = getUserNameFromRequest(req);
-        final String userName = Strings.nullToEmpty(Strings.isNullOrEmpty(httpUserName) ? req.getParameter("username") : httpUserName);
+        final String userName = getUserName(req);
         long queryStartTimestamp = System.currentTimeMillis();
 
         final boolean json = req.getParameter("json") != null;
@@ -156,15 +173,26 @@ public class QueryServlet {
             if(parsedQuery instanceof SelectStatement) {
                 logQueryToLog4J(query, (Strings.isNullOrEmpty(userName) ? req.getRemoteAddr() : userName), -1);
 
-                final ExecutionManager.QueryTracker queryTracker = executionManager.queryStarted(query, userName);
+                final SelectStatement selectStatement = (SelectStatement) parsedQuery;
+                final SelectRequestArgs selectRequestArgs = new SelectRequestArgs(req, userName);
+                // translated before waiting in line so that the estimated cost can decide how the query is executed
+                IQLQuery iqlQuery = translate(selectStatement, selectRequestArgs, selectRequestArgs.interactive);
+                final QueryCostEstimator.Cost cost = queryCostEstimator.estimate(iqlQuery);
+                final QueryCostModel.Prediction prediction = queryCostModel.predict(selectStatement);
+                final ExecutionManager.QueryTracker queryTracker = executionManager.queryStarted(query, userName,
+                        Strings.nullToEmpty(req.getParameter("client")), cost, prediction);
                 try {
+                    final boolean interactive = queryTracker.isInteractive(selectRequestArgs.interactive);
+                    if(interactive != selectRequestArgs.interactive && imhotepInteractiveClient != imhotepClient) {
+                        iqlQuery = translate(selectStatement, selectRequestArgs, interactive);
+                    }
+
                     queryTracker.acquireLocks(); // blocks and waits if necessary
 
                     queryStartTimestamp = System.currentTimeMillis();   // ignore time spent waiting
 
                     // actually process
-                    final SelectRequestArgs selectRequestArgs = new SelectRequestArgs(req, userName);
-                    selectExecutionStats = handleSelectStatement(selectRequestArgs, resp, (SelectStatement) parsedQuery, queryTracker);
+                    selectExecutionStats = handleSelectStatement(selectRequestArgs, resp, selectStatement, iqlQuery, queryTracker);
                 } finally {
                     // this must be closed. but we may have to defer it to the async thread finishing query processing
                     if(!queryTracker.isAsynchronousRelease()) {
@@ -215,6 +243,15 @@ public class QueryServlet {
         return value;
     }
 
+    /**
+     * Gets the name of the user making the request from the authentication or the 'username' parameter.
+     * @return empty string if there is no user name
+     */
+    static String getUserName(final HttpServletRequest request) {
+        final String httpUserName = getUserNameFromRequest(request);
+        return Strings.nullToEmpty(Strings.isNullOrEmpty(httpUserName) ? request.getParameter("username") : httpUserName);
+    }
+
     /**
      * Gets the user name from the HTTP request if it was provided through Basic authentication.
      * 
@@ -265,17 +302,21 @@ public class QueryServlet {
         }
     }
 
-    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, SelectStatement parsedQuery, final ExecutionManager.QueryTracker queryTracker) throws IOException {
-        // hashing is done before calling translate so only original JParsec parsing is considered
-        final String queryForHashing = parsedQuery.toHashKeyString();
+    private IQLQuery translate(SelectStatement parsedQuery, SelectRequestArgs args, boolean interactive) {
+        return IQLTranslator.translate(parsedQuery, interactive ? imhotepInteractiveClient : imhotepClient,
+                args.imhotepUserName, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit, timeSliceExecutor, topTermsCache);
+    }
 
-        final IQLQuery iqlQuery = IQLTranslator.translate(parsedQuery, args.interactive ? imhotepInteractiveClient : imhotepClient,
-                args.imhotepUserName, metadata, imhotepLocalTempFileSizeLimit, imhotepDaemonTempFileSizeLimit);
+    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, SelectStatement parsedQuery,
+                                                       final IQLQuery iqlQuery, final ExecutionManager.QueryTracker queryTracker) throws IOException {
+        // only original JParsec parsing is considered
+        final String queryForHashing = parsedQuery.toHashKeyString();
 
-        // TODO: handle requested format mismatch: e.g. cached CSV but asked for TSV shouldn't have to rerun the query
-        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList(), args.csv);
-        final String cacheFileName = queryHash + (args.csv ? ".csv" : ".tsv");
-        final boolean isCached = queryCache.isFileCached(cacheFileName);
+        // results are cached in the binary format and rendered in the requested format
+        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList());
+        final String cacheFileName = queryHash + BinaryResultFormat.FILE_SUFFIX;
+        // a false miss only runs the query again so the cache catalog may answer
+        final boolean isCached = queryCache.isFileLikelyCached(cacheFileName);
 
         final QueryMetadata queryMetadata = new QueryMetadata();
 
@@ -286,6 +327,11 @@ public class QueryServlet {
         final String shardList = shardListToString(iqlQuery.getShardVersionList());
         queryMetadata.addItem("IQL-Shard-List", shardList, args.returnShardlist);
 
+        queryMetadata.addItem("IQL-Cost-Estimate", queryTracker.getEstimatedCost());
+        if(queryTracker.getPredictedMillis() >= 0) {
+            queryMetadata.addItem("IQL-Predicted-Millis", queryTracker.getPredictedMillis());
+        }
+
         final List<Interval> timeIntervalsMissingShards= iqlQuery.getTimeIntervalsMissingShards();
         if(timeIntervalsMissingShards.size() > 0) {
             final String missingIntervals = intervalListToString(timeIntervalsMissingShards);
@@ -303,6 +349,26 @@ public class QueryServlet {
         }
         if (!args.asynchronous) {
             ResultServlet.setContentType(resp, args.avoidFileSave, args.csv, args.progress);
+            final SharedResults.Reader sharedRows = queryTracker.getSharedRows();
+            if (sharedRows != null) {
+                // identical query is being executed. streaming its results as they come
+                log.trace("Returning results of the running original execution of " + queryHash);
+                try {
+                    queryMetadata.mergeIn(queryTracker.getSharedMetadata());
+                    queryMetadata.setPendingHeaders(resp);
+                    resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
+                    if(args.progress) {
+                        outputStream.println("event: header");
+                        outputStream.print("data: ");
+                        outputStream.print(queryMetadata.toJSON() + "\n\n");
+                    }
+                    final int rowsWritten = IQLQuery.writeRowsToStream(sharedRows, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
+                    outputStream.close();
+                    return new SelectExecutionStats(isCached, rowsWritten, false, queryHash, 0);
+                } finally {
+                    sharedRows.close();
+                }
+            }
             if (!args.cacheReadDisabled && isCached) {
                 log.trace("Returning cached data in " + cacheFileName);
 
@@ -324,13 +390,16 @@ public class QueryServlet {
                 }
 
                 final InputStream cacheInputStream = queryCache.getInputStream(cacheFileName);
-                final int rowsWritten = IQLQuery.copyStream(cacheInputStream, outputStream, iqlQuery.getRowLimit(), args.progress);
+                final int rowsWritten = IQLQuery.writeRowsToStream(cacheInputStream, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
                 outputStream.close();
                 return new SelectExecutionStats(isCached, rowsWritten, false, queryHash, 0);
             }
             final IQLQuery.WriteResults writeResults;
             final IQLQuery.ExecutionResult executionResult;
+            // once shared it's closed when the query is released
+            final SharedResults resultsToShare = new SharedResults();
             try {
+                queryTracker.setExecutingQuery(iqlQuery);
                 // TODO: should we always get totals? opt out http param?
                 executionResult = iqlQuery.execute(args.progress, outputStream, true);
                 queryMetadata.addItem("IQL-Timings", executionResult.getTimings().replace('\n', '\t'), args.progress);
@@ -346,10 +415,10 @@ public class QueryServlet {
                     outputStream.print(queryMetadata.toJSON() + "\n\n");
                 }
                 final Iterator<GroupStats> groupStats = executionResult.getRows();
-                final int groupingColumns = Math.max(1, (parsedQuery.groupBy == null || parsedQuery.groupBy.groupings == null) ? 1 : parsedQuery.groupBy.groupings.size());
-                final int selectColumns = Math.max(1, (parsedQuery.select == null || parsedQuery.select.getProjections() == null) ? 1 : parsedQuery.select.getProjections().size());
                 if(!args.asynchronous) {
-                    writeResults = iqlQuery.outputResults(groupStats, outputStream, args.csv, args.progress, iqlQuery.getRowLimit(), groupingColumns, selectColumns, args.cacheWriteDisabled);
+                    queryTracker.shareResults(queryMetadata, resultsToShare);
+                    writeResults = iqlQuery.outputResults(groupStats, outputStream, args.csv, args.progress, iqlQuery.getRowLimit(), groupStatsSorter, args.cacheWriteDisabled, resultsToShare);
+                    resultsToShare.finish();
                 } else {
                     writeResults = new IQLQuery.WriteResults(0, null, groupStats, 0);
                 }
@@ -359,14 +428,19 @@ public class QueryServlet {
                         public Void call() throws Exception {
                             try {
                                 try {
-                                    final OutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
-                                    queryMetadata.toStream(metadataCacheStream);
+                                    final CacheOutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
+                                    try {
+                                        queryMetadata.toStream(metadataCacheStream);
+                                    } catch (RuntimeException e) {
+                                        metadataCacheStream.discard();
+                                        throw e;
+                                    }
                                     metadataCacheStream.close();
                                 } catch (Exception e) {
                                     log.warn("Failed to upload metadata cache: " + cacheFileName, e);
                                 }
                                 try {
-                                    uploadResultsToCache(writeResults, cacheFileName, args.csv);
+                                    uploadResultsToCache(writeResults, cacheFileName);
                                 } catch (Exception e) {
                                     log.warn("Failed to upload cache: " + cacheFileName, e);
                                 }
@@ -394,17 +468,23 @@ public class QueryServlet {
             resp.setContentType("application/json");
 
             if (!isCached) {
+                queryTracker.setExecutingQuery(iqlQuery);
                 executorService.submit(new Callable<Void>() {
                     @Override
                     public Void call() throws Exception {
                         try {
                             // TODO: get totals working with the cache
                             final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, false);
-                            final Iterator<GroupStats> groupStats = executionResult.getRows();
-
-                            final OutputStream cacheStream = queryCache.getOutputStream(cacheFileName);
-                            IQLQuery.writeRowsToStream(groupStats, cacheStream, args.csv, Integer.MAX_VALUE, false);
-                            cacheStream.close();    // has to be closed
+                            if(!iqlQuery.requiresSorting()) {
+                                writeResultsToCache(Iterators.limit(executionResult.getRows(), iqlQuery.getRowLimit()), cacheFileName);
+                                return null;
+                            }
+                            final GroupStatsSorter.SortedRows sortedRows = iqlQuery.sortResults(executionResult.getRows(), groupStatsSorter);
+                            try {
+                                writeResultsToCache(sortedRows, cacheFileName);
+                            } finally {
+                                sortedRows.close(); // deletes the sorted runs on disk
+                            }
                             return null;
                         } finally {
                             Closeables2.closeQuietly(iqlQuery, log);
@@ -416,7 +496,7 @@ public class QueryServlet {
             }
 
             final URL baseURL = new URL(args.requestURL);
-            final URL resultsURL = new URL(baseURL, "results/" + cacheFileName);
+            final URL resultsURL = new URL(baseURL, "results/" + queryHash + (args.csv ? ".csv" : ".tsv"));
 
             final ObjectMapper mapper = new ObjectMapper();
             final ObjectNode ret = mapper.createObjectNode();
@@ -481,16 +561,15 @@ public class QueryServlet {
         return sb.toString();
     }
 
-    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String cachedFileName, boolean csv) throws IOException {
+    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String cachedFileName) throws IOException {
         if(writeResults.resultCacheIterator != null) {
             // use the memory cached data
-            final OutputStream cacheStream = queryCache.getOutputStream(cachedFileName);
-            IQLQuery.writeRowsToStream(writeResults.resultCacheIterator, cacheStream, csv, Integer.MAX_VALUE, false);
-            cacheStream.close(); // has to be closed
+            writeResultsToCache(writeResults.resultCacheIterator, cachedFileName);
         } else if(writeResults.unsortedFile != null) {
             // cache overflowed to disk so read from file
             try {
                 queryCache.writeFromFile(cachedFileName, writeResults.unsortedFile);
+                writeIndexToCache(BinaryResultFormat.readIndex(writeResults.unsortedFile), cachedFileName);
             } finally {
                 if(!writeResults.unsortedFile.delete()) {
                     log.info("Failed to delete: " + writeResults.unsortedFile.getPath());
@@ -501,6 +580,24 @@ public class QueryServlet {
         }
     }
 
+    private void writeResultsToCache(Iterator<GroupStats> rows, String cachedFileName) throws IOException {
+        // the stream is closed which commits it or discarded if the rows fail to be written
+        final BinaryResultFormat.Index index = BinaryResultFormat.write(rows, queryCache.getOutputStream(cachedFileName));
+        writeIndexToCache(index, cachedFileName);
+    }
+
+    /**
+     * Stores the row offset index next to the results so that /results can serve pages of them.
+     * Results without an index are still readable from the start.
+     */
+    private void writeIndexToCache(BinaryResultFormat.Index index, String cachedFileName) {
+        try {
+            index.write(queryCache.getOutputStream(cachedFileName + BinaryResultFormat.INDEX_FILE_SUFFIX));
+        } catch (Exception e) {
+            log.warn("Failed to upload the index of cache: " + cachedFileName, e);
+        }
+    }
+
     private static class SelectExecutionStats {
         public final boolean cached;
         public final int rowsWritten;
@@ -626,7 +723,7 @@ public class QueryServlet {
     /**
      * Produces a Base64 encoded SHA-1 hash of the query and the list of shard names/versions which has to be sorted.
      */
-    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards, boolean csv) {
+    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards) {
         final MessageDigest sha1;
         try {
             sha1 = MessageDigest.getInstance("SHA-1");
@@ -641,7 +738,6 @@ public class QueryServlet {
             for(ShardIdWithVersion shard : shards) {
                 sha1.update(shard.getShardId().getBytes(UTF8_CHARSET));
                 sha1.update(Longs.toByteArray(shard.getVersion()));
-                sha1.update(csv ? (byte)1 : 0);
             }
         }
         sha1.update(VERSION_FOR_HASHING);
@@ -740,6 +836,7 @@ public class QueryServlet {
         logEntry.setProperty("statement", queryType);
 
         dataLog.info(logEntry);
+        queryCostModel.observe(logEntry);
     }
 
     private String logStatementData(IQLStatement parsedQuery,
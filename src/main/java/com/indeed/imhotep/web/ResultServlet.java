@@ -13,15 +13,18 @@
  */
  package com.indeed.imhotep.web;
 
+import com.indeed.imhotep.iql.BinaryResultFormat;
 import com.indeed.imhotep.iql.IQLQuery;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,6 +36,7 @@ import java.io.OutputStream;
 @Controller
 public class ResultServlet {
     private static final Logger log = Logger.getLogger(ResultServlet.class);
+    private static final String RANGE_UNIT = "rows";
     private final QueryCache queryCache;
 
     @Autowired
@@ -40,27 +44,128 @@ public class ResultServlet {
         this.queryCache = queryCache;
     }
 
+    /**
+     * Serves cached results rendered in the format of the requested extension.
+     * A page of the rows can be requested with the offset and limit parameters or with a range of rows
+     * e.g. "Range: rows=1000-1999" which is answered with the total row count in Content-Range.
+     * Results that have a row offset index start reading at the block of the first requested row.
+     */
     @RequestMapping("/results/{filename:.+}")
     protected void doGet(final HttpServletResponse resp,
                          @PathVariable("filename") String filename,
                          @RequestParam(required = false) String view,
+                         @RequestParam(required = false) Long offset,
+                         @RequestParam(required = false) Integer limit,
+                         @RequestHeader(value = "Range", required = false) String range,
                          OutputStream outputStream) throws IOException {
         resp.setHeader("Access-Control-Allow-Origin", "*");
         final boolean csv = filename.endsWith(".csv");
         final boolean avoidFileSave = view != null;
 
-        if (!queryCache.isFileCached(filename)) {
+        // results are cached once in the binary format and rendered in the format of the requested extension
+        final int extensionStart = filename.lastIndexOf('.');
+        final String extension = extensionStart >= 0 ? filename.substring(extensionStart) : "";
+        if (!extension.equals(".csv") && !extension.equals(".tsv")) {
+            resp.sendError(404);
+            return;
+        }
+        final String cacheFileName = filename.substring(0, extensionStart) + BinaryResultFormat.FILE_SUFFIX;
+        if (!queryCache.isFileCached(cacheFileName)) {
             resp.sendError(404);
             return;
         }
 
+        long firstRow = offset != null ? Math.max(0, offset) : 0;
+        int rowLimit = limit != null ? Math.max(0, limit) : Integer.MAX_VALUE;
+        final BinaryResultFormat.Index index = loadIndex(cacheFileName);
+        if (index != null) {
+            resp.setHeader("Accept-Ranges", RANGE_UNIT);
+            // other ranges (e.g. bytes) are ignored and the whole results are returned
+            final long[] rowRange = range != null ? parseRowRange(range, index.getTotalRows()) : null;
+            if (rowRange != null) {
+                if (rowRange[0] > rowRange[1]) {
+                    resp.setHeader("Content-Range", RANGE_UNIT + " */" + index.getTotalRows());
+                    resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                firstRow = rowRange[0];
+                rowLimit = (int) Math.min(Integer.MAX_VALUE, rowRange[1] - rowRange[0] + 1);
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", RANGE_UNIT + " " + rowRange[0] + "-" + rowRange[1] + "/" + index.getTotalRows());
+            }
+        }
+
         setContentType(resp, avoidFileSave, csv, false);
-        final InputStream cacheInputStream = queryCache.getInputStream(filename);
-        IQLQuery.copyStream(cacheInputStream, outputStream, Integer.MAX_VALUE, false);
+        if (rowLimit > 0) {
+            final InputStream cacheInputStream = queryCache.getInputStream(cacheFileName);
+            final BinaryResultFormat.Reader rows = index != null ?
+                    BinaryResultFormat.read(cacheInputStream, index, firstRow) : BinaryResultFormat.read(cacheInputStream);
+            try {
+                // results cached without an index have to be read from the start
+                for (long skipped = 0; index == null && skipped < firstRow && rows.hasNext(); skipped++) {
+                    rows.next();
+                }
+                IQLQuery.writeRowsToStream(rows, outputStream, csv, rowLimit, false);
+            } finally {
+                rows.close();
+            }
+        }
         outputStream.close();
 
     }
 
+    @Nullable
+    private BinaryResultFormat.Index loadIndex(String cacheFileName) {
+        final String indexFileName = cacheFileName + BinaryResultFormat.INDEX_FILE_SUFFIX;
+        try {
+            if (!queryCache.isFileCached(indexFileName)) {
+                return null;
+            }
+            return BinaryResultFormat.Index.read(queryCache.getInputStream(indexFileName));
+        } catch (Exception e) {
+            log.warn("Failed to load the index of " + cacheFileName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Parses a single range of rows: "rows=first-last", "rows=first-" or "rows=-count" for the last count rows.
+     * Returns null if the header is not a single range of rows. The returned last row is capped at the last row
+     * of the results and first is greater than last if the range can't be satisfied.
+     */
+    @Nullable
+    static long[] parseRowRange(String header, long totalRows) {
+        final String prefix = RANGE_UNIT + "=";
+        if (!header.startsWith(prefix)) {
+            return null;
+        }
+        final String spec = header.substring(prefix.length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            final String firstString = spec.substring(0, dash).trim();
+            final String lastString = spec.substring(dash + 1).trim();
+            if (firstString.isEmpty()) {
+                final long count = Long.parseLong(lastString);
+                if (count <= 0) {
+                    return new long[] {totalRows, totalRows - 1};
+                }
+                return new long[] {Math.max(0, totalRows - count), totalRows - 1};
+            }
+            final long first = Long.parseLong(firstString);
+            final long last = lastString.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastString);
+            if (first < 0 || last < first) {
+                return null;
+            }
+            // an open range starting past the end can't be satisfied either
+            return new long[] {first, Math.min(last, totalRows - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     static void setContentType(HttpServletResponse resp, boolean avoidFileSave, boolean csv, boolean progress) {
         if(avoidFileSave) {
             resp.setContentType("text/plain");
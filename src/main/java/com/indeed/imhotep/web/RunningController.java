@@ -13,14 +13,24 @@
  */
  package com.indeed.imhotep.web;
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -29,10 +39,14 @@ import java.util.List;
 @Controller
 public class RunningController {
     private final ExecutionManager executionManager;
+    // users that can cancel the queries of anyone
+    private final Set<String> adminUsers;
 
     @Autowired
-    public RunningController(ExecutionManager executionManager) {
+    public RunningController(ExecutionManager executionManager,
+                             @Value("${query.cancel.admin.users:}") String adminUsers) {
         this.executionManager = executionManager;
+        this.adminUsers = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(adminUsers));
     }
 
     @RequestMapping("/running")
@@ -48,6 +62,54 @@ public class RunningController {
         return new State(queries);
     }
 
+    /**
+     * Cancels the running or waiting query with the id listed by /running.
+     * Only the user that ran the query or an admin can cancel it.
+     */
+    @RequestMapping(value = "/cancel", method = RequestMethod.POST)
+    @ResponseBody
+    public CancelResult cancel(@RequestParam("id") long id, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final ExecutionManager.QueryTracker query = executionManager.getRunningQuery(id);
+        if(query == null) {
+            return new CancelResult(id, false);
+        }
+        final String userName = QueryServlet.getUserName(req);
+        if(!canCancel(userName, query)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Only the user that ran the query or an admin can cancel it");
+            return null;
+        }
+        query.cancel();
+        return new CancelResult(id, true);
+    }
+
+    private boolean canCancel(String userName, ExecutionManager.QueryTracker query) {
+        if(Strings.isNullOrEmpty(userName)) {
+            return false;   // anonymous queries can only be cancelled by an admin
+        }
+        return adminUsers.contains(userName) || userName.equals(query.getUsername());
+    }
+
+    public static class CancelResult {
+        private final long id;
+        private final boolean cancelled;
+
+        public CancelResult(long id, boolean cancelled) {
+            this.id = id;
+            this.cancelled = cancelled;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns false if no query with the id was running.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
     public static class State {
         private List<ExecutionManager.QueryTracker> queries;
 
@@ -54,6 +54,7 @@ public class SplitterServlet {
             json.put("where", parts.where);
             json.put("groupBy", parts.groupBy);
             json.put("select", parts.select);
+            json.put("orderBy", parts.orderBy);
             json.put("limit", parts.limit);
 
             FromClause fromClause = null;
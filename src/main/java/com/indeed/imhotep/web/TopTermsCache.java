@@ -38,7 +38,7 @@ import java.util.Map;
 
 public class TopTermsCache {
     private static final Logger log = Logger.getLogger(TopTermsCache.class);
-    private static final int TERMS_TO_CACHE = 100;
+    public static final int TERMS_TO_CACHE = 100;
     private static final int DAYS_DELAY = 2;
     private static final String CACHE_FILE_NAME = "toptermscache.bin";
     private static final int CACHE_UPDATE_FREQUENCY = 24 * 60 * 60 * 1000; // 24 hours;
@@ -22,6 +22,10 @@ import com.indeed.imhotep.web.ImhotepClientPinger;
 import com.indeed.util.core.threads.NamedThreadFactory;
 import com.indeed.imhotep.client.Host;
 import com.indeed.imhotep.client.ImhotepClient;
+import com.indeed.imhotep.iql.GroupStatsSorter;
+import com.indeed.imhotep.iql.QueryCostEstimator;
+import com.indeed.imhotep.iql.TimeSliceExecutor;
+import com.indeed.imhotep.iql.cache.PartialResultCache;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import com.indeed.imhotep.iql.cache.QueryCacheFactory;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
@@ -70,6 +74,21 @@ public class SpringConfiguration extends WebMvcConfigurerAdapter {
         );
     }
 
+    @Bean(destroyMethod = "close")
+    public TimeSliceExecutor timeSliceExecutor() throws PropertyException {
+        return new TimeSliceExecutor(
+                env.getProperty("query.timeslice.threads", Integer.class, 0),
+                env.getProperty("query.timeslice.max.slices", Integer.class, 8),
+                new PartialResultCache(queryCache(), env.getProperty("query.cache.partial.enabled", Boolean.class, true)));
+    }
+
+    @Bean(destroyMethod = "close")
+    public GroupStatsSorter groupStatsSorter() {
+        return new GroupStatsSorter(
+                mbToBytes(env.getProperty("query.sort.memory.mb", Long.class, 256L)),
+                env.getProperty("query.sort.threads", Integer.class, 2));
+    }
+
     @Bean 
     QueryCache queryCache() throws PropertyException {
         return QueryCacheFactory.newQueryCache(env);
@@ -144,6 +163,12 @@ public class SpringConfiguration extends WebMvcConfigurerAdapter {
                 IQLEnv.fromSpring(env) == IQLEnv.DEVELOPER);
     }
 
+    @Bean
+    public QueryCostEstimator queryCostEstimator() {
+        return new QueryCostEstimator(metadataCache(), topTermsCache(),
+                env.getProperty("query.cost.default.field.terms", Long.class, 10000L));
+    }
+
     @Bean
     public Integer rowLimit() {
         return env.getProperty("row.limit", Integer.class, 1000000);
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.api.ImhotepSession;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.indeed.imhotep.ez.EZImhotepSession.add;
+import static com.indeed.imhotep.ez.EZImhotepSession.constant;
+import static com.indeed.imhotep.ez.EZImhotepSession.intField;
+import static com.indeed.imhotep.ez.EZImhotepSession.mult;
+import static com.indeed.imhotep.ez.Stats.Stat;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEZImhotepSession {
+    private static final long CLICKS = 3;
+    private static final long IMPRESSIONS = 5;
+
+    // values of the simulated stat stack of a single document in group 1, bottom first
+    private final List<Long> stack = Lists.newArrayList();
+    private final List<String> pushes = Lists.newArrayList();
+    private ImhotepSession session;
+    private EZImhotepSession ezSession;
+
+    @Before
+    public void setUp() throws Exception {
+        session = createMock(ImhotepSession.class);
+        expect(session.pushStat(anyObject(String.class))).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() throws Throwable {
+                final String stat = (String) getCurrentArguments()[0];
+                pushes.add(stat);
+                evaluate(stat);
+                return stack.size();
+            }
+        }).anyTimes();
+        expect(session.popStat()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() throws Throwable {
+                stack.remove(stack.size() - 1);
+                return stack.size();
+            }
+        }).anyTimes();
+        expect(session.getGroupStats(anyInt())).andAnswer(new IAnswer<long[]>() {
+            @Override
+            public long[] answer() throws Throwable {
+                final int depth = (Integer) getCurrentArguments()[0];
+                return new long[] {0, stack.get(depth)};
+            }
+        }).anyTimes();
+        replay(session);
+        ezSession = new EZImhotepSession(session);
+    }
+
+    private void evaluate(String stat) {
+        if ("clicks".equals(stat)) {
+            stack.add(CLICKS);
+        } else if ("impressions".equals(stat)) {
+            stack.add(IMPRESSIONS);
+        } else if ("+".equals(stat)) {
+            final long right = stack.remove(stack.size() - 1);
+            final long left = stack.remove(stack.size() - 1);
+            stack.add(left + right);
+        } else if ("*".equals(stat)) {
+            final long right = stack.remove(stack.size() - 1);
+            final long left = stack.remove(stack.size() - 1);
+            stack.add(left * right);
+        } else if ("cached()".equals(stat)) {
+            // the value stays on the top of the stack
+        } else if (stat.startsWith("ref ")) {
+            final int offset = Integer.parseInt(stat.substring("ref ".length()));
+            stack.add(stack.get(stack.size() - 1 - offset));
+        } else {
+            stack.add(Long.parseLong(stat));
+        }
+    }
+
+    private static double value(StatReference reference) {
+        final double[] stats = reference.getGroupStats();
+        assertEquals(2, stats.length);
+        return stats[1];
+    }
+
+    private int count(String stat) {
+        return Collections.frequency(pushes, stat);
+    }
+
+    private static Stat clicksPlusImpressions() {
+        return add(intField("clicks"), intField("impressions"));
+    }
+
+    @Test
+    public void testSharedExpressionIsPushedOnce() throws Exception {
+        final List<StatReference> references = ezSession.pushStats(Lists.newArrayList(
+                mult(clicksPlusImpressions(), constant(2)),
+                add(clicksPlusImpressions(), constant(1))));
+
+        // references are relative to the top of the stack at the time they are pushed
+        assertEquals(Arrays.asList(
+                "clicks", "impressions", "+", "cached()",
+                "ref 0", "2", "*",
+                "ref 1", "1", "+"), pushes);
+        // the shared expression and one slot per stat
+        assertEquals(3, ezSession.getStackDepth());
+
+        assertEquals(16, value(references.get(0)), 0);
+        assertEquals(9, value(references.get(1)), 0);
+        verify(session);
+    }
+
+    @Test
+    public void testReferencesAfterPop() throws Exception {
+        final List<StatReference> references = ezSession.pushStats(Lists.newArrayList(
+                mult(clicksPlusImpressions(), constant(2)),
+                add(clicksPlusImpressions(), constant(1))));
+        final StatReference first = references.get(0);
+        final StatReference second = references.get(1);
+
+        assertTrue(second == ezSession.popStat());
+        assertFalse(second.isValid());
+        assertEquals(2, ezSession.getStackDepth());
+        assertEquals(16, value(first), 0);
+
+        // the shared expression is still on the stack with the first stat so it isn't pushed again
+        final StatReference third = ezSession.pushStatGeneric(mult(clicksPlusImpressions(), constant(3)));
+        assertEquals(1, count("clicks"));
+        assertEquals(3, ezSession.getStackDepth());
+        assertEquals(24, value(third), 0);
+        assertEquals(16, value(first), 0);
+
+        assertTrue(third == ezSession.popStat());
+        assertTrue(first == ezSession.popStat());
+        assertEquals(0, ezSession.getStackDepth());
+
+        // the shared expression went with the first stat so a new push computes it again
+        final StatReference fourth = ezSession.pushStatGeneric(mult(clicksPlusImpressions(), constant(2)));
+        assertEquals(2, count("clicks"));
+        assertEquals(1, ezSession.getStackDepth());
+        assertEquals(16, value(fourth), 0);
+        ezSession.popStat();
+        assertEquals(0, ezSession.getStackDepth());
+        verify(session);
+    }
+
+    @Test
+    public void testIdenticalStatsShareSlot() throws Exception {
+        final StatReference first = ezSession.pushStatGeneric(intField("clicks"));
+        final StatReference second = ezSession.pushStatGeneric(intField("clicks"));
+
+        assertEquals(1, count("clicks"));
+        assertEquals(1, ezSession.getStackDepth());
+        assertEquals(CLICKS, value(first), 0);
+        assertEquals(CLICKS, value(second), 0);
+
+        ezSession.popStat();
+        assertEquals(1, ezSession.getStackDepth());
+        assertEquals(CLICKS, value(first), 0);
+        ezSession.popStat();
+        assertEquals(0, ezSession.getStackDepth());
+        verify(session);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestGroupKey {
+    private static GroupKey<Object> key(Object... elements) {
+        GroupKey<Object> key = GroupKey.empty();
+        for (Object element : elements) {
+            key = key.add(element);
+        }
+        return key;
+    }
+
+    private static void assertEqualKeys(GroupKey<?> expected, GroupKey<?> actual) {
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+    }
+
+    private static void assertDifferentKeys(GroupKey<?> key1, GroupKey<?> key2) {
+        assertFalse(key1.equals(key2));
+        assertFalse(key2.equals(key1));
+    }
+
+    @Test
+    public void testEqualityAcrossParentChains() {
+        final GroupKey<Object> parent = key("us", "en");
+        // same parent key instance
+        assertEqualKeys(parent.add(1L), parent.add(1L));
+        // parents built separately
+        assertEqualKeys(parent.add(1L), key("us", "en", 1L));
+        assertEqualKeys(key("us").add("en").add(1L), key("us", "en").add(1L));
+        assertDifferentKeys(parent.add(1L), parent.add(2L));
+        assertDifferentKeys(parent.add(1L), key("us", "fr", 1L));
+        assertDifferentKeys(parent.add(1L), key("ca", "en", 1L));
+    }
+
+    @Test
+    public void testDifferentSizes() {
+        assertDifferentKeys(key("us"), key("us", "en"));
+        assertDifferentKeys(key(), key("us"));
+        assertEqualKeys(key(), GroupKey.empty());
+        assertEquals(0, key().size());
+        assertEquals(3, key("us", "en", 1L).size());
+    }
+
+    @Test
+    public void testIntAndStringTerms() {
+        assertDifferentKeys(key(5L), key("5"));
+        assertDifferentKeys(key("us", 5L), key("us", "5"));
+        assertDifferentKeys(key(5L, "us"), key("5", "us"));
+        assertEqualKeys(key("us", 5L), key("us", Long.valueOf(5)));
+        // the empty string of missing int terms
+        assertDifferentKeys(key(0L), key(""));
+    }
+
+    @Test
+    public void testHashCollision() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(key("Aa").hashCode(), key("BB").hashCode());
+        assertDifferentKeys(key("Aa"), key("BB"));
+        assertDifferentKeys(key("Aa", "x"), key("BB", "x"));
+    }
+
+    @Test
+    public void testNullElement() {
+        assertEqualKeys(key("us", null), key("us", null));
+        assertDifferentKeys(key("us", null), key("us", ""));
+        assertEquals(Lists.newArrayList("us", null), Lists.newArrayList(key("us", null)));
+    }
+
+    @Test
+    public void testElements() {
+        final GroupKey<Object> key = key("us", "en", 1L);
+        assertEquals(Lists.<Object>newArrayList("us", "en", 1L), Lists.newArrayList(key));
+        assertEquals("us", key.head());
+        assertEqualKeys(key("en", 1L), key.tail());
+        assertEquals("[us, en, 1]", key.toString());
+        assertTrue(key().isEmpty());
+    }
+
+    @Test
+    public void testHashMapKeys() {
+        final Map<GroupKey<Object>, Integer> map = Maps.newHashMap();
+        map.put(key("us", 1L), 1);
+        map.put(key("us", "1"), 2);
+        map.put(key("us").add(1L), 3);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get(key("us", 1L)));
+        assertEquals(Integer.valueOf(2), map.get(key("us", "1")));
+    }
+
+    @Test
+    public void testGroupKeyTable() {
+        final GroupKeyTable table = new GroupKeyTable(2);
+        assertTrue(table.isEmpty());
+        assertNull(table.put(1, key("a")));
+        assertNull(table.put(3, key("c")));
+        // grows past the expected groups
+        assertNull(table.put(100, key("z")));
+        assertEquals(3, table.size());
+        assertEquals(key("a"), table.get(1));
+        assertNull(table.get(2));
+        assertNull(table.get(1000));
+        assertNull(table.get(0));
+        assertNull(table.get(-1));
+        assertNull(table.get("1"));
+        assertTrue(table.containsKey(3));
+        assertFalse(table.containsKey(2));
+
+        // replacing doesn't change the size
+        final GroupKey<Object> replaced = key("c");
+        assertEquals(replaced, table.put(3, key("c2")));
+        assertEquals(3, table.size());
+
+        // iterates in the order of the group numbers
+        final List<Integer> groups = Lists.newArrayList(table.keySet());
+        assertEquals(Lists.newArrayList(1, 3, 100), groups);
+        final Map<Integer, GroupKey> expected = Maps.newHashMap();
+        expected.put(1, key("a"));
+        expected.put(3, key("c2"));
+        expected.put(100, key("z"));
+        assertEquals(expected, table);
+        assertEquals(table, expected);
+
+        assertEquals(key("a"), table.remove(1));
+        assertNull(table.remove(1));
+        assertNull(table.remove("3"));
+        assertEquals(2, table.size());
+        assertEquals(Lists.newArrayList(3, 100), Lists.newArrayList(table.keySet()));
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertFalse(table.entrySet().iterator().hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGroupKeyTableGroupZero() {
+        new GroupKeyTable().put(0, key("a"));
+    }
+
+    @Test
+    public void testGroupKeyTableWithSharedParent() {
+        final GroupKeyTable table = new GroupKeyTable();
+        final GroupKey<Object> parent = key("us");
+        table.put(1, parent.add("en"));
+        table.put(2, parent.add("fr"));
+        assertEquals(key("us", "en"), table.get(1));
+        assertEquals(key("us", "fr"), table.get(2));
+    }
+}
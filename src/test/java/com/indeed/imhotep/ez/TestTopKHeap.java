@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTopKHeap {
+    /**
+     * Offers the terms 0, 1, 2... with the scores and returns the kept terms from the best to the worst.
+     */
+    private static long[] topK(int k, boolean isBottom, double... scores) {
+        final TopKHeap heap = new TopKHeap(k, isBottom, 1);
+        for (int term = 0; term < scores.length; term++) {
+            final int slot = heap.offer(scores[term]);
+            if(slot >= 0) {
+                heap.setIntTerm(slot, term);
+                heap.setStat(slot, 0, scores[term]);
+            }
+        }
+        final int[] slots = heap.drainBestFirst();
+        final long[] terms = new long[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            terms[i] = heap.getIntTerm(slots[i]);
+            final double score = scores[(int) terms[i]];
+            assertEquals(score, heap.getStats(slots[i])[0], 0);
+        }
+        assertEquals(0, heap.size());
+        return terms;
+    }
+
+    private static void assertTerms(long[] expected, long[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    private static long[] sorted(long[] terms) {
+        Arrays.sort(terms);
+        return terms;
+    }
+
+    @Test
+    public void testTopK() {
+        assertTerms(new long[] {3, 1, 4}, topK(3, false, 5, 9, 2, 10, 7, 1));
+    }
+
+    @Test
+    public void testBottomK() {
+        assertTerms(new long[] {5, 2, 0}, topK(3, true, 5, 9, 2, 10, 7, 1));
+    }
+
+    @Test
+    public void testNaNRanksLast() {
+        assertTerms(new long[] {1, 3}, topK(2, false, Double.NaN, 1, Double.NaN, 0));
+        assertTerms(new long[] {3, 1}, topK(2, true, Double.NaN, 1, Double.NaN, 0));
+        // kept only when there aren't enough other terms
+        assertTerms(new long[] {1, 0}, topK(2, false, Double.NaN, 1));
+        assertTerms(new long[] {1, 0}, topK(2, true, Double.NaN, 1));
+    }
+
+    @Test
+    public void testTies() {
+        // a term tied with the worst kept one doesn't replace it
+        assertTerms(new long[] {0, 1}, sorted(topK(2, false, 5, 5, 5)));
+        assertTerms(new long[] {0, 1}, sorted(topK(2, true, 5, 5, 5)));
+        // which of the tied terms is dropped for a better one is not defined
+        final long[] top = topK(2, false, 5, 5, 9, 5);
+        assertEquals(2, top[0]);
+        assertTrue(top[1] == 0 || top[1] == 1);
+        final long[] bottom = topK(2, true, 5, 5, 1, 5);
+        assertEquals(2, bottom[0]);
+        assertTrue(bottom[1] == 0 || bottom[1] == 1);
+    }
+
+    @Test
+    public void testKLargerThanTerms() {
+        assertTerms(new long[] {1, 2, 0}, topK(100, false, 1, 3, 2));
+        assertTerms(new long[0], topK(100, false));
+        // grows past the initial capacity
+        final double[] scores = new double[1000];
+        final long[] expected = new long[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = i;
+            expected[i] = scores.length - 1 - i;
+        }
+        assertTerms(expected, topK(Integer.MAX_VALUE, false, scores));
+    }
+
+    @Test
+    public void testZeroK() {
+        assertTerms(new long[0], topK(0, false, 1, 2));
+    }
+
+    @Test
+    public void testStats() {
+        final TopKHeap heap = new TopKHeap(2, false, 3);
+        for (int term = 0; term < 5; term++) {
+            final int slot = heap.offer(term);
+            if(slot >= 0) {
+                heap.setStringTerm(slot, "term" + term);
+                for (int stat = 0; stat < 3; stat++) {
+                    heap.setStat(slot, stat, term * 10 + stat);
+                }
+            }
+        }
+        final int[] slots = heap.drainBestFirst();
+        assertEquals("term4", heap.getStringTerm(slots[0]));
+        assertArrayEquals(new double[] {40, 41, 42}, heap.getStats(slots[0]), 0);
+        assertEquals("term3", heap.getStringTerm(slots[1]));
+        assertArrayEquals(new double[] {30, 31, 32}, heap.getStats(slots[1]), 0);
+    }
+}
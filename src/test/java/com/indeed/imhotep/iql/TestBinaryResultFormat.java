@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBinaryResultFormat {
+    static List<GroupStats> createRows(int count) {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            GroupKey<Object> key = GroupKey.empty();
+            key = key.add("term" + (i % 100)).add((long) i);
+            final double[] stats = {i, i * 0.5, i % 10 == 0 ? Double.NaN : -i};
+            rows.add(new GroupStats(key, stats));
+        }
+        return rows;
+    }
+
+    static byte[] write(List<GroupStats> rows) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryResultFormat.write(rows.iterator(), out);
+        return out.toByteArray();
+    }
+
+    static void assertRows(List<GroupStats> expected, BinaryResultFormat.Reader reader) {
+        final List<GroupStats> actual = Lists.newArrayList(reader);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).groupKey, actual.get(i).groupKey);
+            assertArrayEquals(expected.get(i).stats, actual.get(i).stats, 0);
+        }
+    }
+
+    private static void assertRoundTrip(List<GroupStats> rows) throws IOException {
+        final BinaryResultFormat.Reader reader = BinaryResultFormat.read(new ByteArrayInputStream(write(rows)));
+        assertRows(rows, reader);
+        assertEquals(rows.size(), reader.getTotalRows());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final List<GroupStats> rows = createRows(3 * BinaryResultFormat.BLOCK_SIZE + 17);
+        // rows with a different shape start a new block
+        rows.add(100, new GroupStats(GroupKey.<Object>singleton("single"), new double[] {1}));
+        rows.add(101, new GroupStats(GroupKey.empty(), new double[0]));
+        assertRoundTrip(rows);
+    }
+
+    @Test
+    public void testBlockBoundary() throws IOException {
+        assertRoundTrip(createRows(1));
+        assertRoundTrip(createRows(BinaryResultFormat.BLOCK_SIZE - 1));
+        assertRoundTrip(createRows(BinaryResultFormat.BLOCK_SIZE));
+        assertRoundTrip(createRows(BinaryResultFormat.BLOCK_SIZE + 1));
+        assertRoundTrip(createRows(2 * BinaryResultFormat.BLOCK_SIZE));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final byte[] bytes = write(Collections.<GroupStats>emptyList());
+        final BinaryResultFormat.Reader reader = BinaryResultFormat.read(new ByteArrayInputStream(bytes));
+        assertFalse(reader.hasNext());
+        assertEquals(0, reader.getTotalRows());
+    }
+
+    @Test
+    public void testMissingFooter() throws IOException {
+        final byte[] bytes = write(createRows(BinaryResultFormat.BLOCK_SIZE + 1));
+        // footerOffset:long MAGIC
+        assertTruncated(Arrays.copyOf(bytes, bytes.length - 12));
+        assertTruncated(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    @Test
+    public void testAbortedWrite() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryResultFormat.Writer writer = new BinaryResultFormat.Writer(out);
+        for (GroupStats row : createRows(3 * BinaryResultFormat.BLOCK_SIZE)) {
+            writer.add(row);
+        }
+        writer.abort();
+        assertTruncated(out.toByteArray());
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        final List<GroupStats> rows = createRows(2 * BinaryResultFormat.BLOCK_SIZE + 5);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryResultFormat.Index index = BinaryResultFormat.write(rows.iterator(), out);
+        assertEquals(rows.size(), index.getTotalRows());
+
+        final ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+        index.write(indexOut);
+        final BinaryResultFormat.Index readIndex = BinaryResultFormat.Index.read(new ByteArrayInputStream(indexOut.toByteArray()));
+        assertEquals(rows.size(), readIndex.getTotalRows());
+
+        // the footer of the results has the same index
+        final File file = File.createTempFile("iql_test", BinaryResultFormat.FILE_SUFFIX);
+        try {
+            Files.write(out.toByteArray(), file);
+            final BinaryResultFormat.Index footerIndex = BinaryResultFormat.readIndex(file);
+            assertEquals(rows.size(), footerIndex.getTotalRows());
+            assertSeek(rows, out.toByteArray(), footerIndex, BinaryResultFormat.BLOCK_SIZE + 3);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndexOfTruncatedFile() throws IOException {
+        final byte[] bytes = write(createRows(10));
+        final File file = File.createTempFile("iql_test", BinaryResultFormat.FILE_SUFFIX);
+        try {
+            Files.write(Arrays.copyOf(bytes, bytes.length - 1), file);
+            BinaryResultFormat.readIndex(file);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        final List<GroupStats> rows = createRows(3 * BinaryResultFormat.BLOCK_SIZE + 10);
+        // a short block in the middle
+        rows.add(BinaryResultFormat.BLOCK_SIZE + 7, new GroupStats(GroupKey.<Object>singleton("single"), new double[] {1}));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryResultFormat.Index index = BinaryResultFormat.write(rows.iterator(), out);
+        final byte[] bytes = out.toByteArray();
+        final int blockSize = BinaryResultFormat.BLOCK_SIZE;
+        for (long firstRow : new long[] {-1, 0, 1, blockSize - 1, blockSize, blockSize + 7, blockSize + 8,
+                2 * blockSize + 5, rows.size() - 1, rows.size(), rows.size() + 10}) {
+            assertSeek(rows, bytes, index, firstRow);
+        }
+    }
+
+    @Test
+    public void testSeekEmpty() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryResultFormat.Index index = BinaryResultFormat.write(Collections.<GroupStats>emptyList().iterator(), out);
+        assertEquals(0, index.getTotalRows());
+        assertSeek(Collections.<GroupStats>emptyList(), out.toByteArray(), index, 0);
+        assertSeek(Collections.<GroupStats>emptyList(), out.toByteArray(), index, 1);
+    }
+
+    private static void assertSeek(List<GroupStats> rows, byte[] bytes, BinaryResultFormat.Index index, long firstRow) throws IOException {
+        final BinaryResultFormat.Reader reader = BinaryResultFormat.read(new ByteArrayInputStream(bytes), index, firstRow);
+        final int from = (int) Math.min(rows.size(), Math.max(0, firstRow));
+        assertRows(rows.subList(from, rows.size()), reader);
+        assertEquals(rows.size(), reader.getTotalRows());
+    }
+
+    private static void assertTruncated(byte[] bytes) throws IOException {
+        final BinaryResultFormat.Reader reader = BinaryResultFormat.read(new ByteArrayInputStream(bytes));
+        try {
+            while(reader.hasNext()) {
+                reader.next();
+            }
+            fail("Read results without a footer");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestConditionPlanner {
+    private final ConditionPlanner planner = new ConditionPlanner(null, "dataset");
+
+    private List<Condition> plan(Condition... conditions) {
+        final List<Condition> planned = Lists.newArrayList(conditions);
+        planner.plan(planned);
+        return planned;
+    }
+
+    private static void assertRange(Condition condition, long min, long max, boolean negation) {
+        assertTrue(condition instanceof MetricCondition);
+        final MetricCondition metricCondition = (MetricCondition) condition;
+        assertEquals(min, metricCondition.getMin());
+        assertEquals(max, metricCondition.getMax());
+        assertEquals(negation, metricCondition.isNegation());
+    }
+
+    @Test
+    public void testIntersectsRangesOfTheSameMetric() {
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.intField("a"), 0, 10, false),
+                new MetricCondition(EZImhotepSession.intField("a"), 5, 20, false));
+        assertEquals(1, planned.size());
+        assertRange(planned.get(0), 5, 10, false);
+    }
+
+    @Test
+    public void testKeepsDisjointRanges() {
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.intField("a"), 0, 5, false),
+                new MetricCondition(EZImhotepSession.intField("a"), 10, 20, false));
+        assertEquals(2, planned.size());
+    }
+
+    @Test
+    public void testUnitesContiguousNegatedRanges() {
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.intField("a"), 0, 5, true),
+                new MetricCondition(EZImhotepSession.intField("a"), 6, 10, true));
+        assertEquals(1, planned.size());
+        assertRange(planned.get(0), 0, 10, true);
+    }
+
+    @Test
+    public void testKeepsSeparatedNegatedRanges() {
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.intField("a"), 0, 5, true),
+                new MetricCondition(EZImhotepSession.intField("a"), 7, 10, true));
+        assertEquals(2, planned.size());
+        assertRange(planned.get(0), 0, 5, true);
+        assertRange(planned.get(1), 7, 10, true);
+    }
+
+    @Test
+    public void testDoesNotMergeNegatedWithNonNegated() {
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.intField("a"), 0, 10, false),
+                new MetricCondition(EZImhotepSession.intField("a"), 5, 20, true));
+        assertEquals(2, planned.size());
+    }
+
+    @Test
+    public void testMergesStructurallyEqualStatsOnly() {
+        // neither of these stats has a toString
+        final List<Condition> planned = plan(
+                new MetricCondition(EZImhotepSession.floatScale("a", 10, 0), 0, 10, false),
+                new MetricCondition(EZImhotepSession.floatScale("b", 10, 0), 5, 20, false),
+                new MetricCondition(EZImhotepSession.abs(EZImhotepSession.intField("a")), 0, 10, false),
+                new MetricCondition(EZImhotepSession.floatScale("a", 10, 0), 3, 30, false));
+        assertEquals(3, planned.size());
+        assertRange(planned.get(0), 3, 10, false);
+        assertRange(planned.get(1), 5, 20, false);
+        assertRange(planned.get(2), 0, 10, false);
+    }
+
+    @Test
+    public void testUnitesNegatedInConditions() {
+        final Field.StringField field = Field.stringField("f");
+        final List<Condition> planned = plan(
+                new StringInCondition(field, true, false, "x"),
+                new StringInCondition(field, true, false, "y", "x"));
+        assertEquals(1, planned.size());
+        final StringInCondition merged = (StringInCondition) planned.get(0);
+        assertTrue(merged.isNegation());
+        assertEquals(Sets.newHashSet("x", "y"), Sets.newHashSet(merged.getValues()));
+    }
+
+    @Test
+    public void testDoesNotIntersectInConditions() {
+        // fields can have more than one term per document
+        final Field.IntField field = Field.intField("f");
+        final List<Condition> planned = plan(
+                new IntInCondition(field, false, 1, 2),
+                new IntInCondition(field, false, 2, 3));
+        assertEquals(2, planned.size());
+    }
+
+    @Test
+    public void testDropsDuplicates() {
+        final Field.IntField field = Field.intField("f");
+        final List<Condition> planned = plan(
+                new IntInCondition(field, false, 1, 2),
+                new IntInCondition(field, false, 2, 1));
+        assertEquals(1, planned.size());
+    }
+
+    @Test
+    public void testOrdersCheapSelectiveConditionsFirst() {
+        final Condition regex = new RegexCondition(Field.stringField("s"), ".*x.*", false);
+        final Condition in = new IntInCondition(Field.intField("f"), false, 1);
+        final Condition metric = new MetricCondition(EZImhotepSession.intField("a"), 0, 10, false);
+        final List<Condition> planned = plan(regex, metric, in);
+        assertEquals(Arrays.asList(in, metric, regex), planned);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.util.serialization.LongStringifier;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestGroupStatsMerger {
+    private static final StatRangeGrouping BUCKETS =
+            new StatRangeGrouping(EZImhotepSession.intField("time"), 0, 30, 10, false, new LongStringifier());
+
+    private static GroupStats row(double[] stats, Object... keyElements) {
+        GroupKey<Object> groupKey = GroupKey.empty();
+        for (Object element : keyElements) {
+            groupKey = groupKey.add(element);
+        }
+        return new GroupStats(groupKey, stats);
+    }
+
+    private static void assertRow(GroupStats row, double[] stats, Object... keyElements) {
+        assertEquals(Lists.newArrayList(keyElements), Lists.newArrayList((Iterable<?>) row.groupKey));
+        assertArrayEquals(stats, row.stats, 0);
+    }
+
+    @Test
+    public void testSumsStats() {
+        final GroupStatsMerger merger = new GroupStatsMerger(Lists.<Grouping>newArrayList(new FieldGrouping(Field.stringField("country"))));
+        final double[] sharedStats = {1, 2};
+        merger.add(Lists.newArrayList(row(sharedStats, "us"), row(new double[] {3, 4}, "fr")).iterator());
+        merger.add(Lists.newArrayList(row(new double[] {10, 20}, "us"), null, row(new double[] {5, 5}, "de")).iterator());
+        merger.add(Lists.newArrayList(row(new double[] {100, 200}, "us")).iterator());
+
+        final List<GroupStats> results = merger.getResults();
+        assertEquals(3, results.size());
+        assertRow(results.get(0), new double[] {5, 5}, "de");
+        assertRow(results.get(1), new double[] {3, 4}, "fr");
+        assertRow(results.get(2), new double[] {111, 222}, "us");
+        // the stats of the slices aren't summed in place
+        assertArrayEquals(new double[] {1, 2}, sharedStats, 0);
+    }
+
+    @Test
+    public void testMixedIntAndEmptyStringTerms() {
+        final GroupStatsMerger merger = new GroupStatsMerger(Lists.<Grouping>newArrayList(new FieldGrouping(Field.intField("age"))));
+        merger.add(Lists.newArrayList(row(new double[] {1}, 20L), row(new double[] {1}, ""), row(new double[] {1}, 3L)).iterator());
+        merger.add(Lists.newArrayList(row(new double[] {1}, ""), row(new double[] {1}, 100L), row(new double[] {1}, 3L)).iterator());
+
+        final List<GroupStats> results = merger.getResults();
+        assertEquals(4, results.size());
+        // numbers in numeric order and the empty string of the missing terms after them
+        assertRow(results.get(0), new double[] {2}, 3L);
+        assertRow(results.get(1), new double[] {1}, 20L);
+        assertRow(results.get(2), new double[] {1}, 100L);
+        assertRow(results.get(3), new double[] {2}, "");
+    }
+
+    @Test
+    public void testBucketOrder() {
+        final List<String> bucketNames = BUCKETS.getBucketNames();
+        // [0, 10) [10, 20) [20, 30) < 0 >= 30
+        assertEquals(5, bucketNames.size());
+        final GroupStatsMerger merger = new GroupStatsMerger(Lists.<Grouping>newArrayList(BUCKETS));
+        merger.add(Lists.newArrayList(row(new double[] {1}, bucketNames.get(4)), row(new double[] {2}, bucketNames.get(2))).iterator());
+        merger.add(Lists.newArrayList(row(new double[] {3}, bucketNames.get(3)), row(new double[] {4}, bucketNames.get(0))).iterator());
+
+        final List<GroupStats> results = merger.getResults();
+        assertEquals(4, results.size());
+        assertRow(results.get(0), new double[] {4}, bucketNames.get(0));
+        assertRow(results.get(1), new double[] {2}, bucketNames.get(2));
+        assertRow(results.get(2), new double[] {3}, bucketNames.get(3));
+        assertRow(results.get(3), new double[] {1}, bucketNames.get(4));
+    }
+
+    @Test
+    public void testNestedOrder() {
+        final FieldGrouping langs = new FieldGrouping(Field.stringField("lang"), false, Lists.newArrayList("fr", "en", "de"));
+        final GroupStatsMerger merger = new GroupStatsMerger(Lists.<Grouping>newArrayList(langs, BUCKETS));
+        final List<String> bucketNames = BUCKETS.getBucketNames();
+        merger.add(Lists.newArrayList(
+                row(new double[] {1}, "en", bucketNames.get(1)),
+                row(new double[] {2}, "de", bucketNames.get(0))).iterator());
+        merger.add(Lists.newArrayList(
+                row(new double[] {3}, "fr", bucketNames.get(2)),
+                row(new double[] {4}, "en", bucketNames.get(0)),
+                row(new double[] {5}, "en", bucketNames.get(1))).iterator());
+
+        final List<GroupStats> results = merger.getResults();
+        assertEquals(4, results.size());
+        // IN terms in the requested order and buckets by number within each term
+        assertRow(results.get(0), new double[] {3}, "fr", bucketNames.get(2));
+        assertRow(results.get(1), new double[] {4}, "en", bucketNames.get(0));
+        assertRow(results.get(2), new double[] {6}, "en", bucketNames.get(1));
+        assertRow(results.get(3), new double[] {2}, "de", bucketNames.get(0));
+    }
+
+    @Test
+    public void testGroupLimit() {
+        final GroupStatsMerger merger = new GroupStatsMerger(Lists.<Grouping>newArrayList(new FieldGrouping(Field.stringField("country"))), 2);
+        merger.add(Lists.newArrayList(row(new double[] {1}, "us"), row(new double[] {1}, "fr")).iterator());
+        // rows of groups that are already merged don't count
+        merger.add(Lists.newArrayList(row(new double[] {1}, "fr"), row(new double[] {1}, "us")).iterator());
+        try {
+            merger.add(Lists.newArrayList(row(new double[] {1}, "de")).iterator());
+            fail("merged more groups than the limit");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnmergeableGrouping() {
+        new GroupStatsMerger(Lists.<Grouping>newArrayList(new PercentileGrouping(EZImhotepSession.counts())));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestGroupStatsSorter {
+    // orders by the first stat descending. there are only 10 distinct values so most rows tie
+    private static final Comparator<GroupStats> BY_BUCKET = new GroupStatsComparator(new int[] {1}, new boolean[] {true}, 1);
+    // small enough to spill every few rows and have more runs than are merged at once
+    private static final long SPILLING_BUDGET = 4096;
+
+    private static List<GroupStats> createRows(int count) {
+        final List<GroupStats> rows = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton("row" + i), new double[] {(i * 7) % 10, i}));
+        }
+        return rows;
+    }
+
+    private static List<GroupStats> stableSort(List<GroupStats> rows, Comparator<GroupStats> comparator) {
+        final List<GroupStats> sorted = Lists.newArrayList(rows);
+        Collections.sort(sorted, comparator);
+        return sorted;
+    }
+
+    private static void assertRows(List<GroupStats> expected, GroupStatsSorter.SortedRows actual) {
+        int index = 0;
+        while(actual.hasNext()) {
+            final GroupStats row = actual.next();
+            assertTrue("more rows than " + expected.size(), index < expected.size());
+            assertEquals(expected.get(index).groupKey, row.groupKey);
+            assertEquals(expected.get(index).stats[0], row.stats[0], 0);
+            assertEquals(expected.get(index).stats[1], row.stats[1], 0);
+            index++;
+        }
+        assertEquals(expected.size(), index);
+    }
+
+    private static int countRunFiles() {
+        final String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("iql_sort_");
+            }
+        });
+        return files != null ? files.length : 0;
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        final List<GroupStats> rows = createRows(1000);
+        final GroupStatsSorter sorter = new GroupStatsSorter(64 * 1024 * 1024, 2);
+        try {
+            final int runFiles = countRunFiles();
+            final GroupStatsSorter.SortedRows sortedRows = sorter.sort(rows.iterator(), BY_BUCKET);
+            assertEquals(runFiles, countRunFiles());
+            assertRows(stableSort(rows, BY_BUCKET), sortedRows);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testSpillManyRuns() throws IOException {
+        final List<GroupStats> rows = createRows(5000);
+        final GroupStatsSorter sorter = new GroupStatsSorter(SPILLING_BUDGET, 2);
+        try {
+            final int runFiles = countRunFiles();
+            final GroupStatsSorter.SortedRows sortedRows = sorter.sort(rows.iterator(), BY_BUCKET);
+            assertTrue(countRunFiles() > runFiles);
+            // rows with the same value stay in the order they were read in across the runs and the merge passes
+            assertRows(stableSort(rows, BY_BUCKET), sortedRows);
+            assertEquals(runFiles, countRunFiles());
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testSpillWithTies() throws IOException {
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton(i % 2 == 0 ? "even" : "odd").add((long) i), new double[] {1, i}));
+        }
+        // by the first key column then by the first stat, which are all the same
+        final Comparator<GroupStats> comparator = new GroupStatsComparator(new int[] {0, 2}, new boolean[] {false, true}, 2);
+        final GroupStatsSorter sorter = new GroupStatsSorter(SPILLING_BUDGET, 3);
+        try {
+            assertRows(stableSort(rows, comparator), sorter.sort(rows.iterator(), comparator));
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testCloseDeletesRuns() throws IOException {
+        final GroupStatsSorter sorter = new GroupStatsSorter(SPILLING_BUDGET, 2);
+        try {
+            final int runFiles = countRunFiles();
+            final GroupStatsSorter.SortedRows sortedRows = sorter.sort(createRows(1000).iterator(), BY_BUCKET);
+            assertTrue(sortedRows.hasNext());
+            sortedRows.next();
+            sortedRows.close();
+            assertEquals(runFiles, countRunFiles());
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testLimitInMemory() throws IOException {
+        final List<GroupStats> rows = createRows(1000);
+        final GroupStatsSorter sorter = new GroupStatsSorter(64 * 1024 * 1024, 2);
+        try {
+            assertRows(stableSort(rows, BY_BUCKET).subList(0, 25), sorter.sort(rows.iterator(), BY_BUCKET, 25));
+            assertRows(stableSort(rows, BY_BUCKET), sorter.sort(rows.iterator(), BY_BUCKET, 5000));
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testLimitSpilled() throws IOException {
+        final List<GroupStats> rows = createRows(3000);
+        // the limited rows don't fit in the budget so all the rows are sorted on disk
+        final GroupStatsSorter sorter = new GroupStatsSorter(SPILLING_BUDGET, 2);
+        try {
+            final int runFiles = countRunFiles();
+            final GroupStatsSorter.SortedRows sortedRows = sorter.sort(rows.iterator(), BY_BUCKET, 100);
+            assertRows(stableSort(rows, BY_BUCKET).subList(0, 100), sortedRows);
+            assertFalse(sortedRows.hasNext());
+            assertEquals(runFiles, countRunFiles());
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final GroupStatsSorter sorter = new GroupStatsSorter(SPILLING_BUDGET, 2);
+        try {
+            assertFalse(sorter.sort(Collections.<GroupStats>emptyList().iterator(), BY_BUCKET).hasNext());
+            assertFalse(sorter.sort(Collections.<GroupStats>emptyList().iterator(), BY_BUCKET, 10).hasNext());
+        } finally {
+            sorter.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestGroupStatsTopN {
+    private static final Comparator<GroupStats> BY_STAT_DESCENDING = new GroupStatsComparator(new int[] {1}, new boolean[] {true}, 1);
+    private static final Comparator<GroupStats> BY_STAT_ASCENDING = new GroupStatsComparator(new int[] {1}, new boolean[] {false}, 1);
+    // orders by the key and the stat so the generic comparator path is used
+    private static final Comparator<GroupStats> BY_KEY_AND_STAT = new GroupStatsComparator(new int[] {0, 1}, new boolean[] {true, false}, 1);
+
+    private static List<GroupStats> createRows(int count, int distinctValues) {
+        final List<GroupStats> rows = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton((long) (i % 3)), new double[] {(i * 31) % distinctValues}));
+        }
+        return rows;
+    }
+
+    private static void assertTopN(List<GroupStats> rows, int limit, Comparator<GroupStats> comparator) {
+        final List<GroupStats> expected = Lists.newArrayList(rows);
+        Collections.sort(expected, comparator);
+        final List<GroupStats> topN = GroupStatsTopN.getTopN(rows.iterator(), limit, comparator);
+        assertEquals(Math.min(limit, rows.size()), topN.size());
+        for (int i = 0; i < topN.size(); i++) {
+            // the same instances in the same order as a stable sort, which keeps tied rows in the order they were added
+            assertSame(expected.get(i), topN.get(i));
+        }
+    }
+
+    @Test
+    public void testTies() {
+        final List<GroupStats> rows = createRows(1000, 7);
+        assertTopN(rows, 1, BY_STAT_DESCENDING);
+        assertTopN(rows, 10, BY_STAT_DESCENDING);
+        assertTopN(rows, 200, BY_STAT_DESCENDING);
+        assertTopN(rows, 10, BY_STAT_ASCENDING);
+        assertTopN(rows, 200, BY_KEY_AND_STAT);
+    }
+
+    @Test
+    public void testLimitAboveRowCount() {
+        final List<GroupStats> rows = createRows(100, 50);
+        assertTopN(rows, 100, BY_STAT_DESCENDING);
+        assertTopN(rows, 5000, BY_STAT_DESCENDING);
+        assertTopN(rows, 5000, BY_KEY_AND_STAT);
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        final List<GroupStats> rows = createRows(10000, 3000);
+        assertTopN(rows, 2500, BY_STAT_DESCENDING);
+        assertTopN(rows, 2500, BY_KEY_AND_STAT);
+    }
+
+    @Test
+    public void testNaNLast() {
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(GroupKey.<Object>singleton("a"), new double[] {Double.NaN}),
+                new GroupStats(GroupKey.<Object>singleton("b"), new double[] {1}),
+                new GroupStats(GroupKey.<Object>singleton("c"), new double[0]),
+                new GroupStats(GroupKey.<Object>singleton("d"), new double[] {2}));
+        for (Comparator<GroupStats> comparator : Lists.newArrayList(BY_STAT_DESCENDING, BY_STAT_ASCENDING)) {
+            final List<GroupStats> topN = GroupStatsTopN.getTopN(rows.iterator(), 2, comparator);
+            assertEquals(2, topN.size());
+            assertEquals(comparator == BY_STAT_DESCENDING ? "d" : "b", topN.get(0).groupKey.head());
+            assertEquals(comparator == BY_STAT_DESCENDING ? "b" : "d", topN.get(1).groupKey.head());
+        }
+        assertTopN(rows, 4, BY_STAT_DESCENDING);
+    }
+
+    @Test
+    public void testSkipsNullRows() {
+        final List<GroupStats> rows = createRows(10, 10);
+        final List<GroupStats> withNulls = Lists.newArrayList(rows);
+        withNulls.add(3, null);
+        withNulls.add(null);
+        final List<GroupStats> topN = GroupStatsTopN.getTopN(withNulls.iterator(), 5, BY_STAT_DESCENDING);
+        final List<GroupStats> expected = Lists.newArrayList(rows);
+        Collections.sort(expected, BY_STAT_DESCENDING);
+        assertEquals(expected.subList(0, 5), topN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveLimit() {
+        new GroupStatsTopN(0, BY_STAT_DESCENDING);
+    }
+}
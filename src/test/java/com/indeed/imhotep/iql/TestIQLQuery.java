@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.Field;
+import com.indeed.util.serialization.LongStringifier;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.indeed.imhotep.ez.Stats.Stat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestIQLQuery {
+    private static final List<Stat> COUNTS = Collections.singletonList(EZImhotepSession.counts());
+
+    private static FieldGrouping exploded(String field) {
+        return new FieldGrouping(Field.stringField(field));
+    }
+
+    private static FieldGrouping noExplode(String field) {
+        return new FieldGrouping(Field.stringField(field), true);
+    }
+
+    private static FieldGrouping termSubset(String field, String... terms) {
+        return new FieldGrouping(Field.stringField(field), false, Lists.newArrayList(terms));
+    }
+
+    private static StatRangeGrouping buckets() {
+        return new StatRangeGrouping(EZImhotepSession.intField("time"), 0, 100, 10, false, new LongStringifier());
+    }
+
+    private static boolean canMerge(Grouping... groupings) {
+        return IQLQuery.canMergeTimeSlices(COUNTS, Lists.newArrayList(groupings));
+    }
+
+    @Test
+    public void testSingleGrouping() {
+        assertTrue(canMerge());
+        assertTrue(canMerge(exploded("country")));
+        assertTrue(canMerge(noExplode("country")));
+        assertTrue(canMerge(buckets()));
+    }
+
+    @Test
+    public void testExplodedAfterParent() {
+        // the 0 rows of group by country, lang depend on the langs of each slice
+        assertFalse(canMerge(exploded("country"), exploded("lang")));
+        assertFalse(canMerge(buckets(), exploded("lang")));
+        assertFalse(canMerge(exploded("country"), exploded("lang"), buckets()));
+        assertFalse(canMerge(noExplode("country"), termSubset("lang", "en", "fr")));
+    }
+
+    @Test
+    public void testNoZeroRowsAfterParent() {
+        assertTrue(canMerge(exploded("country"), noExplode("lang")));
+        assertTrue(canMerge(exploded("country"), buckets()));
+        assertTrue(canMerge(buckets(), noExplode("lang")));
+        // explodeEachGroup creates the groups of all the requested terms in every slice
+        assertTrue(canMerge(exploded("country"), termSubset("lang", "en", "fr"), buckets()));
+    }
+
+    @Test
+    public void testTopK() {
+        assertFalse(canMerge(new FieldGrouping(Field.stringField("country"), 10)));
+        assertFalse(canMerge(buckets(), new FieldGrouping(Field.stringField("country"), 10)));
+    }
+
+    @Test
+    public void testAggregateStat() {
+        final List<Stat> stats = Lists.newArrayList(EZImhotepSession.counts(),
+                EZImhotepSession.aggDiv(EZImhotepSession.intField("clicks"), EZImhotepSession.counts()));
+        assertFalse(IQLQuery.canMergeTimeSlices(stats, Lists.<Grouping>newArrayList(exploded("country"))));
+        assertTrue(IQLQuery.canMergeTimeSlices(stats.subList(0, 1), Lists.<Grouping>newArrayList(exploded("country"))));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSharedResults {
+    private static final int SPILLED_ROW_COUNT = 25000;
+
+    private static Iterator<GroupStats> createRows(final int first, final int count) {
+        final List<GroupStats> rows = Lists.newArrayListWithCapacity(count);
+        for (int i = first; i < first + count; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton("row" + i), new double[] {i}));
+        }
+        return rows.iterator();
+    }
+
+    private static void add(SharedResults results, int first, int count) {
+        Iterators.size(results.tee(createRows(first, count)));
+    }
+
+    private static int assertRows(Iterator<GroupStats> reader, int first) {
+        int i = first;
+        while(reader.hasNext()) {
+            final GroupStats row = reader.next();
+            assertEquals(GroupKey.<Object>singleton("row" + i), row.groupKey);
+            assertEquals(i, row.stats[0], 0);
+            i++;
+        }
+        return i - first;
+    }
+
+    @Test
+    public void testInMemory() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader reader = results.newReader();
+        assertNotNull(reader);
+        add(results, 0, 1000);
+        results.finish();
+        results.close();
+        assertEquals(1000, assertRows(reader, 0));
+        assertNull(results.getSpillFile());
+    }
+
+    @Test
+    public void testNotSharedWithoutReaders() {
+        final SharedResults results = new SharedResults();
+        add(results, 0, SPILLED_ROW_COUNT);
+        results.finish();
+        assertNull(results.newReader());
+        assertNull(results.getSpillFile());
+        results.close();
+    }
+
+    @Test
+    public void testReaderStartingAfterSpill() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader firstReader = results.newReader();
+        add(results, 0, SPILLED_ROW_COUNT);
+        // starts after the rows outgrew the memory and reads both the memory and the spilled rows
+        final SharedResults.Reader lateReader = results.newReader();
+        assertNotNull(lateReader);
+        add(results, SPILLED_ROW_COUNT, 100);
+        results.finish();
+        results.close();
+        assertEquals(SPILLED_ROW_COUNT + 100, assertRows(lateReader, 0));
+        assertEquals(SPILLED_ROW_COUNT + 100, assertRows(firstReader, 0));
+        assertNull(results.newReader());
+    }
+
+    @Test
+    public void testFailureInTheMiddle() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader reader = results.newReader();
+        add(results, 0, SPILLED_ROW_COUNT);
+        final IOException failure = new IOException("failed");
+        results.fail(failure);
+        results.close();
+        int rowsRead = 0;
+        try {
+            while(reader.hasNext()) {
+                assertEquals(GroupKey.<Object>singleton("row" + rowsRead), reader.next().groupKey);
+                rowsRead++;
+            }
+            fail("Reader didn't fail");
+        } catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+        // rows added after the failure are never visible but the ones before it are
+        assertTrue(rowsRead > 0 && rowsRead <= SPILLED_ROW_COUNT);
+        reader.close();
+        assertNull(results.getSpillFile());
+    }
+
+    @Test
+    public void testIncompleteResults() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader reader = results.newReader();
+        add(results, 0, 1000);
+        // closed without finishing
+        results.close();
+        try {
+            assertRows(reader, 0);
+            fail("Reader didn't fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testSpillFileDeletedAfterLastReader() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader firstReader = results.newReader();
+        final SharedResults.Reader secondReader = results.newReader();
+        add(results, 0, SPILLED_ROW_COUNT);
+        results.finish();
+        final File spillFile = results.getSpillFile();
+        assertNotNull(spillFile);
+        assertTrue(spillFile.exists());
+
+        results.close();
+        assertTrue(spillFile.exists());
+        assertEquals(SPILLED_ROW_COUNT, assertRows(firstReader, 0));
+        // reading to the end closes the reader
+        assertTrue(spillFile.exists());
+        assertTrue(secondReader.hasNext());
+        secondReader.next();
+        secondReader.close();
+        assertFalse(secondReader.hasNext());
+        assertFalse(spillFile.exists());
+        assertNull(results.getSpillFile());
+    }
+
+    @Test
+    public void testSpillFileDeletedWhenWriterClosesLast() {
+        final SharedResults results = new SharedResults();
+        final SharedResults.Reader reader = results.newReader();
+        add(results, 0, SPILLED_ROW_COUNT);
+        final File spillFile = results.getSpillFile();
+        assertNotNull(spillFile);
+        reader.close();
+        assertTrue(spillFile.exists());
+        results.finish();
+        results.close();
+        assertFalse(spillFile.exists());
+    }
+}
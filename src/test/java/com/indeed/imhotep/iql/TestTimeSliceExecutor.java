@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.Interval;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimeSliceExecutor {
+    private static final DateTimeZone ZONE = DateTimeZone.forOffsetHours(-6);
+    private static final LocalDate EPOCH_DAY = new LocalDate(1970, 1, 1);
+
+    private static DateTime day(int year, int month, int day) {
+        return new DateTime(year, month, day, 0, 0, ZONE);
+    }
+
+    /**
+     * Daily shards for [start, end)
+     */
+    private static List<ShardIdWithVersion> dailyShards(DateTime start, DateTime end) {
+        final List<ShardIdWithVersion> shards = Lists.newArrayList();
+        for (DateTime day = start; day.isBefore(end); day = day.plusDays(1)) {
+            shards.add(new ShardIdWithVersion("index" + day.toString("yyyyMMdd"), 20150101000000L));
+        }
+        return shards;
+    }
+
+    private static void assertContiguous(DateTime start, DateTime end, List<Interval> slices) {
+        assertEquals(start, slices.get(0).getStart());
+        for (int i = 1; i < slices.size(); i++) {
+            assertEquals(slices.get(i - 1).getEnd(), slices.get(i).getStart());
+        }
+        assertEquals(end, slices.get(slices.size() - 1).getEnd());
+    }
+
+    private static void assertAligned(List<Interval> slices, int sliceDays) {
+        for (int i = 1; i < slices.size(); i++) {
+            final int daysSinceEpoch = Days.daysBetween(EPOCH_DAY, slices.get(i).getStart().toLocalDate()).getDays();
+            assertEquals(0, daysSinceEpoch % sliceDays);
+            assertEquals(0, slices.get(i).getStart().getMillisOfDay());
+        }
+    }
+
+    @Test
+    public void testDisabled() {
+        final DateTime start = day(2015, 1, 1);
+        final DateTime end = day(2015, 2, 1);
+        final TimeSliceExecutor executor = new TimeSliceExecutor(0, 8, null);
+        try {
+            final List<Interval> slices = executor.getTimeSlices(start, end, dailyShards(start, end));
+            assertEquals(1, slices.size());
+            assertEquals(new Interval(start, end), slices.get(0));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testSingleDay() {
+        final DateTime start = day(2015, 1, 1).plusHours(3);
+        final DateTime end = day(2015, 1, 2);
+        final TimeSliceExecutor executor = new TimeSliceExecutor(2, 8, null);
+        try {
+            final List<Interval> slices = executor.getTimeSlices(start, end, dailyShards(day(2015, 1, 1), end));
+            assertEquals(1, slices.size());
+            assertEquals(new Interval(start, end), slices.get(0));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testSliceCount() {
+        final TimeSliceExecutor executor = new TimeSliceExecutor(2, 8, null);
+        try {
+            final DateTime start = day(2015, 1, 1);
+            // 8 days fit in 8 slices of a day. 9 to 16 days take slices of 2 days and 31 days take slices of 4 days
+            final int[] days = {2, 8, 9, 16, 31};
+            final int[] sliceDays = {1, 1, 2, 2, 4};
+            for (int i = 0; i < days.length; i++) {
+                final DateTime end = start.plusDays(days[i]);
+                final List<Interval> slices = executor.getTimeSlices(start, end, dailyShards(start, end));
+                assertTrue(slices.size() <= 8);
+                assertTrue(slices.size() >= days[i] / sliceDays[i]);
+                assertContiguous(start, end, slices);
+                assertAligned(slices, sliceDays[i]);
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testPartialDays() {
+        final TimeSliceExecutor executor = new TimeSliceExecutor(2, 8, null);
+        try {
+            final DateTime start = day(2015, 1, 1).plusHours(6);
+            final DateTime end = day(2015, 1, 5).plusHours(12);
+            final List<Interval> slices = executor.getTimeSlices(start, end, dailyShards(day(2015, 1, 1), day(2015, 1, 6)));
+            assertEquals(5, slices.size());
+            assertContiguous(start, end, slices);
+            assertAligned(slices, 1);
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testSameBoundariesForOverlappingRanges() {
+        final TimeSliceExecutor executor = new TimeSliceExecutor(2, 8, null);
+        try {
+            final DateTime start = day(2015, 1, 1);
+            final DateTime end = day(2015, 1, 29);
+            final List<Interval> slices = executor.getTimeSlices(start, end, dailyShards(start, end));
+            final List<Interval> shiftedSlices = executor.getTimeSlices(start.plusDays(1), end, dailyShards(start, end));
+            // the slices after the first one are the same so their partial results can be reused
+            assertEquals(slices.subList(1, slices.size()), shiftedSlices.subList(1, shiftedSlices.size()));
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testSkipsSlicesWithoutShards() {
+        final TimeSliceExecutor executor = new TimeSliceExecutor(2, 8, null);
+        try {
+            final DateTime start = day(2015, 1, 1);
+            final DateTime end = day(2015, 1, 6);
+            final List<ShardIdWithVersion> shards = dailyShards(start, end);
+            shards.remove(2);
+            final List<Interval> slices = executor.getTimeSlices(start, end, shards);
+            assertEquals(4, slices.size());
+            assertEquals(day(2015, 1, 3), slices.get(1).getEnd());
+            assertEquals(day(2015, 1, 4), slices.get(2).getStart());
+
+            // the whole range when there are no shards at all
+            final List<Interval> noShards = executor.getTimeSlices(start, end, Lists.<ShardIdWithVersion>newArrayList());
+            assertEquals(Lists.newArrayList(new Interval(start, end)), noShards);
+        } finally {
+            executor.close();
+        }
+    }
+}
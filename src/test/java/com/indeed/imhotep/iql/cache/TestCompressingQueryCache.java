@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompressingQueryCache {
+    private static final byte[] HEADER = {'I', 'Q', 'L', 'Z', 1};
+
+    private InMemoryStore store;
+    private CompressingQueryCache cache;
+
+    @Before
+    public void init() {
+        store = new InMemoryStore();
+        cache = new CompressingQueryCache(store, 1);
+    }
+
+    /**
+     * Compressible text followed by random bytes so that the file has both deflated and stored blocks.
+     */
+    private static byte[] getData(int textLength, int randomLength) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; out.size() < textLength; i++) {
+            final byte[] line = ("row" + i + "\t" + (i % 100) + "\t" + (i * 7) + "\n").getBytes();
+            out.write(line, 0, Math.min(line.length, textLength - out.size()));
+        }
+        final byte[] random = new byte[randomLength];
+        new Random(0).nextBytes(random);
+        out.write(random, 0, random.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void assertCompressed(String fileName, int rawLength) {
+        final byte[] stored = store.files.get(fileName);
+        assertArrayEquals(HEADER, Arrays.copyOf(stored, HEADER.length));
+        // ends with the 0 length block
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(stored, stored.length - 4, stored.length));
+        assertTrue(stored.length < rawLength);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] data = getData(700 * 1024, 300 * 1024);
+        final OutputStream out = cache.getOutputStream("file");
+        // single bytes and arrays across block boundaries
+        out.write(data, 0, 100);
+        for (int i = 100; i < 1000; i++) {
+            out.write(data[i]);
+        }
+        out.write(data, 1000, data.length - 1000);
+        out.close();
+
+        assertCompressed("file", data.length);
+        assertArrayEquals(data, readAll(cache.getInputStream("file")));
+
+        final InputStream in = cache.getInputStream("file");
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(data[i] & 0xFF, in.read());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testWriteFromFile() throws IOException {
+        final byte[] data = getData(600 * 1024, 10);
+        final File file = File.createTempFile("iql_test_", ".tsv");
+        try {
+            Files.write(data, file);
+            cache.writeFromFile("file", file);
+        } finally {
+            assertTrue(file.delete());
+        }
+        assertCompressed("file", data.length);
+        assertArrayEquals(data, readAll(cache.getInputStream("file")));
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        cache.getOutputStream("file").close();
+        assertArrayEquals(new byte[] {'I', 'Q', 'L', 'Z', 1, 0, 0, 0, 0}, store.files.get("file"));
+        assertEquals(0, readAll(cache.getInputStream("file")).length);
+    }
+
+    @Test
+    public void testLegacyUncompressed() throws IOException {
+        final List<byte[]> legacyFiles = Lists.newArrayList(
+                new byte[0], "a".getBytes(), "IQLZ".getBytes(), "IQL\tfoo\n".getBytes(), getData(300 * 1024, 0));
+        for (int i = 0; i < legacyFiles.size(); i++) {
+            store.files.put("legacy" + i, legacyFiles.get(i));
+            assertArrayEquals(legacyFiles.get(i), readAll(cache.getInputStream("legacy" + i)));
+        }
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        final byte[] data = getData(800 * 1024, 0);
+        final OutputStream out = cache.getOutputStream("file");
+        out.write(data);
+        out.close();
+
+        final InputStream in = cache.getInputStream("file");
+        try {
+            assertEquals(10, in.skip(10));
+            assertEquals(data[10] & 0xFF, in.read());
+            // whole blocks are skipped without being decompressed
+            final int skipped = 600 * 1024;
+            assertEquals(skipped, in.skip(skipped));
+            assertEquals(data[11 + skipped] & 0xFF, in.read());
+            final int left = data.length - 12 - skipped;
+            assertEquals(left, in.skip(data.length));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testUnknownCodec() throws IOException {
+        store.files.put("file", new byte[] {'I', 'Q', 'L', 'Z', 7, 0, 0, 0, 0});
+        try {
+            cache.getInputStream("file");
+            fail("read a file with an unknown codec");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        final OutputStream out = cache.getOutputStream("file");
+        out.write(getData(100 * 1024, 0));
+        out.close();
+        final byte[] stored = store.files.get("file");
+        store.files.put("file", Arrays.copyOf(stored, stored.length - 4));
+        try {
+            readAll(cache.getInputStream("file"));
+            fail("read a truncated file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        final CacheOutputStream out = cache.getOutputStream("file");
+        out.write(getData(1000, 0));
+        out.discard();
+        out.close();
+        assertFalse(store.isFileCached("file"));
+    }
+
+    /**
+     * Keeps the files in memory. Files are only visible once their stream is closed.
+     */
+    private static final class InMemoryStore implements QueryCache {
+        private final Map<String, byte[]> files = Maps.newConcurrentMap();
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isEnabledInConfig() {
+            return true;
+        }
+
+        @Override
+        public boolean isFileCached(String fileName) {
+            return files.containsKey(fileName);
+        }
+
+        @Override
+        public boolean isFileLikelyCached(String fileName) {
+            return isFileCached(fileName);
+        }
+
+        @Override
+        public InputStream getInputStream(String cachedFileName) throws IOException {
+            final byte[] contents = files.get(cachedFileName);
+            if(contents == null) {
+                throw new FileNotFoundException(cachedFileName);
+            }
+            return new ByteArrayInputStream(contents);
+        }
+
+        @Override
+        public CacheOutputStream getOutputStream(final String cachedFileName) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            return new CacheOutputStream() {
+                private boolean closed = false;
+
+                @Override
+                public void write(int b) {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    if(!closed) {
+                        closed = true;
+                        files.put(cachedFileName, out.toByteArray());
+                    }
+                }
+
+                @Override
+                public void discard() {
+                    closed = true;
+                }
+            };
+        }
+
+        @Override
+        public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+            files.put(cachedFileName, Files.toByteArray(localFile));
+        }
+
+        @Override
+        public void healthcheck() {
+        }
+
+        @Override
+        public List<String> listFileNames() {
+            return Lists.newArrayList(files.keySet());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestS3MultipartOutputStream {
+    private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+    private AmazonS3 client;
+    private ExecutorService executorService;
+    // part number -> uploaded bytes
+    private final Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+
+    @Before
+    public void init() {
+        client = createMock(AmazonS3.class);
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    private static byte[] getData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        return data;
+    }
+
+    private void expectInitiate() {
+        final InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        expect(client.initiateMultipartUpload(anyObject(InitiateMultipartUploadRequest.class))).andReturn(initiateResult).once();
+    }
+
+    private void expectUploadParts(int count) {
+        expect(client.uploadPart(anyObject(UploadPartRequest.class))).andAnswer(new IAnswer<UploadPartResult>() {
+            @Override
+            public UploadPartResult answer() throws Throwable {
+                final UploadPartRequest request = (UploadPartRequest) getCurrentArguments()[0];
+                assertEquals("upload", request.getUploadId());
+                final byte[] bytes = ByteStreams.toByteArray(request.getInputStream());
+                assertEquals(request.getPartSize(), bytes.length);
+                uploadedParts.put(request.getPartNumber(), bytes);
+                final UploadPartResult result = new UploadPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag" + request.getPartNumber());
+                return result;
+            }
+        }).times(count);
+    }
+
+    @Test
+    public void testSmallUploadUsesSinglePut() throws IOException {
+        final byte[] data = getData(1000);
+        final Capture<InputStream> content = new Capture<InputStream>();
+        final Capture<ObjectMetadata> metadata = new Capture<ObjectMetadata>();
+        expect(client.putObject(eq("bucket"), eq("key"), capture(content), capture(metadata)))
+                .andReturn(new PutObjectResult()).once();
+        replay(client);
+
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(client, "bucket", "key", PART_SIZE, 2, executorService);
+        out.write(data);
+        out.close();
+
+        verify(client);
+        assertArrayEquals(data, ByteStreams.toByteArray(content.getValue()));
+        assertEquals(data.length, metadata.getValue().getContentLength());
+    }
+
+    @Test
+    public void testMultipartUpload() throws IOException {
+        final byte[] data = getData(2 * PART_SIZE + 100);
+        expectInitiate();
+        expectUploadParts(3);
+        final Capture<CompleteMultipartUploadRequest> complete = new Capture<CompleteMultipartUploadRequest>();
+        expect(client.completeMultipartUpload(capture(complete))).andReturn(new CompleteMultipartUploadResult()).once();
+        replay(client);
+
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(client, "bucket", "key", PART_SIZE, 2, executorService);
+        // uneven writes that cross the part boundaries
+        for (int offset = 0; offset < data.length; offset += 1000003) {
+            out.write(data, offset, Math.min(1000003, data.length - offset));
+        }
+        out.close();
+
+        verify(client);
+        assertEquals(3, uploadedParts.size());
+        assertArrayEquals(Arrays.copyOfRange(data, 0, PART_SIZE), uploadedParts.get(1));
+        assertArrayEquals(Arrays.copyOfRange(data, PART_SIZE, 2 * PART_SIZE), uploadedParts.get(2));
+        assertArrayEquals(Arrays.copyOfRange(data, 2 * PART_SIZE, data.length), uploadedParts.get(3));
+        final CompleteMultipartUploadRequest completeRequest = complete.getValue();
+        assertEquals("upload", completeRequest.getUploadId());
+        assertEquals(3, completeRequest.getPartETags().size());
+        for (int i = 0; i < 3; i++) {
+            final PartETag partETag = completeRequest.getPartETags().get(i);
+            assertEquals(i + 1, partETag.getPartNumber());
+            assertEquals("etag" + (i + 1), partETag.getETag());
+        }
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws IOException {
+        expectInitiate();
+        expect(client.uploadPart(anyObject(UploadPartRequest.class))).andThrow(new AmazonServiceException("failed")).anyTimes();
+        final Capture<AbortMultipartUploadRequest> abort = new Capture<AbortMultipartUploadRequest>();
+        client.abortMultipartUpload(capture(abort));
+        expectLastCall().once();
+        replay(client);
+
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(client, "bucket", "key", PART_SIZE, 2, executorService);
+        out.write(getData(PART_SIZE + 1));
+        try {
+            out.close();
+            fail("Upload should fail");
+        } catch (IOException expected) {
+        }
+
+        verify(client);
+        assertEquals("upload", abort.getValue().getUploadId());
+    }
+}
@@ -76,6 +76,19 @@ public class TestQuerySplitter {
         doSQLTest(new QueryParts("frm", "", "a, select", "sel"));
     }
 
+    @org.junit.Test
+    public void testSplitOrderBy() {
+        doTest(new QueryParts("frm", "wh", "grp", "sel", "sel desc", "10"));
+        doTest(new QueryParts("frm", "", "", "sel", "1", ""));
+    }
+
+    @org.junit.Test
+    public void testSplitOrderField() {
+        // 'order' alone is not a keyword
+        doTest(new QueryParts("frm", "order = 1 and order > 2", "order", "count(), order", "order", "10"));
+        doTest(new QueryParts("frm", "order in (1, 2)", "", "sel"));
+    }
+
     private static void doTest(QueryParts t) {
         doSQLTest(t);
         doLINQTest(t);
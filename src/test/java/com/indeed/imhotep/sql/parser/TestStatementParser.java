@@ -72,4 +72,24 @@ public class TestStatementParser {
 
         assertEquals(expected, StatementParser.parse(testQuery));
     }
+
+    @Test
+    public void testOrderBy() {
+        String testQuery = "from jobsearch '2012-01-01' '2012-01-02' group by grp select count(), sjc order by sjc desc, grp limit 10";
+        SelectStatement statement = (SelectStatement) StatementParser.parse(testQuery);
+        OrderByClause expected = new OrderByClause(Lists.newArrayList(
+                new OrderByClause.Ordering(new NameExpression("sjc"), true),
+                new OrderByClause.Ordering(new NameExpression("grp"), false)));
+        assertEquals(expected, statement.orderBy);
+        assertEquals(10, statement.limit);
+
+        OrderByClause parsed = StatementParser.parseOrderByClause("count() asc");
+        assertEquals(1, parsed.orderings.size());
+        assertFalse(parsed.orderings.get(0).descending);
+
+        // desc on its own is a field name
+        parsed = StatementParser.parseOrderByClause("desc");
+        assertEquals(new NameExpression("desc"), parsed.orderings.get(0).expression);
+        assertFalse(parsed.orderings.get(0).descending);
+    }
 }
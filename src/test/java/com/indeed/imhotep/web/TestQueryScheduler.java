@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestQueryScheduler {
+    private static final Map<String, Double> NO_WEIGHTS = Collections.emptyMap();
+
+    @Test
+    public void testGlobalLimitWithConcurrentQueries() throws Exception {
+        final int maxRunning = 3;
+        final QueryScheduler scheduler = new QueryScheduler(maxRunning, 2, 0, NO_WEIGHTS);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxSeen = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < 200; i++) {
+                final String user = "user" + (i % 7);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        final QueryScheduler.Admission admission = scheduler.enqueue(user, false, -1);
+                        try {
+                            admission.await(30, TimeUnit.SECONDS);
+                            final int now = running.incrementAndGet();
+                            while(true) {
+                                final int max = maxSeen.get();
+                                if(now <= max || maxSeen.compareAndSet(max, now)) {
+                                    break;
+                                }
+                            }
+                            Thread.yield();
+                            running.decrementAndGet();
+                        } finally {
+                            admission.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("ran " + maxSeen.get() + " queries at once", maxSeen.get() <= maxRunning);
+        assertTrue(maxSeen.get() > 0);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getWaitingCount());
+    }
+
+    @Test
+    public void testLightUserGoesBeforeHeavyUser() {
+        final QueryScheduler scheduler = new QueryScheduler(2, 2, 0, NO_WEIGHTS);
+        final List<QueryScheduler.Admission> heavyUser = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            heavyUser.add(scheduler.enqueue("heavy", false, -1));
+        }
+        assertTrue(heavyUser.get(0).isAdmitted());
+        assertTrue(heavyUser.get(1).isAdmitted());
+        assertFalse(heavyUser.get(2).isAdmitted());
+
+        final QueryScheduler.Admission lightUser = scheduler.enqueue("light", false, -1);
+        assertFalse(lightUser.isAdmitted());
+        assertEquals(4, scheduler.getWaitingCount());
+
+        // the light user has no running queries so it gets the next slot although it came last
+        heavyUser.get(0).release();
+        assertTrue(lightUser.isAdmitted());
+        assertFalse(heavyUser.get(2).isAdmitted());
+
+        heavyUser.get(1).release();
+        assertTrue(heavyUser.get(2).isAdmitted());
+        assertFalse(heavyUser.get(3).isAdmitted());
+        assertEquals(2, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testPerUserLimit() {
+        final QueryScheduler scheduler = new QueryScheduler(10, 1, 0, NO_WEIGHTS);
+        final QueryScheduler.Admission first = scheduler.enqueue("user", false, -1);
+        final QueryScheduler.Admission second = scheduler.enqueue("user", false, -1);
+        final QueryScheduler.Admission other = scheduler.enqueue("other", false, -1);
+        assertTrue(first.isAdmitted());
+        assertFalse(second.isAdmitted());
+        assertTrue(other.isAdmitted());
+        first.release();
+        assertTrue(second.isAdmitted());
+    }
+
+    @Test
+    public void testHeavyLimit() {
+        final QueryScheduler scheduler = new QueryScheduler(10, 10, 1, NO_WEIGHTS);
+        final QueryScheduler.Admission heavy = scheduler.enqueue("a", true, -1);
+        final QueryScheduler.Admission secondHeavy = scheduler.enqueue("b", true, -1);
+        final QueryScheduler.Admission light = scheduler.enqueue("c", false, -1);
+        assertTrue(heavy.isAdmitted());
+        assertFalse(secondHeavy.isAdmitted());
+        assertTrue(light.isAdmitted());
+        assertEquals(1, scheduler.getHeavyRunningCount());
+        heavy.release();
+        assertTrue(secondHeavy.isAdmitted());
+        assertEquals(1, scheduler.getHeavyRunningCount());
+    }
+
+    @Test
+    public void testQueuePosition() {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1, 0, NO_WEIGHTS);
+        final QueryScheduler.Admission running = scheduler.enqueue("a", false, -1);
+        final QueryScheduler.Admission first = scheduler.enqueue("a", false, -1);
+        final QueryScheduler.Admission second = scheduler.enqueue("b", false, -1);
+        final QueryScheduler.Admission third = scheduler.enqueue("a", false, -1);
+        assertEquals(0, running.getQueuePosition());
+        assertEquals(0, first.getQueuePosition());
+        assertEquals(1, second.getQueuePosition());
+        assertEquals(2, third.getQueuePosition());
+
+        first.cancel();
+        assertEquals(0, second.getQueuePosition());
+        assertEquals(1, third.getQueuePosition());
+
+        running.release();
+        assertTrue(second.isAdmitted());
+        assertEquals(0, second.getQueuePosition());
+        assertEquals(0, third.getQueuePosition());
+    }
+
+    @Test
+    public void testCancelGivesUpThePlace() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1, 0, NO_WEIGHTS);
+        final QueryScheduler.Admission running = scheduler.enqueue("a", false, -1);
+        final QueryScheduler.Admission waiting = scheduler.enqueue("b", false, -1);
+        assertEquals(1, scheduler.getWaitingCount());
+
+        waiting.cancel();
+        assertEquals(0, scheduler.getWaitingCount());
+        assertFalse(waiting.isAdmitted());
+        try {
+            waiting.await(1, TimeUnit.SECONDS);
+            fail("cancelled admission was awaited");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        // cancelling the admitted query has no effect. it keeps its slot until it's released
+        running.cancel();
+        assertTrue(running.isAdmitted());
+        assertEquals(1, scheduler.getRunningCount());
+        running.release();
+        assertEquals(0, scheduler.getRunningCount());
+
+        waiting.release();
+        assertEquals(0, scheduler.getRunningCount());
+        assertTrue(scheduler.enqueue("c", false, -1).isAdmitted());
+    }
+
+    @Test
+    public void testFailedQueryReleasesTheSlot() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1, 1, NO_WEIGHTS);
+        final QueryScheduler.Admission failing = scheduler.enqueue("a", true, -1);
+        final QueryScheduler.Admission next = scheduler.enqueue("b", true, -1);
+        try {
+            failing.await(1, TimeUnit.SECONDS);
+            throw new IllegalStateException("query failed");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            failing.release();
+        }
+        assertTrue(next.isAdmitted());
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getHeavyRunningCount());
+
+        // releasing again doesn't free the slot of the next query
+        failing.release();
+        assertEquals(1, scheduler.getRunningCount());
+        next.release();
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getHeavyRunningCount());
+    }
+
+    @Test
+    public void testTimeoutGivesUpThePlace() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1, 0, NO_WEIGHTS);
+        final QueryScheduler.Admission running = scheduler.enqueue("a", false, -1);
+        final QueryScheduler.Admission waiting = scheduler.enqueue("b", false, -1);
+        try {
+            waiting.await(10, TimeUnit.MILLISECONDS);
+            fail("admitted over the limit");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertEquals(0, scheduler.getWaitingCount());
+        running.release();
+        assertFalse(waiting.isAdmitted());
+        assertEquals(0, scheduler.getRunningCount());
+    }
+
+    @Test
+    public void testShorterPredictedQueryFirst() {
+        final QueryScheduler scheduler = new QueryScheduler(1, 2, 0, NO_WEIGHTS);
+        final QueryScheduler.Admission running = scheduler.enqueue("a", false, 1000);
+        final QueryScheduler.Admission slow = scheduler.enqueue("b", false, 60000);
+        final QueryScheduler.Admission fast = scheduler.enqueue("c", false, 10);
+        running.release();
+        assertTrue(fast.isAdmitted());
+        assertFalse(slow.isAdmitted());
+    }
+
+    @Test
+    public void testWeights() {
+        final Map<String, Double> weights = QueryScheduler.parseWeights("dashboard:2, adhoc:0.5");
+        assertEquals(2.0, weights.get("dashboard"), 0);
+        assertEquals(0.5, weights.get("adhoc"), 0);
+        assertTrue(QueryScheduler.parseWeights("").isEmpty());
+
+        final QueryScheduler scheduler = new QueryScheduler(3, 3, 0, weights);
+        final QueryScheduler.Admission dashboard1 = scheduler.enqueue("dashboard", false, -1);
+        final QueryScheduler.Admission other1 = scheduler.enqueue("other", false, -1);
+        final QueryScheduler.Admission dashboard2 = scheduler.enqueue("dashboard", false, -1);
+        final QueryScheduler.Admission other2 = scheduler.enqueue("other", false, -1);
+        final QueryScheduler.Admission dashboard3 = scheduler.enqueue("dashboard", false, -1);
+        assertTrue(dashboard1.isAdmitted());
+        assertTrue(other1.isAdmitted());
+        assertTrue(dashboard2.isAdmitted());
+        // both have 1 running but dashboard has the smaller share with its weight of 2. other2 would win the tie
+        dashboard1.release();
+        assertTrue(dashboard3.isAdmitted());
+        assertFalse(other2.isAdmitted());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveWeight() {
+        QueryScheduler.parseWeights("a:0");
+    }
+}
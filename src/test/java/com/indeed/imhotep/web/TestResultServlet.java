@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.iql.BinaryResultFormat;
+import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestResultServlet {
+    private static final int TOTAL_ROWS = 10000;
+
+    private byte[] results;
+    private byte[] index;
+    private MockHttpServletResponse response;
+
+    @Before
+    public void init() throws IOException {
+        final List<GroupStats> rows = new ArrayList<GroupStats>();
+        for (int i = 0; i < TOTAL_ROWS; i++) {
+            rows.add(new GroupStats(GroupKey.<Object>singleton("row" + i), new double[] {i}));
+        }
+        final ByteArrayOutputStream resultsOut = new ByteArrayOutputStream();
+        final BinaryResultFormat.Index resultsIndex = BinaryResultFormat.write(rows.iterator(), resultsOut);
+        results = resultsOut.toByteArray();
+        final ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+        resultsIndex.write(indexOut);
+        index = indexOut.toByteArray();
+        response = new MockHttpServletResponse();
+    }
+
+    private static IAnswer<InputStream> stream(final byte[] bytes) {
+        return new IAnswer<InputStream>() {
+            @Override
+            public InputStream answer() throws Throwable {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    private ResultServlet createServlet(boolean withIndex) throws IOException {
+        final QueryCache queryCache = createNiceMock(QueryCache.class);
+        expect(queryCache.isFileCached("hash.bin")).andReturn(true).anyTimes();
+        expect(queryCache.getInputStream("hash.bin")).andAnswer(stream(results)).anyTimes();
+        expect(queryCache.isFileCached("hash.bin.idx")).andReturn(withIndex).anyTimes();
+        expect(queryCache.getInputStream("hash.bin.idx")).andAnswer(stream(index)).anyTimes();
+        replay(queryCache);
+        return new ResultServlet(queryCache);
+    }
+
+    private String[] get(boolean withIndex, String filename, Long offset, Integer limit, String range) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        createServlet(withIndex).doGet(response, filename, null, offset, limit, range, out);
+        final String body = out.toString("UTF-8");
+        return body.isEmpty() ? new String[0] : body.split("\n");
+    }
+
+    private static String[] expectedRows(int first, int last) {
+        final String[] rows = new String[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            rows[i - first] = "row" + i + "\t" + i;
+        }
+        return rows;
+    }
+
+    @Test
+    public void testAll() throws IOException {
+        assertArrayEquals(expectedRows(0, TOTAL_ROWS - 1), get(true, "hash.tsv", null, null, null));
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals("rows", response.getHeader("Accept-Ranges"));
+        assertNull(response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testOffsetAndLimit() throws IOException {
+        assertArrayEquals(expectedRows(5000, 5002), get(true, "hash.tsv", 5000L, 3, null));
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertArrayEquals(expectedRows(TOTAL_ROWS - 2, TOTAL_ROWS - 1), get(true, "hash.tsv", TOTAL_ROWS - 2L, 10, null));
+        assertArrayEquals(new String[0], get(true, "hash.tsv", (long) TOTAL_ROWS, 10, null));
+    }
+
+    @Test
+    public void testOffsetWithoutIndex() throws IOException {
+        assertArrayEquals(expectedRows(5000, 5002), get(false, "hash.tsv", 5000L, 3, null));
+        assertNull(response.getHeader("Accept-Ranges"));
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        assertArrayEquals(expectedRows(4095, 4100), get(true, "hash.tsv", null, null, "rows=4095-4100"));
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("rows 4095-4100/" + TOTAL_ROWS, response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testOpenRange() throws IOException {
+        assertArrayEquals(expectedRows(9990, TOTAL_ROWS - 1), get(true, "hash.tsv", null, null, "rows=9990-"));
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("rows 9990-9999/" + TOTAL_ROWS, response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testSuffixRange() throws IOException {
+        assertArrayEquals(expectedRows(9995, TOTAL_ROWS - 1), get(true, "hash.tsv", null, null, "rows=-5"));
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("rows 9995-9999/" + TOTAL_ROWS, response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testRangePastTheEnd() throws IOException {
+        assertArrayEquals(expectedRows(9998, TOTAL_ROWS - 1), get(true, "hash.tsv", null, null, "rows=9998-20000"));
+        assertEquals("rows 9998-9999/" + TOTAL_ROWS, response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws IOException {
+        assertArrayEquals(new String[0], get(true, "hash.tsv", null, null, "rows=10000-10005"));
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("rows */" + TOTAL_ROWS, response.getHeader("Content-Range"));
+
+        response = new MockHttpServletResponse();
+        get(true, "hash.tsv", null, null, "rows=20000-");
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+
+        response = new MockHttpServletResponse();
+        get(true, "hash.tsv", null, null, "rows=-0");
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+    }
+
+    @Test
+    public void testIgnoredRanges() throws IOException {
+        // other units, multiple ranges and invalid ranges return all the rows
+        for (String range : new String[] {"bytes=0-10", "rows=0-1,5-6", "rows=5-1", "rows=a-b"}) {
+            response = new MockHttpServletResponse();
+            assertEquals(TOTAL_ROWS, get(true, "hash.tsv", null, null, range).length);
+            assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        }
+    }
+
+    @Test
+    public void testRangeWithoutIndex() throws IOException {
+        // ranges need the total row count from the index
+        assertEquals(TOTAL_ROWS, get(false, "hash.tsv", null, null, "rows=0-9").length);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        get(true, "other.tsv", null, null, null);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+        response = new MockHttpServletResponse();
+        get(true, "hash.json", null, null, null);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+    }
+}